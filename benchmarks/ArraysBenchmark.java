@@ -0,0 +1,56 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Native pointers to Java arrays: held critically, or pinned or copied.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ArraysBenchmark {
+
+    @Param({"16", "4096"})
+    int size;
+
+    int[] arr;
+
+    @Setup
+    public void check() {
+        arr = new int[size];
+        for (int i = 0; i < size; i++) arr[i] = i;
+        int sum = Arrays.sumCritical(arr);
+        if (Baseline.sumCritical(arr) != sum ||
+                Arrays.sumElements(arr, size) != sum ||
+                Baseline.sumElements(arr, size) != sum) {
+            throw new IllegalStateException("results differ");
+        }
+    }
+
+    @Benchmark
+    public int sumCriticalJanet() {
+        return Arrays.sumCritical(arr);
+    }
+
+    @Benchmark
+    public int sumCriticalJni() {
+        return Baseline.sumCritical(arr);
+    }
+
+    @Benchmark
+    public int sumElementsJanet() {
+        return Arrays.sumElements(arr, size);
+    }
+
+    @Benchmark
+    public int sumElementsJni() {
+        return Baseline.sumElements(arr, size);
+    }
+}
@@ -0,0 +1,61 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+/**
+ * Hand-written JNI equivalents of the JANET kernels, implemented in
+ * baseline.c. They cache class, method and field IDs, as carefully written
+ * JNI code would, so that the benchmarks compare against the best that can
+ * be done by hand.
+ */
+public class Baseline {
+
+    static {
+        System.loadLibrary("benchmarks");
+        init();
+    }
+
+    static final RuntimeException EXCEPTION = new RuntimeException();
+
+    int value;
+
+    void inc() {
+        value++;
+    }
+
+    static void fail() {
+        throw EXCEPTION;
+    }
+
+    private static native void init();
+
+    public static native void emptyStatic();
+
+    public native void empty();
+
+    public native int getField();
+
+    public native void setField(int v);
+
+    public native void upcall();
+
+    public static native int sumCritical(int[] arr);
+
+    public static native int sumElements(int[] arr, int n);
+
+    public static native int[][] newMatrix(int n, int m);
+
+    public static native int utfLength(String s);
+
+    public static native int unicodeSum(String s);
+
+    public static native int unicodeFirst(String s);
+
+    public static native String newString();
+
+    public static native void throwToJava();
+
+    public static native int catchUpcall();
+
+    public static native void lock(Object o);
+}
@@ -0,0 +1,84 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Native method calls, field accesses and upcalls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallsBenchmark {
+
+    Calls janet = new Calls();
+    Baseline jni = new Baseline();
+    int v;
+
+    @Setup
+    public void check() {
+        janet.setField(7);
+        jni.setField(7);
+        janet.upcall();
+        jni.upcall();
+        if (janet.getField() != 8 || jni.getField() != 8) {
+            throw new IllegalStateException("results differ");
+        }
+    }
+
+    @Benchmark
+    public void emptyStaticJanet() {
+        Calls.emptyStatic();
+    }
+
+    @Benchmark
+    public void emptyStaticJni() {
+        Baseline.emptyStatic();
+    }
+
+    @Benchmark
+    public void emptyJanet() {
+        janet.empty();
+    }
+
+    @Benchmark
+    public void emptyJni() {
+        jni.empty();
+    }
+
+    @Benchmark
+    public int getFieldJanet() {
+        return janet.getField();
+    }
+
+    @Benchmark
+    public int getFieldJni() {
+        return jni.getField();
+    }
+
+    @Benchmark
+    public void setFieldJanet() {
+        janet.setField(v++);
+    }
+
+    @Benchmark
+    public void setFieldJni() {
+        jni.setField(v++);
+    }
+
+    @Benchmark
+    public void upcallJanet() {
+        janet.upcall();
+    }
+
+    @Benchmark
+    public void upcallJni() {
+        jni.upcall();
+    }
+}
@@ -0,0 +1,56 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Exceptions thrown from native code to Java, and caught in native code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExceptionsBenchmark {
+
+    @Setup
+    public void check() {
+        if (Exceptions.catchUpcall() != 1 || Baseline.catchUpcall() != 1) {
+            throw new IllegalStateException("results differ");
+        }
+    }
+
+    @Benchmark
+    public RuntimeException throwJanet() {
+        try {
+            Exceptions.throwToJava();
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public RuntimeException throwJni() {
+        try {
+            Baseline.throwToJava();
+            return null;
+        } catch (RuntimeException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public int catchJanet() {
+        return Exceptions.catchUpcall();
+    }
+
+    @Benchmark
+    public int catchJni() {
+        return Baseline.catchUpcall();
+    }
+}
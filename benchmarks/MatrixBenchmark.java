@@ -0,0 +1,42 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Creation of two-dimensional arrays in native code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MatrixBenchmark {
+
+    @Param({"4", "64"})
+    int size;
+
+    @Setup
+    public void check() {
+        int[][] a = Arrays.newMatrix(size, size);
+        int[][] b = Baseline.newMatrix(size, size);
+        if (a.length != size || a[size - 1].length != size ||
+                b.length != size || b[size - 1].length != size) {
+            throw new IllegalStateException("results differ");
+        }
+    }
+
+    @Benchmark
+    public int[][] newMatrixJanet() {
+        return Arrays.newMatrix(size, size);
+    }
+
+    @Benchmark
+    public int[][] newMatrixJni() {
+        return Baseline.newMatrix(size, size);
+    }
+}
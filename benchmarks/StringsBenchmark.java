@@ -0,0 +1,78 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Conversions between Java strings and native strings. Strings longer
+ * than JANET_STRING_BUFFER_SIZE are not copied to the native stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringsBenchmark {
+
+    @Param({"8", "1024"})
+    int length;
+
+    String s;
+
+    @Setup
+    public void check() {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char)('a' + i % 26));
+        s = sb.toString();
+        if (Strings.utfLength(s) != Baseline.utfLength(s) ||
+                Strings.unicodeSum(s) != Baseline.unicodeSum(s) ||
+                Strings.unicodeFirst(s) != Baseline.unicodeFirst(s) ||
+                !Strings.newString().equals(Baseline.newString())) {
+            throw new IllegalStateException("results differ");
+        }
+    }
+
+    @Benchmark
+    public int utfJanet() {
+        return Strings.utfLength(s);
+    }
+
+    @Benchmark
+    public int utfJni() {
+        return Baseline.utfLength(s);
+    }
+
+    @Benchmark
+    public int unicodeJanet() {
+        return Strings.unicodeSum(s);
+    }
+
+    @Benchmark
+    public int unicodeJni() {
+        return Baseline.unicodeSum(s);
+    }
+
+    @Benchmark
+    public int unicodeCriticalJanet() {
+        return Strings.unicodeFirst(s);
+    }
+
+    @Benchmark
+    public int unicodeCriticalJni() {
+        return Baseline.unicodeFirst(s);
+    }
+
+    @Benchmark
+    public String newStringJanet() {
+        return Strings.newString();
+    }
+
+    @Benchmark
+    public String newStringJni() {
+        return Baseline.newString();
+    }
+}
@@ -0,0 +1,31 @@
+/* -*-Java-*- */
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Uncontended monitors entered and exited by native code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SynchronizedBenchmark {
+
+    Object lock = new Object();
+
+    @Benchmark
+    public void synchronizedJanet() {
+        Synchronized.lock(lock);
+    }
+
+    @Benchmark
+    public void synchronizedJni() {
+        Baseline.lock(lock);
+    }
+}
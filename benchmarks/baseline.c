@@ -0,0 +1,168 @@
+/*
+ * Hand-written JNI implementations of the benchmarks.Baseline methods.
+ */
+
+#include <jni.h>
+#include <string.h>
+
+static jfieldID valueID;
+static jmethodID incID;
+static jmethodID failID;
+static jfieldID exceptionID;
+static jclass intArrayClass;
+static jclass runtimeExceptionClass;
+
+static jclass globalClass(JNIEnv* env, const char* name)
+{
+    jclass g, c = (*env)->FindClass(env, name);
+    if (c == NULL) return NULL;
+    g = (*env)->NewGlobalRef(env, c);
+    (*env)->DeleteLocalRef(env, c);
+    return g;
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_init(JNIEnv* env, jclass cls)
+{
+    valueID = (*env)->GetFieldID(env, cls, "value", "I");
+    incID = (*env)->GetMethodID(env, cls, "inc", "()V");
+    failID = (*env)->GetStaticMethodID(env, cls, "fail", "()V");
+    exceptionID = (*env)->GetStaticFieldID(env, cls, "EXCEPTION",
+        "Ljava/lang/RuntimeException;");
+    intArrayClass = globalClass(env, "[I");
+    runtimeExceptionClass = globalClass(env, "java/lang/RuntimeException");
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_emptyStatic(JNIEnv* env, jclass cls)
+{
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_empty(JNIEnv* env, jobject self)
+{
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_getField(JNIEnv* env, jobject self)
+{
+    return (*env)->GetIntField(env, self, valueID);
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_setField(JNIEnv* env, jobject self,
+                                                         jint v)
+{
+    (*env)->SetIntField(env, self, valueID, v);
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_upcall(JNIEnv* env, jobject self)
+{
+    (*env)->CallVoidMethod(env, self, incID);
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_sumCritical(JNIEnv* env, jclass cls,
+                                                            jintArray arr)
+{
+    jint sum = 0;
+    jsize i, len = (*env)->GetArrayLength(env, arr);
+    const jint* p = (*env)->GetPrimitiveArrayCritical(env, arr, NULL);
+    if (p == NULL) return 0;
+    for (i=0; i<len; i++) sum += p[i];
+    (*env)->ReleasePrimitiveArrayCritical(env, arr, (void*)p, JNI_ABORT);
+    return sum;
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_sumElements(JNIEnv* env, jclass cls,
+                                                            jintArray arr, jint n)
+{
+    jint sum = 0;
+    jsize i;
+    jint* p = (*env)->GetIntArrayElements(env, arr, NULL);
+    if (p == NULL) return 0;
+    for (i=0; i<n; i++) sum += p[i];
+    (*env)->ReleaseIntArrayElements(env, arr, p, JNI_ABORT);
+    return sum;
+}
+
+JNIEXPORT jobjectArray JNICALL Java_benchmarks_Baseline_newMatrix(JNIEnv* env,
+                                                                  jclass cls,
+                                                                  jint n, jint m)
+{
+    jint i;
+    jobjectArray result = (*env)->NewObjectArray(env, n, intArrayClass, NULL);
+    if (result == NULL) return NULL;
+    for (i=0; i<n; i++) {
+        jintArray row = (*env)->NewIntArray(env, m);
+        if (row == NULL) return NULL;
+        (*env)->SetObjectArrayElement(env, result, i, row);
+        (*env)->DeleteLocalRef(env, row);
+    }
+    return result;
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_utfLength(JNIEnv* env, jclass cls,
+                                                          jstring s)
+{
+    jint len;
+    const char* p = (*env)->GetStringUTFChars(env, s, NULL);
+    if (p == NULL) return 0;
+    len = strlen(p);
+    (*env)->ReleaseStringUTFChars(env, s, p);
+    return len;
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_unicodeSum(JNIEnv* env, jclass cls,
+                                                           jstring s)
+{
+    jint sum = 0;
+    jsize i, len = (*env)->GetStringLength(env, s);
+    const jchar* p = (*env)->GetStringChars(env, s, NULL);
+    if (p == NULL) return 0;
+    for (i=0; i<len; i++) sum += p[i];
+    (*env)->ReleaseStringChars(env, s, p);
+    return sum;
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_unicodeFirst(JNIEnv* env, jclass cls,
+                                                             jstring s)
+{
+    jint c;
+    const jchar* p = (*env)->GetStringCritical(env, s, NULL);
+    if (p == NULL) return 0;
+    c = p[0];
+    (*env)->ReleaseStringCritical(env, s, p);
+    return c;
+}
+
+JNIEXPORT jstring JNICALL Java_benchmarks_Baseline_newString(JNIEnv* env, jclass cls)
+{
+    return (*env)->NewStringUTF(env, "native string");
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_throwToJava(JNIEnv* env, jclass cls)
+{
+    jthrowable e = (*env)->GetStaticObjectField(env, cls, exceptionID);
+    if (e == NULL) return;
+    (*env)->Throw(env, e);
+}
+
+JNIEXPORT jint JNICALL Java_benchmarks_Baseline_catchUpcall(JNIEnv* env, jclass cls)
+{
+    jthrowable e;
+    jboolean caught;
+    (*env)->CallStaticVoidMethod(env, cls, failID);
+    e = (*env)->ExceptionOccurred(env);
+    if (e == NULL) return 0;
+    /* no other JNI calls are allowed while the exception is pending */
+    (*env)->ExceptionClear(env);
+    caught = (*env)->IsInstanceOf(env, e, runtimeExceptionClass);
+    if (!caught) {
+        (*env)->Throw(env, e);
+        return 0;
+    }
+    (*env)->DeleteLocalRef(env, e);
+    return 1;
+}
+
+JNIEXPORT void JNICALL Java_benchmarks_Baseline_lock(JNIEnv* env, jclass cls,
+                                                     jobject o)
+{
+    if ((*env)->MonitorEnter(env, o) != JNI_OK) return;
+    (*env)->MonitorExit(env, o);
+}
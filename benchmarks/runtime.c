@@ -0,0 +1,360 @@
+/*
+ * Microbenchmarks of the JANET run-time library (janet.c and the functions
+ * in janet.h), driven directly from C, without the Java layer. The program
+ * creates a virtual machine with JNI_CreateJavaVM, and calls the run-time
+ * functions the way generated native methods do.
+ *
+ * Usage: runtime [-t millis] [benchmark...]
+ *
+ * Benchmarks whose names start with any of the given arguments are run; all
+ * of them by default. For each, the time per operation is reported, along
+ * with the number and size of native allocations made by the run-time
+ * library (counted when linked with --wrap, see the makefile), and the size
+ * of Java objects allocated, as reported by com.sun.management.ThreadMXBean.
+ */
+
+#include <janet.h>
+#include <stdio.h>
+
+/**
+ * Counting allocations
+ */
+
+static long mallocs = 0;
+static long mallocBytes = 0;
+
+void* __real_malloc(size_t);
+void* __real_calloc(size_t, size_t);
+
+void* __wrap_malloc(size_t size) {
+    mallocs++;
+    mallocBytes += size;
+    return __real_malloc(size);
+}
+
+void* __wrap_calloc(size_t n, size_t size) {
+    mallocs++;
+    mallocBytes += n * size;
+    return __real_calloc(n, size);
+}
+
+static jobject threadBean = 0;
+static jmethodID allocatedBytesID = 0;
+static jlong threadID;
+
+static void initHeapCounter(JNIEnv* _janet_jnienv) {
+    jclass mf, tb, th;
+    jobject thread;
+    mf = JNI_FIND_CLASS("java/lang/management/ManagementFactory");
+    th = JNI_FIND_CLASS("java/lang/Thread");
+    tb = JNI_FIND_CLASS("com/sun/management/ThreadMXBean");
+    if (mf && th && tb) {
+        threadBean = (*_janet_jnienv)->CallStaticObjectMethod(_janet_jnienv, mf,
+            JNI_GET_STATIC_METHOD_ID(mf, "getThreadMXBean",
+                                     "()Ljava/lang/management/ThreadMXBean;"));
+        thread = (*_janet_jnienv)->CallStaticObjectMethod(_janet_jnienv, th,
+            JNI_GET_STATIC_METHOD_ID(th, "currentThread", "()Ljava/lang/Thread;"));
+        threadID = (*_janet_jnienv)->CallLongMethod(_janet_jnienv, thread,
+            JNI_GET_METHOD_ID(th, "getId", "()J"));
+        if (threadBean && JNI_IS_INSTANCE_OF(threadBean, tb)) {
+            threadBean = JNI_NEW_GLOBAL_REF(threadBean);
+            allocatedBytesID = JNI_GET_METHOD_ID(tb, "getThreadAllocatedBytes",
+                                                 "(J)J");
+        }
+    }
+    /* not a HotSpot VM; Java allocations are not reported */
+    if (JNI_EXCEPTION_CHECK()) JNI_EXCEPTION_CLEAR();
+}
+
+static jlong heapBytes(JNIEnv* _janet_jnienv) {
+    if (!allocatedBytesID) return 0;
+    return (*_janet_jnienv)->CallLongMethod(_janet_jnienv, threadBean,
+                                           allocatedBytesID, threadID);
+}
+
+/**
+ * Benchmarks
+ *
+ * Each benchmark has up to two integer parameters. Operations must release
+ * all local references they create, since the thread never returns to Java.
+ */
+
+static jobject object;
+static jclass exceptionClass;
+static jthrowable exception;
+static jclass arrayClasses[2];   /* int[], int[][] */
+static jarray arrays[256];
+
+/*
+ * Installs n references in a multiref pool of n entries, holding all of
+ * them, and then releases them, as a method with n reference variables.
+ */
+static void multirefs(JNIEnv* _janet_jnienv, int n, int unused) {
+    _janet_multiref pool[256];
+    _janet_multiref* refs[256];
+    unsigned int pos = 0;
+    int i;
+    memset(pool, 0, n * sizeof(_janet_multiref));
+    for (i=0; i<n; i++) {
+        refs[i] = _janet_inc_multiref(_janet_jnienv,
+            _janet_install_multiref(_janet_jnienv, pool, n, &pos,
+                                    JNI_NEW_LOCAL_REF(object)));
+    }
+    for (i=0; i<n; i++) {
+        _janet_dec_multiref(_janet_jnienv, refs[i]);
+    }
+    for (i=0; i<n; i++) {
+        if (pool[i].ref) JNI_DELETE_LOCAL_REF(pool[i].ref);
+    }
+}
+
+/*
+ * Looks up n distinct arrays twice in the array hash table of a method;
+ * the second time, they are found. Beyond the inline list, arrays are
+ * hashed, and beyond the threshold of the initial table, more tables are
+ * allocated.
+ */
+static void arrayTable(JNIEnv* _janet_jnienv, int n, int unused) {
+    _janet_arr _janet_arrhtdata[19] = { { 0, 0, 0, 0, 0, 0, 0, 0, 0 } };
+    _janet_arrHashTable _janet_arrhtable = { 4, 0, 14, 0 };
+    int i;
+    _janet_arrhtable.data = _janet_arrhtdata;
+    for (i=0; i<n; i++) {
+        _jh1_janet_putArray(_janet_jnienv, &_janet_arrhtable, arrays[i]);
+    }
+    for (i=0; i<n; i++) {
+        _jh1_janet_putArray(_janet_jnienv, &_janet_arrhtable, arrays[i]);
+    }
+    _jh3_releaseHashTable(_janet_jnienv, &_janet_arrhtable);
+}
+
+/*
+ * Creates a multi-dimensional int array of the given depth (1 to 3), with
+ * all dimensions of the given length.
+ */
+static void newArray(JNIEnv* _janet_jnienv, int depth, int length) {
+    jobject arr = 0;
+    switch (depth) {
+    case 1:
+        arr = _JANET_CREATE_ARRAY(_janet_jnienv, 1,
+            _JANET__FILE__, _JANET__LINE__,
+            length, 0, (*_janet_jnienv)->NewIntArray);
+        break;
+    case 2:
+        arr = _JANET_CREATE_ARRAY(_janet_jnienv, 2,
+            _JANET__FILE__, _JANET__LINE__,
+            length, arrayClasses[0],
+            length, 0, (*_janet_jnienv)->NewIntArray);
+        break;
+    case 3:
+        arr = _JANET_CREATE_ARRAY(_janet_jnienv, 3,
+            _JANET__FILE__, _JANET__LINE__,
+            length, arrayClasses[1],
+            length, arrayClasses[0],
+            length, 0, (*_janet_jnienv)->NewIntArray);
+        break;
+    }
+    if (arr) JNI_DELETE_LOCAL_REF(arr);
+}
+
+/* a try block completing normally */
+static jint tryNormally(JNIEnv* _janet_jnienv) {
+    _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS(jint);
+    volatile jthrowable _janet_excObj_e = 0;
+    volatile jint result = 0;
+    {
+        _JANET_EXCEPTION_CONTEXT_BEGIN
+        _JANET_TRY {
+            result = 1;
+        }
+        _JANET_CATCH(exceptionClass, _janet_excObj_e) {
+            result = 2;
+        }
+        _JANET_END_TRY;
+        _JANET_EXCEPTION_CONTEXT_END_GLOBAL_0
+    }
+    return result;
+}
+
+/* an exception thrown and caught in the same method */
+static jint tryThrow(JNIEnv* _janet_jnienv) {
+    _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS(jint);
+    volatile jthrowable _janet_excObj_e = 0;
+    volatile jint result = 0;
+    {
+        _JANET_EXCEPTION_CONTEXT_BEGIN
+        _JANET_TRY {
+            do {
+                _JANET_THROW_LOCAL(JNI_NEW_LOCAL_REF(exception));
+            } while(0);
+        }
+        _JANET_CATCH(exceptionClass, _janet_excObj_e) {
+            result = 2;
+        }
+        _JANET_END_TRY;
+        _JANET_EXCEPTION_CONTEXT_END_GLOBAL_0
+    }
+    return result;
+}
+
+/* a return from within a try block, as in `return new int[n][m];` */
+static jint tryReturn(JNIEnv* _janet_jnienv) {
+    _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS(jint);
+    _JANET_EXCEPTION_CONTEXT_BEGIN
+    _JANET_TRY {
+        do {
+            _JANET_RETURN_LOCAL(1);
+        } while(0);
+    } _JANET_END_TRY;
+    _JANET_EXCEPTION_CONTEXT_END_GLOBAL_0
+}
+
+static void exceptions(JNIEnv* _janet_jnienv, int variant, int unused) {
+    switch (variant) {
+    case 0: tryNormally(_janet_jnienv); break;
+    case 1: tryThrow(_janet_jnienv); break;
+    case 2: tryReturn(_janet_jnienv); break;
+    }
+}
+
+typedef struct {
+    const char* name;
+    void (*op)(JNIEnv*, int, int);
+    const char* paramNames;
+    int params[8][2];  /* terminated by { -1 } */
+} benchmark;
+
+static benchmark benchmarks[] = {
+    { "multirefs", multirefs, "pool",
+      { { 1 }, { 4 }, { 16 }, { 64 }, { -1 } } },
+    { "arrays", arrayTable, "arrays",
+      { { 1 }, { 4 }, { 8 }, { 14 }, { 15 }, { 64 }, { 256 }, { -1 } } },
+    { "newarray", newArray, "depth, length",
+      { { 1, 16 }, { 2, 4 }, { 2, 64 }, { 3, 8 }, { -1 } } },
+    { "exceptions", exceptions, "0=try 1=throw 2=return",
+      { { 0 }, { 1 }, { 2 }, { -1 } } },
+    { 0 }
+};
+
+/**
+ * Harness
+ */
+
+static jlong runBatch(JNIEnv* env, benchmark* b, int* params, long iters) {
+    jlong start = _jx1_janet_nanoTime();
+    long i;
+    for (i=0; i<iters; i++) {
+        b->op(env, params[0], params[1]);
+    }
+    return _jx1_janet_nanoTime() - start;
+}
+
+static void run(JNIEnv* _janet_jnienv, benchmark* b, int* params, jlong millis) {
+    long iters = 1;
+    long ops = 0;
+    jlong nanos = 0;
+    long mallocs0, bytes0;
+    jlong heap0;
+
+    /* calibrate the batch to take about 10 ms, and warm up */
+    while (runBatch(_janet_jnienv, b, params, iters) < 10000000 && iters < (1L << 30)) {
+        iters *= 2;
+    }
+    while (nanos < millis * 1000000 / 2) {
+        nanos += runBatch(_janet_jnienv, b, params, iters);
+    }
+
+    nanos = 0;
+    mallocs0 = mallocs;
+    bytes0 = mallocBytes;
+    heap0 = heapBytes(_janet_jnienv);
+    while (nanos < millis * 1000000) {
+        nanos += runBatch(_janet_jnienv, b, params, iters);
+        ops += iters;
+    }
+    printf("%-12s %5d %5d %12.1f %12.2f %12.1f %12.1f\n",
+           b->name, params[0], params[1],
+           (double)nanos / ops,
+           (double)(mallocs - mallocs0) / ops,
+           (double)(mallocBytes - bytes0) / ops,
+           (double)(heapBytes(_janet_jnienv) - heap0) / ops);
+    fflush(stdout);
+    if (JNI_EXCEPTION_CHECK()) {
+        JNI_EXCEPTION_DESCRIBE();
+        JNI_EXCEPTION_CLEAR();
+    }
+}
+
+static int selected(const char* name, int argc, char** argv) {
+    int i;
+    if (!argc) return 1;
+    for (i=0; i<argc; i++) {
+        if (!strncmp(name, argv[i], strlen(argv[i]))) return 1;
+    }
+    return 0;
+}
+
+static jobject global(JNIEnv* _janet_jnienv, jobject ref) {
+    jobject g = JNI_NEW_GLOBAL_REF(ref);
+    JNI_DELETE_LOCAL_REF(ref);
+    return g;
+}
+
+static int setUp(JNIEnv* _janet_jnienv) {
+    int i;
+    jclass cls;
+    _JANET_INIT();
+    if (JNI_EXCEPTION_CHECK()) return 0;
+    initHeapCounter(_janet_jnienv);
+    cls = JNI_FIND_CLASS("java/lang/Object");
+    object = global(_janet_jnienv, JNI_ALLOC_OBJECT(cls));
+    exceptionClass = global(_janet_jnienv,
+                            JNI_FIND_CLASS("java/lang/RuntimeException"));
+    exception = global(_janet_jnienv, JNI_ALLOC_OBJECT(exceptionClass));
+    arrayClasses[0] = global(_janet_jnienv, JNI_FIND_CLASS("[I"));
+    arrayClasses[1] = global(_janet_jnienv, JNI_FIND_CLASS("[[I"));
+    for (i=0; i<(int)(sizeof(arrays)/sizeof(arrays[0])); i++) {
+        arrays[i] = global(_janet_jnienv, (*_janet_jnienv)->NewIntArray(_janet_jnienv, 1));
+    }
+    return !JNI_EXCEPTION_CHECK();
+}
+
+int main(int argc, char** argv) {
+    JavaVM* vm;
+    JNIEnv* env;
+    JavaVMInitArgs vmArgs;
+    jlong millis = 1000;
+    benchmark* b;
+    int i;
+
+    if (argc > 2 && !strcmp(argv[1], "-t")) {
+        millis = atol(argv[2]);
+        argc -= 2;
+        argv += 2;
+    }
+
+    vmArgs.version = JNI_VERSION_1_2;
+    vmArgs.nOptions = 0;
+    vmArgs.options = 0;
+    vmArgs.ignoreUnrecognized = JNI_FALSE;
+    if (JNI_CreateJavaVM(&vm, (void**)&env, &vmArgs) != JNI_OK) {
+        fprintf(stderr, "cannot create the virtual machine\n");
+        return 1;
+    }
+    if (!setUp(env)) {
+        (*env)->ExceptionDescribe(env);
+        return 1;
+    }
+
+    printf("%-12s %5s %5s %12s %12s %12s %12s\n", "benchmark", "p1", "p2",
+           "ns/op", "mallocs/op", "bytes/op", "heap/op");
+    for (b = benchmarks; b->name; b++) {
+        if (!selected(b->name, argc - 1, argv + 1)) continue;
+        printf("# %s (%s)\n", b->name, b->paramNames);
+        for (i=0; b->params[i][0] >= 0; i++) {
+            run(env, b, b->params[i], millis);
+        }
+    }
+    (*vm)->DestroyJavaVM(vm);
+    return 0;
+}
@@ -0,0 +1,183 @@
+/* -*-Java-*- */
+
+package benchmarks.translator;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Generates a synthetic corpus of .janet files for benchmarking the
+ * translator. Classes form inheritance chains rooted at JDK classes, which
+ * the translator has to reflect; each class declares a family of overloaded
+ * methods, and native methods whose bodies consist of many backtick
+ * expressions: field accesses, overloaded and inherited method calls, array
+ * accesses and string operations.
+ *
+ * Usage: CorpusGenerator [-d dir] [-classes n] [-depth n] [-overloads n]
+ *                        [-expressions n]
+ *
+ * Files are written to dir/corpus/C&lt;i&gt;.janet.
+ */
+public class CorpusGenerator {
+
+    // roots of the inheritance chains; all have public no-arg constructors
+    static final String[] ROOTS = {
+        "java.util.ArrayList", "java.util.HashMap", "java.io.ByteArrayOutputStream",
+        "java.lang.Thread", "javax.swing.JPanel",
+    };
+
+    // parameter types of overloaded methods, and arguments passed for them
+    static final String[] TYPES = {
+        "int", "long", "double", "boolean", "char", "String", "Object", "int[]",
+    };
+    static final String[] ARGS = {
+        "(int)#(sum)", "(long)#(sum)", "(double)#(sum)", "#(sum) > 0", "'c'", "s0", "this", "a0",
+    };
+
+    // fields of each kind per class
+    static final int FIELDS = 4;
+
+    // backtick expressions per native method
+    static final int EXPRESSIONS_PER_METHOD = 50;
+
+    File dir = new File(".");
+    int classes = 200;
+    int depth = 8;
+    int overloads = 24;
+    int expressions = 200;
+
+    public static void main(String[] args) throws IOException {
+        CorpusGenerator g = new CorpusGenerator();
+        for (int i=0; i<args.length; i++) {
+            String arg = args[i];
+            if (i+1 >= args.length) usage();
+            if ("-d".equals(arg)) {
+                g.dir = new File(args[++i]);
+            } else if ("-classes".equals(arg)) {
+                g.classes = Integer.parseInt(args[++i]);
+            } else if ("-depth".equals(arg)) {
+                g.depth = Integer.parseInt(args[++i]);
+            } else if ("-overloads".equals(arg)) {
+                g.overloads = Integer.parseInt(args[++i]);
+            } else if ("-expressions".equals(arg)) {
+                g.expressions = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+            }
+        }
+        if (g.classes < 1 || g.depth < 1 || g.overloads < 1 || g.expressions < 0) {
+            usage();
+        }
+        g.generate();
+    }
+
+    static void usage() {
+        System.err.println("Usage: CorpusGenerator [-d dir] [-classes n] [-depth n] " +
+            "[-overloads n] [-expressions n]");
+        System.exit(1);
+    }
+
+    void generate() throws IOException {
+        File pkg = new File(dir, "corpus");
+        if (!pkg.isDirectory() && !pkg.mkdirs()) {
+            throw new IOException("cannot create " + pkg);
+        }
+        long lines = 0;
+        for (int i=0; i<classes; i++) {
+            File f = new File(pkg, "C" + i + ".janet");
+            PrintWriter w = new PrintWriter(new FileWriter(f));
+            try {
+                lines += writeClass(w, i);
+            } finally {
+                w.close();
+            }
+        }
+        System.out.println("Generated " + classes + " classes, " + lines +
+            " lines in " + pkg);
+    }
+
+    int writeClass(PrintWriter w, int idx) {
+        int lines = 0;
+        String superclass = idx % depth == 0
+            ? ROOTS[(idx / depth) % ROOTS.length]
+            : "C" + (idx - 1);
+
+        w.println("/* -*-Java-*- */"); lines++;
+        w.println(); lines++;
+        w.println("package corpus;"); lines++;
+        w.println(); lines++;
+        w.println("public class C" + idx + " extends " + superclass + " {"); lines++;
+        w.println(); lines++;
+
+        // fields
+        for (int k=0; k<FIELDS; k++) {
+            w.println("    int i" + k + ";"); lines++;
+            w.println("    String s" + k + " = \"s" + k + "\";"); lines++;
+            w.println("    int[] a" + k + " = new int[8];"); lines++;
+        }
+        w.println(); lines++;
+
+        // overloaded methods
+        for (int k=0; k<overloads; k++) {
+            w.println("    int f(" + getParams(k) + ") {"); lines++;
+            w.println("        return " + k + ";"); lines++;
+            w.println("    }"); lines++;
+            w.println(); lines++;
+        }
+
+        // native methods
+        int methods = (expressions + EXPRESSIONS_PER_METHOD - 1) / EXPRESSIONS_PER_METHOD;
+        for (int m=0; m<methods; m++) {
+            w.println("    native \"C\" int n" + m + "() {"); lines++;
+            w.println("        jint sum = 0;"); lines++;
+            int e0 = m * EXPRESSIONS_PER_METHOD;
+            int e1 = Math.min(expressions, e0 + EXPRESSIONS_PER_METHOD);
+            for (int e=e0; e<e1; e++) {
+                w.println("        " + getStatement(idx, e)); lines++;
+            }
+            w.println("        return sum;"); lines++;
+            w.println("    }"); lines++;
+            w.println(); lines++;
+        }
+
+        w.println("}"); lines++;
+        return lines;
+    }
+
+    // the k-th overload has (1 + k / TYPES.length) parameters
+    static String getParams(int k) {
+        StringBuffer b = new StringBuffer();
+        int arity = 1 + k / TYPES.length;
+        for (int j=0; j<arity; j++) {
+            if (j > 0) b.append(", ");
+            b.append(TYPES[(k + j) % TYPES.length]).append(" p").append(j);
+        }
+        return b.toString();
+    }
+
+    String getArgs(int k) {
+        StringBuffer b = new StringBuffer();
+        int arity = 1 + k / TYPES.length;
+        for (int j=0; j<arity; j++) {
+            if (j > 0) b.append(", ");
+            b.append(ARGS[(k + j) % TYPES.length]);
+        }
+        return b.toString();
+    }
+
+    String getStatement(int idx, int e) {
+        int k = e % FIELDS;
+        switch (e % 8) {
+        case 0: return "sum += `i" + k + "`;";
+        case 1: return "`i" + k + " = #(sum);`";
+        case 2: return "sum += `f(" + getArgs(e % overloads) + ")`;";
+        case 3: return "sum += `s" + k + ".length()`;";
+        case 4: return "sum += `a" + k + "[#(sum & 7)]`;";
+        case 5: return "sum += `hashCode()`;";
+        case 6: return "sum += `toString().length()`;";
+        default: return "`s" + k + " = String.valueOf((int)#(sum));`";
+        }
+    }
+}
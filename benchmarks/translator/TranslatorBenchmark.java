@@ -0,0 +1,205 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package pl.edu.agh.icsr.janet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the throughput of the translator. Runs the phases of
+ * {@link Janet#main} over the given files several times in the same virtual
+ * machine, and reports the time of each phase (parse, resolve, translate),
+ * the throughput in lines per second, and the peak heap usage. The first
+ * iterations warm the virtual machine up; the median of the remaining ones
+ * is reported as well.
+ *
+ * Usage: TranslatorBenchmark [-n iterations] [janet options] files...
+ *
+ * It is in the translator's package, since the phases are not public.
+ */
+public class TranslatorBenchmark {
+
+    static final int PARSE = 0;
+    static final int RESOLVE = 1;
+    static final int TRANSLATE = 2;
+    static final int PHASES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 10;
+        int idx = 0;
+        if (args.length > 1 && "-n".equals(args[0])) {
+            iterations = Integer.parseInt(args[1]);
+            idx = 2;
+        }
+        String[] janetArgs = new String[args.length - idx];
+        System.arraycopy(args, idx, janetArgs, 0, janetArgs.length);
+
+        List<File> files = new ArrayList<File>();
+        long lines = 0;
+        for (int i=0; i<janetArgs.length; i++) {
+            if (janetArgs[i].startsWith("-")) {
+                if (takesArgument(janetArgs[i])) i++;
+                continue;
+            }
+            File f = new File(janetArgs[i]);
+            files.add(f);
+            lines += countLines(f);
+        }
+        if (files.isEmpty() || iterations < 1) {
+            System.err.println("Usage: TranslatorBenchmark [-n iterations] " +
+                "[janet options] files...");
+            System.exit(1);
+        }
+        System.out.println(files.size() + " files, " + lines + " lines");
+        System.out.println(format("iteration", "parse ms", "resolve ms",
+            "translate ms", "lines/s", "peak heap MB"));
+
+        long[][] nanos = new long[iterations][];
+        long[] heap = new long[iterations];
+        for (int it=0; it<iterations; it++) {
+            System.gc();
+            resetPeakHeap();
+            nanos[it] = run(janetArgs);
+            heap[it] = getPeakHeap();
+            report(Integer.toString(it + 1), nanos[it], lines, heap[it]);
+        }
+
+        // median of the second half, for each phase separately
+        int from = iterations / 2;
+        long[] median = new long[PHASES];
+        for (int p=0; p<PHASES; p++) {
+            long[] t = new long[iterations - from];
+            for (int it=from; it<iterations; it++) t[it - from] = nanos[it][p];
+            Arrays.sort(t);
+            median[p] = t[t.length / 2];
+        }
+        long[] h = new long[iterations - from];
+        System.arraycopy(heap, from, h, 0, h.length);
+        Arrays.sort(h);
+        report("median", median, lines, h[h.length / 2]);
+        System.out.println(format("lines/s",
+            perSecond(lines, median[PARSE]),
+            perSecond(lines, median[RESOLVE]),
+            perSecond(lines, median[TRANSLATE]), "", ""));
+    }
+
+    /**
+     * Runs the phases as Janet.main does, and returns their times.
+     */
+    static long[] run(String[] args) throws Exception {
+        Janet.Settings s = new Janet.Settings();
+        CompilationManager cm = new CompilationManager(s);
+        long[] nanos = new long[PHASES];
+        try {
+            long start = System.nanoTime();
+            int i = Janet.parseInitialParams(args, s, cm);
+            while (i<args.length) {
+                if (args[i].startsWith("-")) {
+                    i = Janet.parseThroughoutParam(args, i, s, cm);
+                    continue;
+                }
+                File inFile = new File(args[i++]);
+                URL url = inFile.toURI().toURL();
+                cm.addInput(url, inFile);
+            }
+            cm.parse();
+            long t = System.nanoTime();
+            nanos[PARSE] = t - start;
+            start = t;
+
+            cm.resolve();
+            t = System.nanoTime();
+            nanos[RESOLVE] = t - start;
+            start = t;
+
+            cm.translate();
+            nanos[TRANSLATE] = System.nanoTime() - start;
+        } catch (CompileException e) {
+            s.getFErr().println("No output generated");
+            s.getFErr().flush();
+            System.exit(1);
+        }
+        return nanos;
+    }
+
+    static boolean takesArgument(String option) {
+        return Arrays.asList(new String[] {
+            "-classpath", "-cp", "-sourcepath", "-sp", "-d", "-encoding",
+            "-library", "-headerdir", "-threads" }).contains(option);
+    }
+
+    static long countLines(File f) throws IOException {
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            long lines = 0;
+            while (r.readLine() != null) lines++;
+            return lines;
+        } finally {
+            r.close();
+        }
+    }
+
+    static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Returns the sum of peak usages of the heap memory pools. The peaks
+     * of different pools need not be simultaneous, so this may overestimate
+     * the actual peak.
+     */
+    static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    static void report(String label, long[] nanos, long lines, long heap) {
+        long total = nanos[PARSE] + nanos[RESOLVE] + nanos[TRANSLATE];
+        System.out.println(format(label,
+            millis(nanos[PARSE]), millis(nanos[RESOLVE]),
+            millis(nanos[TRANSLATE]), perSecond(lines, total),
+            Long.toString(heap / (1024 * 1024))));
+    }
+
+    static String millis(long nanos) {
+        return Long.toString(nanos / 1000000);
+    }
+
+    static String perSecond(long lines, long nanos) {
+        return nanos > 0 ? Long.toString(lines * 1000000000L / nanos) : "-";
+    }
+
+    static String format(String label, String parse, String resolve,
+                         String translate, String throughput, String heap) {
+        return pad(label, -10) + pad(parse, 14) + pad(resolve, 14) +
+            pad(translate, 14) + pad(throughput, 12) + pad(heap, 14);
+    }
+
+    // pads to the given width, on the right if negative
+    static String pad(String s, int width) {
+        StringBuffer b = new StringBuffer();
+        int n = Math.abs(width) - s.length();
+        if (width < 0) b.append(s);
+        while (n-- > 0) b.append(' ');
+        if (width > 0) b.append(s);
+        return b.toString();
+    }
+}
@@ -6,6 +6,8 @@
 
 #include "janet_base.h"
 #include <setjmp.h>
+#include <stdlib.h>
+#include <string.h>
 
 #ifdef __cplusplus
 extern "C" {
@@ -17,9 +19,22 @@ extern "C" {
 
 #define _JANET_DECLARE_MULTIREFS(size) \
    size_t _janet_multirefs_size = (size); \
-   _janet_multiref _janet_multirefs[size] = { { 0, 0, 0, 0, 0, 0 } }; \
+   _janet_multiref _janet_multirefs[size] = { { 0, 0, 0, 0, 0, 0, 0, 0, 0 } }; \
    unsigned int _janet_multiref_pos = 0
 
+/* Stack buffers for contents of short strings; used by `&str` and `#&str`
+ * through _JANET_STRING_GET_*_BUF. Each records the multiref whose contents
+ * it holds. JANET_STRING_BUFFER_SIZE is in Unicode characters; UTF-8 contents
+ * may take up to twice as many bytes. */
+
+#ifndef JANET_STRING_BUFFER_SIZE
+#define JANET_STRING_BUFFER_SIZE 256
+#endif
+
+#define _JANET_DECLARE_STRING_BUFFERS(size) \
+   _janet_multiref* _janet_strbuf_owners[size] = { 0 }; \
+   jchar _janet_strbufs[size][JANET_STRING_BUFFER_SIZE]
+
 #define _JANET_INSTALL_MULTIREF(jref) \
     _janet_install_multiref(_janet_jnienv, _janet_multirefs, \
         _janet_multirefs_size, &_janet_multiref_pos, (jref))
@@ -89,13 +104,24 @@ static void _janet_destroy_multiref(JNIEnv* _janet_jnienv, _janet_multiref* pref
     }
     /* next, string contents (if any) */
     if (pref->struni) {
-        JNI_RELEASE_STRING_CHARS((jstring)pref->ref, pref->struni);
+        if (pref->strcritical) {
+            JNI_RELEASE_STRING_CRITICAL((jstring)pref->ref, pref->struni);
+        } else if ((const void*)pref->struni != pref->strbuf) {
+            JNI_RELEASE_STRING_CHARS((jstring)pref->ref, pref->struni);
+        }
         pref->struni = 0;
     }
     if (pref->strutf) {
-      JNI_RELEASE_STRING_UTF_CHARS((jstring)pref->ref, pref->strutf);
+      if (pref->strmalloc) {
+          free((void*)pref->strutf);
+      } else if ((const void*)pref->strutf != pref->strbuf) {
+          JNI_RELEASE_STRING_UTF_CHARS((jstring)pref->ref, pref->strutf);
+      }
       pref->strutf = 0;
     }
+    pref->strbuf = 0;
+    pref->strcritical = 0;
+    pref->strmalloc = 0;
 
     pref->arrlength = -1;
 }
@@ -193,6 +219,16 @@ static jint _janet_multiarray_get_length(JNIEnv* _janet_jnienv, _janet_multiref*
                                   idx, _JANET_MULTIARRAY_GET_LENGTH(pref), \
                                   _JANET__FILE__, _JANET__LINE__))
 
+/* lengths of array parameters, computed by Java wrappers (-arglengths) */
+
+#define _JANET_ARRAY_CHECK_BOUNDS_LEN(len, idx) \
+    _JANET_GUARDED_LOCAL_CALL( \
+        _janet_array_check_bounds(_janet_jnienv, idx, len, \
+                                  _JANET__FILE__, _JANET__LINE__))
+
+#define _JANET_MULTIARRAY_SET_LENGTH(pref, len) \
+    ((pref) ? (void)((pref)->arrlength = (len)) : (void)0)
+
 
 /*
 #define _JANET_INC_MULTIREF(pref) \
@@ -267,21 +303,105 @@ static jint _janet_multiarray_get_length(JNIEnv* _janet_jnienv, _janet_multiref*
    _janet_assign_multi2locv(_janet_jnienv, &pl, pr)
 
 
-#define _JANET_ARRAY_GET_JPTR(ref, type) \
+/*
+ * readonly is nonzero for the "const" forms of the operators; the array is
+ * released without copying it back if all pointers taken were read-only
+ */
+
+#define _JANET_ARRAY_GET_JPTR(ref, type, readonly) \
     _janet_array_get_jptr(_janet_jnienv, _janet_arrhtable, ref, \
-                          _jjp##type##_janet, \
-                          _JANET__FILE__, _JANET__LINE__, JANET_USE_FAST_ARRAYS)
+                          _jjp##type##_janet, readonly, \
+                          _JANET__FILE__, _JANET__LINE__)
 
-#define _JANET_ARRAY_GET_CPTR(ref, type) \
+/* used by the translator only if no JNI calls can follow until release */
+#define _JANET_ARRAY_GET_JPTR_CRITICAL(ref, readonly) \
+    _janet_array_get_critical(_janet_jnienv, _janet_arrhtable, ref, \
+                              readonly, _JANET__FILE__, _JANET__LINE__)
+
+#define _JANET_ARRAY_GET_CPTR(ref, type, readonly) \
     _janet_array_get_cptr(_janet_jnienv, _janet_arrhtable, ref, \
                           _jjp##type##_janet, _jcp##type##_janet_arrcnv, \
-                          _JANET__FILE__, _JANET__LINE__, JANET_USE_FAST_ARRAYS)
+                          readonly, _JANET__FILE__, _JANET__LINE__)
+
+#define _JANET_REGION_GET_JPTR(ref, type, readonly, fbase, foffset, flength) \
+    _janet_region_get_jptr(_janet_jnienv, _janet_arrhtable, ref, \
+                           _jjr##type##_janet, readonly, \
+                           fbase, foffset, flength, \
+                           _JANET__FILE__, _JANET__LINE__)
+
+#define _JANET_REGION_GET_CPTR(ref, type, readonly, fbase, foffset, flength) \
+    _janet_region_get_cptr(_janet_jnienv, _janet_arrhtable, ref, \
+                           _jjr##type##_janet, _jcp##type##_janet_arrcnv, \
+                           readonly, fbase, foffset, flength, \
+                           _JANET__FILE__, _JANET__LINE__)
+
+/*
+ * for &buf on direct java.nio buffers; the address is stable, so nothing
+ * needs to be pinned or released. Buffer getters read the fields directly.
+ */
+
+#define _JANET_BUFFER_GET_JPTR(ref, type) \
+    ((_JANET_JPTR_CTYPE_(type)*)JNI_GET_DIRECT_BUFFER_ADDRESS(ref) + \
+     _JANET_BUFFER_GET_POSITION(ref))
+
+#define _JANET_BUFFER_GET_POSITION(ref) \
+    JNI_CALL2(GetIntField, ref, _JANET_FLD_BUFFER_POSITION)
+
+#define _JANET_BUFFER_GET_LIMIT(ref) \
+    JNI_CALL2(GetIntField, ref, _JANET_FLD_BUFFER_LIMIT)
+
+#define _JANET_BUFFER_GET_CAPACITY(ref) \
+    JNI_CALL2(GetIntField, ref, _JANET_FLD_BUFFER_CAPACITY)
+
+#define _JANET_BUFFER_GET_REMAINING(ref) \
+    (_JANET_BUFFER_GET_LIMIT(ref) - _JANET_BUFFER_GET_POSITION(ref))
+
+/* with -metrics, counts conversions of contents not yet obtained */
+#ifdef JANET_METRICS
+#define _JANET_METRICS_STRING(pstr, contents) \
+    ((void)((pstr)->contents ? 0 : _JANET_METRICS_COUNT(strings)))
+#else
+#define _JANET_METRICS_STRING(pstr, contents) ((void)0)
+#endif
 
 #define _JANET_STRING_GET_UNICODE(pstr) \
-    _janet_string_get_unicode(_janet_jnienv, pstr)
+    (_JANET_METRICS_STRING(pstr, struni), \
+     _janet_string_get_unicode(_janet_jnienv, pstr))
 
 #define _JANET_STRING_GET_UTF(pstr) \
-    _janet_string_get_utf(_janet_jnienv, pstr)
+    (_JANET_METRICS_STRING(pstr, strutf), \
+     _janet_string_get_utf(_janet_jnienv, pstr))
+
+#define _JANET_STRING_GET_UNICODE_BUF(pstr, idx) \
+    (_JANET_METRICS_STRING(pstr, struni), \
+     _janet_string_get_unicode_buf(_janet_jnienv, pstr, \
+        &_janet_strbuf_owners[idx], _janet_strbufs[idx]))
+
+#define _JANET_STRING_GET_UTF_BUF(pstr, idx) \
+    (_JANET_METRICS_STRING(pstr, strutf), \
+     _janet_string_get_utf_buf(_janet_jnienv, pstr, \
+        &_janet_strbuf_owners[idx], _janet_strbufs[idx]))
+
+/* used by the translator only if no JNI calls can follow until release */
+#define _JANET_STRING_GET_CRITICAL(pstr) \
+    (_JANET_METRICS_STRING(pstr, struni), \
+     _janet_string_get_critical(_janet_jnienv, pstr))
+
+/* standard UTF-8 (-utf8strings), transcoded by String.getBytes("UTF-8")
+ * and by new String(byte[], "UTF-8") */
+#define _JANET_STRING_GET_UTF8(pstr, getbytes, charset) \
+    (_JANET_METRICS_STRING(pstr, strutf), \
+     _janet_string_get_utf8(_janet_jnienv, pstr, getbytes, charset, 0, 0, \
+        _JANET__FILE__, _JANET__LINE__))
+
+#define _JANET_STRING_GET_UTF8_BUF(pstr, getbytes, charset, idx) \
+    (_JANET_METRICS_STRING(pstr, strutf), \
+     _janet_string_get_utf8(_janet_jnienv, pstr, getbytes, charset, \
+        &_janet_strbuf_owners[idx], _janet_strbufs[idx], \
+        _JANET__FILE__, _JANET__LINE__))
+
+#define _JANET_NEW_STRING_UTF8(str, cls, ctor, charset) \
+    _janet_new_string_utf8(_janet_jnienv, str, cls, ctor, charset)
     
 #define _JANET_CAST_RTCHECK(obj, cls) \
     _JANET_GUARDED_LOCAL_CALL( \
@@ -413,17 +533,31 @@ static void* _janet_array_get_jptr(JNIEnv* _janet_jnienv,
                                    _janet_multiref* ref,
                                    void* (*jptrfun)(JNIEnv*, _janet_arr*,
                                                     const char*, int),
-                                   const char* filename, int lineno, int fastarrays)
+                                   int readonly,
+                                   const char* filename, int lineno)
 {
     _janet_array_install(_janet_jnienv, _janet_arrhtable, ref);
     _JANET_ASSERT(ref->arr);
+    if (!readonly) ref->arr->written = 1;
     if (ref->arr->jptr) return ref->arr->jptr;
-    if (fastarrays) {
-      return _jjp_critical_janet(_janet_jnienv, ref->arr, filename, lineno);
-    }
     return (*jptrfun)(_janet_jnienv, ref->arr, filename, lineno);
 }
 
+static void* _janet_array_get_critical(JNIEnv* _janet_jnienv,
+                                       _janet_arrHashTable* _janet_arrhtable,
+                                       _janet_multiref* ref,
+                                       int readonly,
+                                       const char* filename, int lineno)
+{
+    _janet_array_install(_janet_jnienv, _janet_arrhtable, ref);
+    _JANET_ASSERT(ref->arr);
+    if (!readonly) ref->arr->written = 1;
+    if (ref->arr->jptr) return ref->arr->jptr;
+    /* get the length now, so that arr.length does not call JNI later */
+    _janet_multiarray_get_length(_janet_jnienv, ref);
+    return _jjp_critical_janet(_janet_jnienv, ref->arr, filename, lineno);
+}
+
 static void* _janet_array_get_cptr(JNIEnv* _janet_jnienv,
                                    _janet_arrHashTable* _janet_arrhtable,
                                    _janet_multiref* ref,
@@ -431,17 +565,68 @@ static void* _janet_array_get_cptr(JNIEnv* _janet_jnienv,
                                                     const char*, int),
                                    void* (*cnvfun)(JNIEnv*, _janet_arr*, 
                                                    const char*, int),
-                                   const char* filename, int lineno, int fastarrays)
+                                   int readonly,
+                                   const char* filename, int lineno)
 {
     _janet_array_install(_janet_jnienv, _janet_arrhtable, ref);
     _JANET_ASSERT(ref->arr);
+    if (!readonly) ref->arr->written = 1;
     if (ref->arr->ptr) return ref->arr->ptr;
     _janet_array_get_jptr(_janet_jnienv, _janet_arrhtable, ref, jptrfun,
-                          filename, lineno, fastarrays);
+                          readonly, filename, lineno);
     _JANET_ASSERT(ref->arr->jptr);
     return _jcp_janet_cptr(_janet_jnienv, ref->arr, cnvfun, filename, lineno);
 }
 
+/*
+ * for &region and #&region; the region object is put in the array hashtable,
+ * with the entry describing a native copy of the region
+ */
+
+typedef void* (*_janet_jrptrfun)(JNIEnv*, _janet_arr*,
+                                 jfieldID, jfieldID, jfieldID,
+                                 const char*, int);
+
+static void* _janet_region_get_jptr(JNIEnv* _janet_jnienv,
+                                    _janet_arrHashTable* _janet_arrhtable,
+                                    _janet_multiref* ref,
+                                    _janet_jrptrfun jrptrfun,
+                                    int readonly,
+                                    jfieldID fbase, jfieldID foffset,
+                                    jfieldID flength,
+                                    const char* filename, int lineno)
+{
+    _janet_array_install(_janet_jnienv, _janet_arrhtable, ref);
+    _JANET_ASSERT(ref->arr);
+    if (!readonly) ref->arr->written = 1;
+    if (ref->arr->jptr) return ref->arr->jptr;
+    return (*jrptrfun)(_janet_jnienv, ref->arr, fbase, foffset, flength,
+                       filename, lineno);
+}
+
+static void* _janet_region_get_cptr(JNIEnv* _janet_jnienv,
+                                    _janet_arrHashTable* _janet_arrhtable,
+                                    _janet_multiref* ref,
+                                    _janet_jrptrfun jrptrfun,
+                                    void* (*cnvfun)(JNIEnv*, _janet_arr*,
+                                                    const char*, int),
+                                    int readonly,
+                                    jfieldID fbase, jfieldID foffset,
+                                    jfieldID flength,
+                                    const char* filename, int lineno)
+{
+    _janet_array_install(_janet_jnienv, _janet_arrhtable, ref);
+    _JANET_ASSERT(ref->arr);
+    if (!readonly) ref->arr->written = 1;
+    if (ref->arr->ptr) return ref->arr->ptr;
+    if (!_janet_region_get_jptr(_janet_jnienv, _janet_arrhtable, ref, jrptrfun,
+                                readonly, fbase, foffset, flength,
+                                filename, lineno)) {
+        return 0;
+    }
+    return _jcp_janet_cptr(_janet_jnienv, ref->arr, cnvfun, filename, lineno);
+}
+
 static const jchar* _janet_string_get_unicode(JNIEnv* _janet_jnienv,
 					      _janet_multiref* pstr)
 {
@@ -456,6 +641,122 @@ static const char* _janet_string_get_utf(JNIEnv* _janet_jnienv,
                         : (pstr->strutf = JNI_GET_STRING_UTF_CHARS((jstring)pstr->ref, 0));
 }
 
+/* The buffer may be taken unless it still holds contents of another live
+ * string, or this string already holds the other encoding in a buffer. */
+static int _janet_string_buffer_free(_janet_multiref* pstr,
+                                     _janet_multiref* owner, const void* buf)
+{
+    if (pstr->strbuf) return 0;
+    return !owner || owner == pstr || owner->strbuf != buf;
+}
+
+static const jchar* _janet_string_get_unicode_buf(JNIEnv* _janet_jnienv,
+                                                  _janet_multiref* pstr,
+                                                  _janet_multiref** powner,
+                                                  jchar* buf)
+{
+    jsize len;
+    if (pstr->struni) return pstr->struni;
+    if (_janet_string_buffer_free(pstr, *powner, buf)) {
+        len = JNI_GET_STRING_LENGTH((jstring)pstr->ref);
+        if (len <= JANET_STRING_BUFFER_SIZE) {
+            JNI_GET_STRING_REGION((jstring)pstr->ref, 0, len, buf);
+            *powner = pstr;
+            pstr->strbuf = buf;
+            return pstr->struni = buf;
+        }
+    }
+    return _janet_string_get_unicode(_janet_jnienv, pstr);
+}
+
+static const char* _janet_string_get_utf_buf(JNIEnv* _janet_jnienv,
+                                             _janet_multiref* pstr,
+                                             _janet_multiref** powner,
+                                             jchar* buf)
+{
+    const jsize size = 2 * JANET_STRING_BUFFER_SIZE;
+    char* cbuf = (char*)buf;
+    jsize len, utflen;
+    if (pstr->strutf) return pstr->strutf;
+    if (_janet_string_buffer_free(pstr, *powner, buf)) {
+        len = JNI_GET_STRING_LENGTH((jstring)pstr->ref);
+        /* modified UTF-8 takes at most 3 bytes per character */
+        utflen = (3 * len < size) ? 3 * len
+               : (len < size) ? JNI_GET_STRING_UTF_LENGTH((jstring)pstr->ref)
+               : size;
+        if (utflen < size) {
+            memset(cbuf, 0, utflen + 1);
+            JNI_GET_STRING_UTF_REGION((jstring)pstr->ref, 0, len, cbuf);
+            *powner = pstr;
+            pstr->strbuf = buf;
+            return pstr->strutf = cbuf;
+        }
+    }
+    return _janet_string_get_utf(_janet_jnienv, pstr);
+}
+
+static const jchar* _janet_string_get_critical(JNIEnv* _janet_jnienv,
+                                               _janet_multiref* pstr)
+{
+    if (pstr->struni) return pstr->struni;
+    pstr->strcritical = 1;
+    return pstr->struni = JNI_GET_STRING_CRITICAL((jstring)pstr->ref, 0);
+}
+
+/* The buffer, if given, is used for encodings shorter than its size in
+ * bytes; otherwise, the NUL-terminated copy is allocated with malloc. */
+static const char* _janet_string_get_utf8(JNIEnv* _janet_jnienv,
+                                          _janet_multiref* pstr,
+                                          jmethodID getbytes, jstring charset,
+                                          _janet_multiref** powner,
+                                          jchar* buf,
+                                          const char* filename,
+                                          unsigned int lineno)
+{
+    const jsize size = 2 * JANET_STRING_BUFFER_SIZE;
+    jbyteArray bytes;
+    jsize len;
+    char* cstr;
+    if (pstr->strutf) return pstr->strutf;
+    bytes = (jbyteArray)JNI_CALL3(CallObjectMethod, pstr->ref, getbytes,
+                                  charset);
+    if (JNI_EXCEPTION_CHECK()) return 0;
+    len = JNI_GET_ARRAY_LENGTH(bytes);
+    if (powner && len < size &&
+            _janet_string_buffer_free(pstr, *powner, buf)) {
+        cstr = (char*)buf;
+        *powner = pstr;
+        pstr->strbuf = buf;
+    } else if ((cstr = (char*)malloc(len + 1)) != 0) {
+        pstr->strmalloc = 1;
+    } else {
+        JNI_DELETE_LOCAL_REF(bytes);
+        _je_janet_throw(_janet_jnienv, _JANET_ERR_OUT_OF_MEMORY, filename,
+                        lineno, "cannot copy a string");
+        return 0;
+    }
+    JNI_CALL4(GetByteArrayRegion, bytes, 0, len, (jbyte*)cstr);
+    cstr[len] = 0;
+    JNI_DELETE_LOCAL_REF(bytes);
+    return pstr->strutf = cstr;
+}
+
+static jstring _janet_new_string_utf8(JNIEnv* _janet_jnienv, const char* str,
+                                      jclass cls, jmethodID ctor,
+                                      jstring charset)
+{
+    jsize len;
+    jbyteArray bytes;
+    jstring result;
+    if (!str) return 0;
+    len = (jsize)strlen(str);
+    if (!(bytes = JNI_CALL1(NewByteArray, len))) return 0;
+    JNI_CALL4(SetByteArrayRegion, bytes, 0, len, (const jbyte*)str);
+    result = (jstring)JNI_CALL4(NewObject, cls, ctor, bytes, charset);
+    JNI_DELETE_LOCAL_REF(bytes);
+    return result;
+}
+
 
      /*
 #define _JANET_ARRAY_GET_JPTR(ref, type) \
@@ -507,13 +808,29 @@ static const char* _janet_string_get_utf(JNIEnv* _janet_jnienv,
  */
 
 
+/* Exceptions and early returns are propagated to the innermost enclosing
+ * exception context, by default with longjmp() to the setjmp() done when
+ * entering its try clause. Local variables modified within the context
+ * must then be volatile. If JANET_NO_SETJMP is defined (the translator does
+ * so with -nosetjmp), they are propagated with goto to a local label of the
+ * context instead. This requires GNU C extensions (local labels, and jumps
+ * out of statement expressions), supported by GCC and Clang. */
+
+#ifdef JANET_NO_SETJMP
+#define _JANET_VOLATILE
+#else
+#define _JANET_VOLATILE volatile
+#endif
+
 /* structure for local exception info */
 
 struct _janet_exstruct {
   /*  int isglobal; */
-  volatile jthrowable catched;
-  volatile int jmpmark;
+  _JANET_VOLATILE jthrowable catched;
+  _JANET_VOLATILE int jmpmark;
+#ifndef JANET_NO_SETJMP
   jmp_buf jmpbuf;
+#endif
 };
 
 /* one global (outermost) exception structure */
@@ -522,14 +839,14 @@ struct _janet_exstruct {
 
 /* declarations */
 
-#define _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS_V \
-    volatile jthrowable _janet_exception = 0;    \
-    volatile int _janet_return_in_progress = 0   
+#define _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS_V     \
+    _JANET_VOLATILE jthrowable _janet_exception = 0; \
+    _JANET_VOLATILE int _janet_return_in_progress = 0   
 
-#define _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS(type) \
-    volatile jthrowable _janet_exception = 0;        \
-    volatile int _janet_return_in_progress = 0;      \
-    volatile type _janet_ret = (type)0
+#define _JANET_DECLARE_LOCAL_ABRUPT_STATEMENTS(type)  \
+    _JANET_VOLATILE jthrowable _janet_exception = 0;  \
+    _JANET_VOLATILE int _janet_return_in_progress = 0; \
+    _JANET_VOLATILE type _janet_ret = (type)0
 
 
 /* throwing exceptions and early returns */
@@ -545,14 +862,24 @@ struct _janet_exstruct {
 #define _JANET_RETURN_LOCAL(retval)                    \
    ((_janet_ret = (retval)), _janet_return_in_progress = JNI_TRUE, _JANET_LOCAL_PROPAGATE_RETURN())
 
-#define _JANET_THROW_GLOBAL(e, ret)              \
+/* throwing null throws NullPointerException, as in Java */
+#define _JANET_GLOBAL_THROWABLE(e)                                 \
+   ((e) ? (jthrowable)(e) : _JANET_NEW_EXCEPTION(                  \
+               _janet_jnienv,                                      \
+               _JANET_EXC_NULL_POINTER,                            \
+               _JANET__FILE__, _JANET__LINE__, ""))
+
+#define _JANET_THROW_GLOBAL_V(e)                 \
    do {                                          \
-      JNI_THROW(e);                              \
-      return ret;                                \
+      JNI_THROW(_JANET_GLOBAL_THROWABLE(e));     \
+      return;                                    \
    } while(0)
 
-#define _JANET_THROW_GLOBAL_V(e) _JANET_GLOBAL_THROW(e, )
-#define _JANET_THROW_GLOBAL_0(e) _JANET_GLOBAL_THROW(e, 0)
+#define _JANET_THROW_GLOBAL_0(e)                 \
+   do {                                          \
+      JNI_THROW(_JANET_GLOBAL_THROWABLE(e));     \
+      return 0;                                  \
+   } while(0)
 
 #define _JANET_RETURN_GLOBAL_V()                   \
    return
@@ -592,12 +919,26 @@ static void _janet_eat_exception(JNIEnv* _janet_jnienv, volatile jthrowable* t)
 
 /* propagating exceptions and early returns */
 
+#ifdef JANET_NO_SETJMP
+
+#define _JANET_LOCAL_PROPAGATE_EXCEPTION()        \
+   ({ _janet_ex.jmpmark = _janet_ex.jmpmark+1;    \
+      goto _janet_ex_dispatch; (void)0; })
+
+#define _JANET_LOCAL_PROPAGATE_RETURN()           \
+   ({ _janet_ex.jmpmark = (_janet_ex.jmpmark+1) | _JANET_EARLY_RETURN_MARKER; \
+      goto _janet_ex_dispatch; (void)0; })
+
+#else
+
 #define _JANET_LOCAL_PROPAGATE_EXCEPTION()        \
    longjmp(_janet_ex.jmpbuf, _janet_ex.jmpmark+1)
 
 #define _JANET_LOCAL_PROPAGATE_RETURN()           \
    longjmp(_janet_ex.jmpbuf, (_janet_ex.jmpmark+1) | _JANET_EARLY_RETURN_MARKER)
 
+#endif
+
 #define _JANET_GLOBAL_PROPAGATE_EXCEPTION(ret)    \
    do { _JANET_ASSERT(_janet_exception);          \
         JNI_THROW(_janet_exception);              \
@@ -663,12 +1004,28 @@ static void _janet_eat_exception(JNIEnv* _janet_jnienv, volatile jthrowable* t)
 #define _JANET_CLOSE_BRACKET }
 
 
+#ifdef JANET_NO_SETJMP
+
+/* Propagation jumps back to the label, with jmpmark indicating where to go
+ * next, just like setjmp() returning after longjmp(). */
+
+#define _JANET_EXCEPTION_CONTEXT_BEGIN \
+    _JANET_OPEN_BRACKET __label__ _janet_ex_dispatch; \
+    struct _janet_exstruct _janet_ex = { 0, 0 }; 
+
+#define _JANET_TRY                                      \
+   _janet_ex_dispatch: if (!_janet_ex.jmpmark)
+
+#else
+
 #define _JANET_EXCEPTION_CONTEXT_BEGIN \
     _JANET_OPEN_BRACKET struct _janet_exstruct _janet_ex = { 0, 0 }; 
 
 #define _JANET_TRY                                      \
    if (!(_janet_ex.jmpmark = setjmp(_janet_ex.jmpbuf)))
 
+#endif
+
 #define _JANET_CATCH(excls, exobj)                            \
    else if (_janet_ex.jmpmark == _JANET_CATCH_MARKER &&       \
             (_JANET_ASSERT(_janet_exception),                 \
@@ -725,6 +1082,122 @@ static void _janet_eat_exception(JNIEnv* _janet_jnienv, volatile jthrowable* t)
 
 
 
+/**
+ * Local reference frames
+ */
+
+/* Number of local references guaranteed to be available within a frame;
+ * the VM may allow more. */
+#ifndef JANET_LOCAL_FRAME_CAPACITY
+#define JANET_LOCAL_FRAME_CAPACITY 16
+#endif
+
+/* The frame is pushed at the beginning of the try clause of the block, and
+ * popped in its destruct clause (or by a guard object in C++), after block
+ * variables are released. References kept in the multiref pool are
+ * remembered when the frame is pushed; those installed within the frame are
+ * deleted with it, so they must not be deleted again when their slots are
+ * reused. Pending exception and return value are moved to the outer frame. */
+
+#define _JANET_DECLARE_LOCAL_FRAME(size)         \
+   _JANET_VOLATILE int _janet_frame_pushed = 0;  \
+   jobject _JANET_VOLATILE _janet_frame_refs[size]
+
+#define _JANET_PUSH_LOCAL_FRAME(pool, size)                            \
+   ((_janet_frame_pushed = _janet_push_local_frame(_janet_jnienv,      \
+        pool, size, _janet_frame_refs))                                \
+      ? (void)0 : _JANET_LOCAL_HANDLE_EXCEPTION())
+
+#define _JANET_POP_LOCAL_FRAME(pool, size)                             \
+   (_janet_frame_pushed                                                \
+      ? (_janet_frame_pushed = 0,                                      \
+         _janet_pop_local_frame(_janet_jnienv, pool, size,             \
+            _janet_frame_refs, &_janet_exception, 0))                  \
+      : (void)0)
+
+#define _JANET_POP_LOCAL_FRAME_RET(pool, size)                         \
+   (_janet_frame_pushed                                                \
+      ? (_janet_frame_pushed = 0,                                      \
+         _janet_pop_local_frame(_janet_jnienv, pool, size,             \
+            _janet_frame_refs, &_janet_exception,                      \
+            (jobject volatile*)&_janet_ret))                           \
+      : (void)0)
+
+static int _janet_push_local_frame(JNIEnv* _janet_jnienv,
+                                   _janet_multiref* pool, size_t size,
+                                   jobject volatile* refs)
+{
+    size_t i;
+    if (JNI_PUSH_LOCAL_FRAME(JANET_LOCAL_FRAME_CAPACITY) < 0) return 0;
+    for (i=0; i<size; i++) refs[i] = pool[i].ref;
+    return 1;
+}
+
+static void _janet_pop_local_frame(JNIEnv* _janet_jnienv,
+                                   _janet_multiref* pool, size_t size,
+                                   jobject volatile* refs,
+                                   volatile jthrowable* exc,
+                                   jobject volatile* ret)
+{
+    size_t i;
+    for (i=0; i<size; i++) {
+        if (pool[i].ref != refs[i]) {
+            _JANET_ASSERT(!pool[i].refcount);
+            pool[i].ref = 0;
+            pool[i].arrlength = -1;
+        }
+    }
+    if (*exc) {
+        *exc = (jthrowable)JNI_POP_LOCAL_FRAME(*exc);
+    } else if (ret && *ret) {
+        *ret = JNI_POP_LOCAL_FRAME(*ret);
+    } else {
+        JNI_POP_LOCAL_FRAME(0);
+    }
+}
+
+#ifdef __cplusplus
+
+// Block-level guard to pop the local frame after the block variables
+// are released by their deleters.
+class _JanetLocalFrameGuard {
+public:
+    _JanetLocalFrameGuard(JNIEnv* env, _janet_multiref* pool, size_t size,
+                          jobject volatile* refs, volatile int* pushed,
+                          volatile jthrowable* exc, jobject volatile* ret)
+        : env_(env), pool_(pool), size_(size), refs_(refs), pushed_(pushed),
+          exc_(exc), ret_(ret) {}
+
+    ~_JanetLocalFrameGuard() {
+        if (*pushed_) {
+            *pushed_ = 0;
+            _janet_pop_local_frame(env_, pool_, size_, refs_, exc_, ret_);
+        }
+    }
+
+private:
+    JNIEnv* env_;
+    _janet_multiref* pool_;
+    size_t size_;
+    jobject volatile* refs_;
+    volatile int* pushed_;
+    volatile jthrowable* exc_;
+    jobject volatile* ret_;
+};
+
+#define _JANET_DECLARE_LOCAL_FRAME_GUARD(pool, size)                    \
+    _JanetLocalFrameGuard _janet_frame_guard(_janet_jnienv, pool, size, \
+        _janet_frame_refs, &_janet_frame_pushed, &_janet_exception, 0)
+
+#define _JANET_DECLARE_LOCAL_FRAME_GUARD_RET(pool, size)                \
+    _JanetLocalFrameGuard _janet_frame_guard(_janet_jnienv, pool, size, \
+        _janet_frame_refs, &_janet_frame_pushed, &_janet_exception,     \
+        (jobject volatile*)&_janet_ret)
+
+#endif
+
+
+
 /**
  * Synchronization
  */
@@ -755,16 +1228,8 @@ private:
  * Verification
  */
 
-#define _JANET_GLOBAL_ENSURE_NOT_NULL(ref, msg)         \
-   do {                                                 \
-       if (ref) {                                       \
-	   _JANET_GLOBAL_THROW(_JANET_NEW_EXCEPTION(    \
-               _janet_jnienv,                           \
-               _JANET_EXC_NULL_POINTER,                 \
-               _JANET__FILE__, _JANET__LINE__,          \
-	       (msg)));                                 \
-       }                                                \
-   } while(0)
+/* null is checked by _JANET_THROW_GLOBAL_* */
+#define _JANET_GLOBAL_ENSURE_NOT_NULL(ref, msg) ((void)0)
 
 #define _JANET_LOCAL_ENSURE_ARRSIZE_NONNEGATIVE(idx, val)     \
    ((val >= 0) ? 0 : (_JANET_THROW_LOCAL(_JANET_NEW_EXCEPTION( \
@@ -781,6 +1246,14 @@ private:
                      _JANET__FILE__, _JANET__LINE__, \
 		     (msg))), 0))
 
+#define _JANET_LOCAL_ENSURE_DIRECT_BUFFER(ref) \
+   (JNI_GET_DIRECT_BUFFER_ADDRESS(ref) ? 0 : \
+       (_JANET_THROW_LOCAL(_JANET_NEW_EXCEPTION( \
+                     _janet_jnienv, \
+                     _JANET_EXC_ILLEGAL_ARGUMENT, \
+                     _JANET__FILE__, _JANET__LINE__, \
+		     "not a direct buffer")), 0))
+
 #define _JANET_LOCAL_ENSURE_DIVISOR_NOT_ZERO(div) \
    ((div) ? 0 : (_JANET_THROW_LOCAL(_JANET_NEW_EXCEPTION( \
                      _janet_jnienv, \
@@ -41,6 +41,23 @@ typedef struct _janet_str_struct {
   const char* utf;
 } _janet_str;
 
+/*
+ * Tables shared by all classes of a library, if the translator was run
+ * with -linkunits. They are linked when the first class of the library is
+ * initialized, and released when the last one is finalized.
+ */
+typedef struct _janet_linkunit_struct {
+  int refcount;
+  _janet_cls* classes;
+  int classno;
+  _janet_fld* fields;
+  int fieldno;
+  _janet_mth* methods;
+  int methodno;
+  _janet_str* strings;
+  int stringno;
+} _janet_linkunit;
+
 extern _janet_cls _jc_janet_classes[];
 extern _janet_mth _jm_janet_methods[];
 extern _janet_fld _jf_janet_fields[];
@@ -62,6 +79,12 @@ extern _janet_fld _jf_janet_fields[];
 #define _JANET_EXC_ARITHMETIC                ((jthrowable)(_jc_janet_classes[14].id))
 #define _JANET_EXC_CLASS_CAST                ((jthrowable)(_jc_janet_classes[15].id))
 #define _JANET_CLS_STRING                    ((jthrowable)(_jc_janet_classes[16].id))
+#define _JANET_CLS_BUFFER                    (_jc_janet_classes[17].id)
+#define _JANET_EXC_ILLEGAL_ARGUMENT          ((jthrowable)(_jc_janet_classes[18].id))
+
+#define _JANET_FLD_BUFFER_POSITION           (_jf_janet_fields[0].id)
+#define _JANET_FLD_BUFFER_LIMIT              (_jf_janet_fields[1].id)
+#define _JANET_FLD_BUFFER_CAPACITY           (_jf_janet_fields[2].id)
 
 #define _JANET_MTH_OBJECT_HASH_CODE          (_jm_janet_methods[0].id)
 #define _JANET_MTH_THROWABLE_GET_MESSAGE     (_jm_janet_methods[1].id)
@@ -78,7 +101,12 @@ extern _janet_fld _jf_janet_fields[];
  * are loaded on first use. With MEDIUM, the classes are loaded immediately,
  * but members are resolved on first use.
  *
- * MEDIUM and LAZY modes are currently discouraged as they are not thread-safe.
+ * In MEDIUM and LAZY modes, the identifiers are published atomically, so
+ * that concurrent first calls may race safely: every thread either sees a
+ * fully resolved identifier, or resolves it by itself; the loser of the race
+ * discards its own global reference. This requires compiler support for
+ * atomic operations (see _JANET_ATOMIC_* below); if it is not available,
+ * use EAGER mode in multi-threaded applications.
  */
 #define JANET_LINK_MODE_LAZY   0
 #define JANET_LINK_MODE_MEDIUM 1
@@ -88,6 +116,37 @@ extern _janet_fld _jf_janet_fields[];
 #define JANET_LINK_MODE JANET_LINK_MODE_EAGER
 #endif
 
+/*
+ * Atomic primitives used to publish lazily resolved identifiers, to guard
+ * the reference count of the run-time library, and to update metrics. They
+ * may be predefined by the user for compilers not recognized below.
+ */
+#ifndef _JANET_ATOMIC_LOAD
+#if defined(__ATOMIC_ACQUIRE)
+#define _JANET_ATOMIC_LOAD(ptr) __atomic_load_n(ptr, __ATOMIC_ACQUIRE)
+#define _JANET_ATOMIC_STORE(ptr, val) __atomic_store_n(ptr, val, __ATOMIC_RELEASE)
+#define _JANET_ATOMIC_CAS(ptr, oldval, newval) \
+   __sync_bool_compare_and_swap(ptr, oldval, newval)
+#define _JANET_ATOMIC_ADD(ptr, val) __atomic_fetch_add(ptr, val, __ATOMIC_RELAXED)
+#elif defined(__GNUC__)
+#define _JANET_ATOMIC_LOAD(ptr) __sync_fetch_and_add(ptr, 0)
+#define _JANET_ATOMIC_STORE(ptr, val) \
+   do { __sync_synchronize(); *(ptr) = (val); } while (0)
+#define _JANET_ATOMIC_CAS(ptr, oldval, newval) \
+   __sync_bool_compare_and_swap(ptr, oldval, newval)
+#define _JANET_ATOMIC_ADD(ptr, val) __sync_fetch_and_add(ptr, val)
+#else
+#define JANET_NO_ATOMICS 1
+#define _JANET_ATOMIC_LOAD(ptr) (*(ptr))
+#define _JANET_ATOMIC_STORE(ptr, val) do { *(ptr) = (val); } while (0)
+#define _JANET_ATOMIC_CAS(ptr, oldval, newval) \
+   (*(ptr) == (oldval) ? (*(ptr) = (newval), 1) : 0)
+#endif
+#endif
+#ifndef _JANET_ATOMIC_ADD
+#define _JANET_ATOMIC_ADD(ptr, val) (*(ptr) += (val))
+#endif
+
 #define _JANET_CLASS(idx) (_janet_depclasses[idx].id)
 #define _JANET_METHOD(idx) (_janet_depmethods[idx].id)
 #define _JANET_FIELD(idx) (_janet_depfields[idx].id)
@@ -95,7 +154,7 @@ extern _janet_fld _jf_janet_fields[];
 
 #define _JANET_LOAD_CLASS(idx, result) \
    do { \
-      if (!_JANET_CLASS(idx) &&\
+      if (!_JANET_ATOMIC_LOAD(&_JANET_CLASS(idx)) &&\
             !_j3_janet_loadClass(_janet_jnienv, &_janet_depclasses[idx],\
                                  _JANET__FILE__, _JANET__LINE__))\
          return result;\
@@ -106,7 +165,7 @@ extern _janet_fld _jf_janet_fields[];
 
 #define _JANET_LOAD_FIELD(idx, result) \
    do { \
-      if (!_JANET_FIELD(idx) &&\
+      if (!_JANET_ATOMIC_LOAD(&_JANET_FIELD(idx)) &&\
             !_j4_janet_loadField(_janet_jnienv, &_janet_depfields[idx],\
                                  _JANET__FILE__, _JANET__LINE__))\
          return result;\
@@ -117,7 +176,7 @@ extern _janet_fld _jf_janet_fields[];
 
 #define _JANET_LOAD_METHOD(idx, result) \
    do { \
-      if (!_JANET_METHOD(idx) &&\
+      if (!_JANET_ATOMIC_LOAD(&_JANET_METHOD(idx)) &&\
             !_j5_janet_loadMethod(_janet_jnienv, &_janet_depmethods[idx],\
                                   _JANET__FILE__, _JANET__LINE__))\
          return result;\
@@ -128,7 +187,7 @@ extern _janet_fld _jf_janet_fields[];
 
 #define _JANET_LOAD_STRING(idx, result) \
    do { \
-      if (!_JANET_STRING(idx) &&\
+      if (!_JANET_ATOMIC_LOAD(&_JANET_STRING(idx)) &&\
             !_j9_janet_loadString(_janet_jnienv, &_janet_depstrings[idx],\
                                   _JANET__FILE__, _JANET__LINE__))\
          return result;\
@@ -152,6 +211,25 @@ int _ja_janet_assert(JNIEnv*, const char*, const char*, unsigned int);
 #define _JANET_INIT() _j1_janet_init(_janet_jnienv)
 #define _JANET_FINALIZE() _j2_janet_finalize(_janet_jnienv);
 
+/*
+ * JNIEnv for the calling thread, for native threads that call back into
+ * Java. A thread unknown to the VM is attached as a daemon on first use and
+ * detached when it exits. Returns NULL if no Janet class has been loaded yet.
+ */
+#define JANET_ATTACHED_ENV() _jt1_janet_attachedEnv()
+
+#define _JANET_THREAD_CLASS(ptc) _jt2_janet_threadClass(_janet_jnienv, ptc)
+#define _JANET_RELEASE_THREAD_CLASS(ptc) \
+    _jt3_janet_releaseThreadClass(_janet_jnienv, ptc)
+
+/* per-method metrics (-metrics) */
+#define _JANET_METRICS_START() _jx1_janet_nanoTime()
+#define _JANET_METRICS_END(metrics, start) _jx2_janet_countCall(metrics, start)
+#define _JANET_METRICS_COUNT(counter) \
+    _JANET_ATOMIC_ADD(&_janet_metrics->counter, (jlong)1)
+#define _JANET_METRICS_SNAPSHOT(metrics, size) \
+    _jx4_janet_metricsSnapshot(_janet_jnienv, metrics, size)
+
 #define _JANET_LINK(classes, classno, fields, fieldsno, methods, methodsno, strings, stringsno) \
    if (JANET_LINK_MODE >= JANET_LINK_MODE_MEDIUM) {\
       _j6_janet_loadClasses(_janet_jnienv, classes, classno,\
@@ -166,12 +244,22 @@ int _ja_janet_assert(JNIEnv*, const char*, const char*, unsigned int);
 #define _JANET_UNLINK(classes, classno) \
    _j8_janet_releaseClasses(_janet_jnienv, classes, classno);
 
+#define _JANET_LINK_UNIT(unit) \
+   _j10_janet_linkUnit(_janet_jnienv, unit, JANET_LINK_MODE, \
+                       _JANET__FILE__, _JANET__LINE__);
+
+#define _JANET_UNLINK_UNIT(unit) \
+   _j11_janet_unlinkUnit(_janet_jnienv, unit);
+
+/*
+ * Used in janetClassInit$ if the translator was run with -registernatives.
+ * On failure, the exception thrown by RegisterNatives is propagated.
+ */
+#define _JANET_REGISTER_NATIVES(methods, methodsno) \
+   if (JNI_REGISTER_NATIVES(_janet_jthisclass, methods, methodsno) < 0) return;
 
 
 
-#ifndef JANET_USE_FAST_ARRAYS
-#define JANET_USE_FAST_ARRAYS 0
-#endif
 
 /**
  * Hashing references
@@ -191,6 +279,9 @@ typedef struct arrHashEntry_struct {
     void* ptr;
     struct _janet_arrHashTable_struct* htab;
     void (JNICALL *releasef)();
+    jarray region;       /* for regions: the base array; ref is the region */
+    jint offset;         /* for regions: the offset in the base array */
+    int written;         /* whether a writable pointer has been taken */
 } _janet_arr;
 
 typedef struct _janet_multiref_struct {
@@ -200,6 +291,9 @@ typedef struct _janet_multiref_struct {
     jint arrlength;      /* for arrays only */
     const jchar* struni; /* for strings only */
     const char* strutf;  /* for strings only */
+    const void* strbuf;  /* stack buffer holding struni or strutf, if any */
+    int strcritical;     /* struni obtained with GetStringCritical */
+    int strmalloc;       /* strutf is standard UTF-8 allocated with malloc */
   /*    struct _janet_multirefHashTable_struct* htab; */
 } _janet_multiref;
 
@@ -207,8 +301,46 @@ typedef _janet_multiref* _janet_multiref_ptr;
 
 /**
  * Hashing arrays
+ *
+ * The first JANET_ARRAY_INLINE_SIZE arrays used by a native method are
+ * kept on a short inline list, and found by identity comparison only.
+ * Only further arrays are hashed, which requires calling Object.hashCode.
+ * The size must not exceed the minimum size of the hash table (19).
  */
 
+#ifndef JANET_ARRAY_INLINE_SIZE
+#define JANET_ARRAY_INLINE_SIZE 4
+#endif
+
+/*
+ * Counters of a native method, kept with -metrics and read through the
+ * janetMetrics$ method of its class. They are updated with atomic adds.
+ * The order of fields is that of the counters reported to Java.
+ */
+/*
+ * The class of thread entries (-threadentries), kept in a weak global
+ * reference. Entries count themselves in users while they take a local
+ * reference to it, so that finalization, which clears it, waits for them
+ * before deleting it.
+ */
+typedef struct _janet_threadcls_struct {
+    jclass cls;
+    int users;
+} _janet_threadcls;
+
+typedef struct _janet_methodMetrics_struct {
+    jlong calls;
+    jlong nanos;         /* total wall time */
+    jlong maxNanos;
+    jlong upcalls;       /* Java methods and constructors called */
+    jlong pins;          /* arrays accessed in place */
+    jlong copies;        /* arrays copied to native buffers */
+    jlong bytesCopied;
+    jlong strings;       /* string conversions, either way */
+} _janet_methodMetrics;
+
+#define _JANET_METRICS_COUNTERS 8
+
 typedef struct _janet_arrHashTable_struct {
     int sizeidx;
     jint fill;
@@ -216,6 +348,10 @@ typedef struct _janet_arrHashTable_struct {
     struct _janet_arrHashTable_struct *next;
     _janet_arr *data;
     int dynamic;
+    int hashed;     /* whether any array has been hashed */
+    int inlsize;    /* number of used inline list entries */
+    _janet_arr* inl[JANET_ARRAY_INLINE_SIZE];
+    _janet_methodMetrics* metrics;  /* with -metrics only */
 } _janet_arrHashTable;
 
 #define _JANET__CAT3(a, b, c) a##b##c
@@ -243,6 +379,55 @@ typedef struct _janet_arrHashTable_struct {
 	return 0; \
     } \
     ref->releasef = _JANET_JPTR_FRELEASE(type);\
+    if (ref->htab && ref->htab->metrics) { \
+	_jx3_janet_countArray(ENV, ref, sizeof(_JANET_JPTR_CTYPE_(type))); \
+    } \
+    return ref->jptr; }
+
+/* for regions: the region is copied to (and back from) a native buffer */
+
+#define _JANET_JRPTR__BUILD_FGET(Type) \
+    _JANET__CAT3((*ENV)->Get, Type, ArrayRegion)\
+
+#define _JANET_JRPTR__BUILD_FSET(Type) \
+    _JANET__CAT3((*ENV)->Set, Type, ArrayRegion)\
+
+#define _JANET_JRPTR_FGET(type) \
+    _JANET_JRPTR__BUILD_FGET(_JANET_JPTR_TYPE_(type))
+
+#define _JANET_JRPTR_FSET(type) \
+    _JANET_JRPTR__BUILD_FSET(_JANET_JPTR_TYPE_(type))
+
+#define _JANET_IMPL_JRPTR(type) \
+    void* _jjr##type##_janet(JNIEnv* ENV, _janet_arr* ref, \
+                             jfieldID fbase, jfieldID foffset, jfieldID flength, \
+	                     const char* filename, int lineno) { \
+    _JANET_ASSERT(ref); _JANET_ASSERT(ref->ref); _JANET_ASSERT(!ref->jptr && !ref->ptr); \
+    ref->region = (jarray)(*ENV)->GetObjectField(ENV, ref->ref, fbase); \
+    ref->offset = (*ENV)->GetIntField(ENV, ref->ref, foffset); \
+    ref->length = (*ENV)->GetIntField(ENV, ref->ref, flength); \
+    ref->jptr = malloc(ref->length > 0 \
+        ? ref->length * sizeof(_JANET_JPTR_CTYPE_(type)) : 1); \
+    if (!ref->jptr) { \
+	(*ENV)->DeleteLocalRef(ENV, ref->region); \
+	ref->region = 0; \
+	_je_janet_throw(ENV, _JANET_ERR_OUT_OF_MEMORY, filename, lineno, errcnt2); \
+	return 0; \
+    } \
+    _JANET_JRPTR_FGET(type)(ENV, ref->region, ref->offset, ref->length, \
+                            (_JANET_JPTR_CTYPE_(type)*)ref->jptr); \
+    if ((*ENV)->ExceptionCheck(ENV)) { \
+	free(ref->jptr); \
+	ref->jptr = 0; \
+	(*ENV)->DeleteLocalRef(ENV, ref->region); \
+	ref->region = 0; \
+	return 0; \
+    } \
+    ref->isCopy = JNI_TRUE; \
+    ref->releasef = _JANET_JRPTR_FSET(type);\
+    if (ref->htab && ref->htab->metrics) { \
+	_jx3_janet_countArray(ENV, ref, sizeof(_JANET_JPTR_CTYPE_(type))); \
+    } \
     return ref->jptr; }
 
 #define _JANET_JPTR_TYPE_(type) _JANET_JPTR_TYPE_##type
@@ -255,6 +440,16 @@ typedef struct _janet_arrHashTable_struct {
 #define _JANET_JPTR_TYPE_F  Float
 #define _JANET_JPTR_TYPE_D  Double
 
+#define _JANET_JPTR_CTYPE_(type) _JANET_JPTR_CTYPE_##type
+#define _JANET_JPTR_CTYPE_Z  jboolean
+#define _JANET_JPTR_CTYPE_B  jbyte
+#define _JANET_JPTR_CTYPE_C  jchar
+#define _JANET_JPTR_CTYPE_S  jshort
+#define _JANET_JPTR_CTYPE_I  jint
+#define _JANET_JPTR_CTYPE_J  jlong
+#define _JANET_JPTR_CTYPE_F  jfloat
+#define _JANET_JPTR_CTYPE_D  jdouble
+
 #define _JANET_REFARRAY_LENGTH(jref) \
     (_JANET_ASSERT(jref && jref->ref), \
         (jref->length >= 0 ? jref->length : \
@@ -302,6 +497,16 @@ typedef struct _janet_arrHashTable_struct {
 
 int _j1_janet_init(JNIEnv*);
 void _j2_janet_finalize(JNIEnv*);
+#ifndef _WIN32
+JNIEnv* _jt1_janet_attachedEnv(void);
+jclass _jt2_janet_threadClass(JNIEnv*, _janet_threadcls*);
+void _jt3_janet_releaseThreadClass(JNIEnv*, _janet_threadcls*);
+#endif
+
+jlong _jx1_janet_nanoTime(void);
+void _jx2_janet_countCall(_janet_methodMetrics*, jlong);
+void _jx3_janet_countArray(JNIEnv*, _janet_arr*, int);
+jlongArray _jx4_janet_metricsSnapshot(JNIEnv*, _janet_methodMetrics**, int);
 
 int _j3_janet_loadClass(JNIEnv*, _janet_cls*, const char*, unsigned int);
 int _j4_janet_loadField(JNIEnv*, _janet_fld*, const char*, unsigned int);
@@ -315,6 +520,9 @@ void _j8_janet_releaseClasses(JNIEnv*, _janet_cls*, int);
 
 int _j9_janet_loadString(JNIEnv*, _janet_str*, const char*, unsigned int);
 
+int _j10_janet_linkUnit(JNIEnv*, _janet_linkunit*, int, const char*, unsigned int);
+void _j11_janet_unlinkUnit(JNIEnv*, _janet_linkunit*);
+
 void _je_janet_throw(JNIEnv*, jthrowable, const char*, unsigned int,
 		     const char*, ...);
 jthrowable _je1_janet_newException(JNIEnv*, jthrowable, const char*, unsigned int,
@@ -342,6 +550,23 @@ void* _jjpJ_janet(JNIEnv*, _janet_arr*, const char*, int);
 void* _jjpF_janet(JNIEnv*, _janet_arr*, const char*, int);
 void* _jjpD_janet(JNIEnv*, _janet_arr*, const char*, int);
 
+void* _jjrZ_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrB_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrC_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrS_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrI_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrJ_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrF_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+void* _jjrD_janet(JNIEnv*, _janet_arr*, jfieldID, jfieldID, jfieldID,
+                   const char*, int);
+
 void* _jcp_janet_cptr(JNIEnv*, _janet_arr*,
 		      void* (*)(JNIEnv*, _janet_arr*, const char*, int),
 		      const char*, int);
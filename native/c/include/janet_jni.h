@@ -266,7 +266,7 @@
    JNI_CALL3(RegisterNatives, clazz, methods, nMethods)
 
 #define JNI_UNREGISTER_NATIVES(clazz) \
-   JNI_CALL1(UnegisterNatives, clazz)
+   JNI_CALL1(UnregisterNatives, clazz)
 
 /* Monitor Operations */
 
@@ -282,12 +282,21 @@
 #define JNI_EXCEPTION_CHECK() \
    JNI_CALL0(ExceptionCheck)
 
+#define JNI_NEW_LOCAL_REF(ref) \
+   JNI_CALL1(NewLocalRef, ref)
+
 #define JNI_NEW_WEAK_GLOBAL_REF(obj) \
    JNI_CALL1(NewWeakGlobalRef, obj)
 
 #define JNI_DELETE_WEAK_GLOBAL_REF(obj) \
    JNI_CALL1(DeleteWeakGlobalRef, obj)
 
+#define JNI_PUSH_LOCAL_FRAME(capacity) \
+   JNI_CALL1(PushLocalFrame, capacity)
+
+#define JNI_POP_LOCAL_FRAME(result) \
+   JNI_CALL1(PopLocalFrame, result)
+
 #define JNI_GET_PRIMITIVE_ARRAY_CRITICAL(arr, isCopy) \
    JNI_CALL2(GetPrimitiveArrayCritical, arr, isCopy)
 
@@ -297,7 +306,24 @@
 #define JNI_GET_STRING_CRITICAL(str, isCopy) \
    JNI_CALL2(GetStringCritical, str, isCopy)
 
+#define JNI_GET_STRING_REGION(str, start, len, buf) \
+   JNI_CALL4(GetStringRegion, str, start, len, buf)
+
+#define JNI_GET_STRING_UTF_REGION(str, start, len, buf) \
+   JNI_CALL4(GetStringUTFRegion, str, start, len, buf)
+
 #define JNI_RELEASE_STRING_CRITICAL(str, cstr) \
    JNI_CALL2(ReleaseStringCritical, str, cstr)
 
+/* JNI 1.4 enhancements */
+
+#define JNI_NEW_DIRECT_BYTE_BUFFER(address, capacity) \
+   JNI_CALL2(NewDirectByteBuffer, address, capacity)
+
+#define JNI_GET_DIRECT_BUFFER_ADDRESS(buf) \
+   JNI_CALL1(GetDirectBufferAddress, buf)
+
+#define JNI_GET_DIRECT_BUFFER_CAPACITY(buf) \
+   JNI_CALL1(GetDirectBufferCapacity, buf)
+
 /* Janet enhancements */
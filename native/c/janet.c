@@ -1,7 +1,17 @@
+#if !defined(_WIN32) && !defined(_POSIX_C_SOURCE)
+#define _POSIX_C_SOURCE 199309L /* for clock_gettime */
+#endif
 #include <janet_base.h>
 #include <string.h>
 #include <stdlib.h>
 #include <stdarg.h>
+#ifndef _WIN32
+#include <pthread.h>
+#include <sched.h>
+#include <time.h>
+#else
+#include <windows.h>
+#endif
 
 #define ENV     _janet_jnienv
 
@@ -11,7 +21,7 @@
 
 #define ABS(x) ((x) >= 0 ? (x) : (-x))
 
-#define CLSSIZE 17
+#define CLSSIZE 19
 _janet_cls CLASSES[] = {
     { 0, 0, "java/lang/Object" },
     { 0, 0, "java/lang/Throwable" },
@@ -30,12 +40,17 @@ _janet_cls CLASSES[] = {
     { 0, 0, "java/lang/ArithmeticException" },
     { 0, 0, "java/lang/ClassCastException" },
     { 0, 0, "java/lang/String" },
+    { 0, 0, "java/nio/Buffer" },
+    { 0, 0, "java/lang/IllegalArgumentException" },
 };
 #define CLASS(n) (&CLASSES[n])
 
-#define FLDSIZE 0
-#undef FIELDS
-#define FIELDS ((void*)0) /* no fields used */
+#define FLDSIZE 3
+_janet_fld FIELDS[] = {
+    { 0, CLASS(17), 0, "position", "I" },
+    { 0, CLASS(17), 0, "limit", "I" },
+    { 0, CLASS(17), 0, "capacity", "I" },
+};
 
 #define MTHSIZE 5
 _janet_mth METHODS[] = {
@@ -96,31 +111,207 @@ static void releaseErrorObj(JNIEnv *);
  * Class loading
  */
 
+/*
+ * The reference count is guarded by a mutex, so that no thread can return
+ * from _j1_janet_init before the run-time library is fully initialized, and
+ * that finalization cannot interleave with re-initialization. Both happen
+ * only when classes are loaded or unloaded, but the lock is held while
+ * classes are loaded, so the threads waiting for it sleep rather than spin.
+ */
 static int refcount = 0;
 
+#ifndef _WIN32
+static pthread_mutex_t reflock = PTHREAD_MUTEX_INITIALIZER;
+#define LOCK()   pthread_mutex_lock(&reflock)
+#define UNLOCK() pthread_mutex_unlock(&reflock)
+#else
+static SRWLOCK reflock = SRWLOCK_INIT;
+#define LOCK()   AcquireSRWLockExclusive(&reflock)
+#define UNLOCK() ReleaseSRWLockExclusive(&reflock)
+#endif
+
+/* captured once by _j1_janet_init; a VM is never replaced in a process */
+static JavaVM* javaVM = 0;
+
 int _j1_janet_init(JNIEnv* ENV) {
+    LOCK();
     do {
-	if (refcount++) return 1;
+	if (refcount++) {
+	    UNLOCK();
+	    return 1;
+	}
 	if (!(_j6_janet_loadClasses(ENV, CLASSES, CLSSIZE,
 				    _JANET__FILE__, _JANET__LINE__))) break;
 	if (!(_j7_janet_loadMembers(ENV, FIELDS, FLDSIZE, METHODS, MTHSIZE, ((void*)0), 0,
 				    _JANET__FILE__, _JANET__LINE__))) break;
 	if (!(createErrorObj(ENV))) break;
+	if (!_JANET_ATOMIC_LOAD(&javaVM)) {
+	    JavaVM* vm;
+	    if (JNI_GET_JAVA_VM(&vm) == JNI_OK) _JANET_ATOMIC_STORE(&javaVM, vm);
+	}
+	UNLOCK();
 	return 1;
     } while(0);
+    UNLOCK();
     
     _JANET_ASSERT(JNI_EXCEPTION_CHECK());
     return 1;
 }
 
 void _j2_janet_finalize(JNIEnv *ENV) {
-    if (--refcount) return;
-    releaseErrorObj(ENV);
-    _j8_janet_releaseClasses(ENV, CLASSES, CLSSIZE);
+    LOCK();
+    if (!--refcount) {
+	releaseErrorObj(ENV);
+	_j8_janet_releaseClasses(ENV, CLASSES, CLSSIZE);
+    }
+    UNLOCK();
+}
+
+/**
+ * Native threads
+ */
+
+#ifndef _WIN32
+
+/*
+ * Threads attached by _jt1_janet_attachedEnv keep their JNIEnv in a thread
+ * key, so that they attach only once. The key destructor detaches them when
+ * they exit. Threads that the VM already knows (Java threads and threads
+ * attached by the application) are never stored, so they are never detached
+ * here.
+ */
+static pthread_key_t envKey;
+static pthread_once_t envKeyOnce = PTHREAD_ONCE_INIT;
+
+static void detachThread(void* env) {
+    JavaVM* vm = _JANET_ATOMIC_LOAD(&javaVM);
+    if (vm) (*vm)->DetachCurrentThread(vm);
+}
+
+static void createEnvKey(void) {
+    pthread_key_create(&envKey, detachThread);
+}
+
+JNIEnv* _jt1_janet_attachedEnv(void) {
+    JavaVM* vm = _JANET_ATOMIC_LOAD(&javaVM);
+    JNIEnv* env;
+    if (!vm) return 0;
+    pthread_once(&envKeyOnce, createEnvKey);
+    env = (JNIEnv*)pthread_getspecific(envKey);
+    if (env) return env;
+    if ((*vm)->GetEnv(vm, (void**)&env, JNI_VERSION_1_2) == JNI_OK) return env;
+    if ((*vm)->AttachCurrentThreadAsDaemon(vm, (void**)&env, 0) != JNI_OK) {
+	return 0;
+    }
+    if (pthread_setspecific(envKey, env)) {
+	(*vm)->DetachCurrentThread(vm);
+	return 0;
+    }
+    return env;
+}
+
+static void addThreadClassUsers(_janet_threadcls* tc, int n) {
+    int users;
+    do {
+	users = _JANET_ATOMIC_LOAD(&tc->users);
+    } while (!_JANET_ATOMIC_CAS(&tc->users, users, users + n));
+}
+
+/*
+ * A thread entry counts itself as a user before it loads the reference, and
+ * finalization clears the reference before it waits for the users, so an
+ * entry either finds the reference cleared, or takes its local reference
+ * before the weak one is deleted. (Both are full barriers, as the counter is
+ * updated with compare-and-swap.)
+ */
+jclass _jt2_janet_threadClass(JNIEnv* ENV, _janet_threadcls* tc) {
+    jclass cls;
+    addThreadClassUsers(tc, 1);
+    cls = _JANET_ATOMIC_LOAD(&tc->cls);
+    if (cls) cls = (jclass)JNI_NEW_LOCAL_REF(cls);
+    addThreadClassUsers(tc, -1);
+    return cls;
+}
+
+void _jt3_janet_releaseThreadClass(JNIEnv* ENV, _janet_threadcls* tc) {
+    jclass cls;
+    do {
+	cls = _JANET_ATOMIC_LOAD(&tc->cls);
+    } while (!_JANET_ATOMIC_CAS(&tc->cls, cls, (jclass)0));
+    /* users hold the counter only for the time of NewLocalRef */
+    while (_JANET_ATOMIC_LOAD(&tc->users)) sched_yield();
+    if (cls) JNI_DELETE_WEAK_GLOBAL_REF(cls);
+}
+
+#endif
+
+/**
+ * Metrics
+ */
+
+jlong _jx1_janet_nanoTime(void) {
+#ifndef _WIN32
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (jlong)ts.tv_sec * 1000000000 + ts.tv_nsec;
+#else
+    static LARGE_INTEGER freq;
+    LARGE_INTEGER count;
+    if (!freq.QuadPart) QueryPerformanceFrequency(&freq);
+    QueryPerformanceCounter(&count);
+    return (jlong)(count.QuadPart * (1000000000.0 / freq.QuadPart));
+#endif
+}
+
+void _jx2_janet_countCall(_janet_methodMetrics* metrics, jlong start) {
+    jlong nanos = _jx1_janet_nanoTime() - start;
+    jlong max = _JANET_ATOMIC_LOAD(&metrics->maxNanos);
+    _JANET_ATOMIC_ADD(&metrics->calls, (jlong)1);
+    _JANET_ATOMIC_ADD(&metrics->nanos, nanos);
+    while (nanos > max &&
+	   !_JANET_ATOMIC_CAS(&metrics->maxNanos, max, nanos)) {
+	max = _JANET_ATOMIC_LOAD(&metrics->maxNanos);
+    }
+}
+
+/*
+ * Called when the contents of an array have been obtained. The element
+ * size is zero for critical pointers, as no JNI function may be called
+ * until they are released.
+ */
+void _jx3_janet_countArray(JNIEnv* ENV, _janet_arr* arr, int elemsize) {
+    _janet_methodMetrics* metrics = arr->htab->metrics;
+    if (!arr->isCopy) {
+	_JANET_ATOMIC_ADD(&metrics->pins, (jlong)1);
+	return;
+    }
+    _JANET_ATOMIC_ADD(&metrics->copies, (jlong)1);
+    if (elemsize) _JANET_ATOMIC_ADD(&metrics->bytesCopied, (jlong)elemsize *
+	(arr->region ? arr->length : JNI_GET_ARRAY_LENGTH(arr->ref)));
+}
+
+jlongArray _jx4_janet_metricsSnapshot(JNIEnv* ENV,
+				      _janet_methodMetrics** metrics,
+				      int size) {
+    jlong buf[_JANET_METRICS_COUNTERS];
+    jlongArray result;
+    int i, j;
+    result = (*ENV)->NewLongArray(ENV, size * _JANET_METRICS_COUNTERS);
+    if (!result) return 0;
+    for (i = 0; i < size; i++) {
+	jlong* counters = (jlong*)metrics[i];
+	for (j = 0; j < _JANET_METRICS_COUNTERS; j++) {
+	    buf[j] = _JANET_ATOMIC_LOAD(&counters[j]);
+	}
+	(*ENV)->SetLongArrayRegion(ENV, result, i * _JANET_METRICS_COUNTERS,
+				   _JANET_METRICS_COUNTERS, buf);
+    }
+    return result;
 }
 
 int _j3_janet_loadClass(JNIEnv *ENV, _janet_cls* cls,
 			const char* filename, unsigned int lineno) {
+    jclass id;
     jclass auxcls = JNI_FIND_CLASS(cls->name);
     if (!auxcls) {
 	const char* errdesc = "can't be load - unknown error";
@@ -146,29 +337,44 @@ int _j3_janet_loadClass(JNIEnv *ENV, _janet_cls* cls,
 			cls->name, errdesc);
 	return 0;
     }
-    cls->id = cls->weak ? JNI_NEW_WEAK_GLOBAL_REF(auxcls)
-	                : JNI_NEW_GLOBAL_REF(auxcls);
-    if (!cls->id) {
+    id = cls->weak ? JNI_NEW_WEAK_GLOBAL_REF(auxcls)
+	           : JNI_NEW_GLOBAL_REF(auxcls);
+    JNI_DELETE_LOCAL_REF(auxcls);
+    if (!id) {
 	_je_janet_throw(ENV, 0, filename, lineno,
 			"unable to make global reference to class %.128s",
 			cls->name);
 	return 0;
     }
+    if (!_JANET_ATOMIC_CAS(&cls->id, (jclass)0, id)) {
+	/* another thread has been faster; drop our reference */
+	if (cls->weak) {
+	    JNI_DELETE_WEAK_GLOBAL_REF(id);
+	} else {
+	    JNI_DELETE_GLOBAL_REF(id);
+	}
+    }
     return 1;
 }
 
 int _j4_janet_loadField(JNIEnv* ENV, _janet_fld* fld,
 			const char* filename, unsigned int lineno) {
-    if (!fld->cls->id) {
+    jfieldID id;
+    jclass clsid = _JANET_ATOMIC_LOAD(&fld->cls->id);
+    if (!clsid) {
 	if (!_j3_janet_loadClass(_janet_jnienv, fld->cls,
 				 filename, lineno)) return 0;
+	clsid = _JANET_ATOMIC_LOAD(&fld->cls->id);
     }
     if (fld->is_static) {
-	fld->id = JNI_GET_STATIC_FIELD_ID(fld->cls->id, fld->name, fld->signature);
+	id = JNI_GET_STATIC_FIELD_ID(clsid, fld->name, fld->signature);
     } else {
-	fld->id = JNI_GET_FIELD_ID(fld->cls->id, fld->name, fld->signature);
+	id = JNI_GET_FIELD_ID(clsid, fld->name, fld->signature);
     }
-    if (!fld->id) {
+    if (id) {
+	/* IDs are not references, so racing threads may all store them */
+	_JANET_ATOMIC_STORE(&fld->id, id);
+    } else {
 	const char* errdesc = "unknown error";
 	jthrowable e = JNI_EXCEPTION_OCCURRED();
 	if (e) {
@@ -195,16 +401,22 @@ int _j4_janet_loadField(JNIEnv* ENV, _janet_fld* fld,
 int _j5_janet_loadMethod(JNIEnv* ENV, _janet_mth* mth,
 			 const char* filename, unsigned int lineno)
 {
-    if (!mth->cls->id) {
+    jmethodID id;
+    jclass clsid = _JANET_ATOMIC_LOAD(&mth->cls->id);
+    if (!clsid) {
 	if (!_j3_janet_loadClass(_janet_jnienv, mth->cls,
 				 filename, lineno)) return 0;
+	clsid = _JANET_ATOMIC_LOAD(&mth->cls->id);
     }
     if (mth->is_static) {
-	mth->id = JNI_GET_STATIC_METHOD_ID(mth->cls->id, mth->name, mth->signature);
+	id = JNI_GET_STATIC_METHOD_ID(clsid, mth->name, mth->signature);
     } else {
-	mth->id = JNI_GET_METHOD_ID(mth->cls->id, mth->name, mth->signature);
+	id = JNI_GET_METHOD_ID(clsid, mth->name, mth->signature);
     }
-    if (!mth->id) {
+    if (id) {
+	/* IDs are not references, so racing threads may all store them */
+	_JANET_ATOMIC_STORE(&mth->id, id);
+    } else {
 	const char* errdesc = "unknown error";
 	jthrowable e = JNI_EXCEPTION_OCCURRED();
 	if (e) {
@@ -232,13 +444,18 @@ int _j9_janet_loadString(JNIEnv* ENV, _janet_str* str,
 			 const char* filename, unsigned int lineno)
 {
     jstring s1, s2;
+    jobject g;
     do {
         if (!(s1 = JNI_NEW_STRING_UTF(str->utf))) break;
         if (!(s2 = (*ENV)->CallNonvirtualObjectMethod(ENV, s1, _JANET_CLS_STRING, 
 						      _JANET_MTH_STRING_INTERN))) break;
-        if (!(str->strref = JNI_NEW_GLOBAL_REF(s2))) break;
+        if (!(g = JNI_NEW_GLOBAL_REF(s2))) break;
 	JNI_DELETE_LOCAL_REF(s1);
 	JNI_DELETE_LOCAL_REF(s2);
+	if (!_JANET_ATOMIC_CAS(&str->strref, (jstring)0, (jstring)g)) {
+	    /* another thread has been faster; drop our reference */
+	    JNI_DELETE_GLOBAL_REF(g);
+	}
         return 1;
     } while(0);
     _je_janet_throw(ENV, 0,
@@ -252,8 +469,9 @@ int _j6_janet_loadClasses(JNIEnv *ENV,
 			  _janet_cls* classes, int size,
 			  const char* filename, unsigned int lineno) {
   while (size--) {
-    if (!_j3_janet_loadClass(ENV, classes++, 
-			     filename, lineno)) return 0;
+    if (!_JANET_ATOMIC_LOAD(&classes->id) &&
+	!_j3_janet_loadClass(ENV, classes, filename, lineno)) return 0;
+    classes++;
   }
   return 1;
 }
@@ -263,17 +481,53 @@ int _j7_janet_loadMembers(JNIEnv *ENV,
 			  _janet_mth* methods, int mthsize,
 			  _janet_str* strings, int strsize,
 			  const char* filename, unsigned int lineno) {
-    while (fldsize--) {
-	if (!_j4_janet_loadField(ENV, fields++, filename, lineno)) return 0;
+    /* entries already linked by other threads are skipped */
+    for (; fldsize--; fields++) {
+	if (!_JANET_ATOMIC_LOAD(&fields->id) &&
+	    !_j4_janet_loadField(ENV, fields, filename, lineno)) return 0;
     }
-    while (mthsize--) {
-	if (!_j5_janet_loadMethod(ENV, methods++, filename, lineno)) return 0;
+    for (; mthsize--; methods++) {
+	if (!_JANET_ATOMIC_LOAD(&methods->id) &&
+	    !_j5_janet_loadMethod(ENV, methods, filename, lineno)) return 0;
     }
-    while (strsize--) {
-        if (!_j9_janet_loadString(ENV, strings++, filename, lineno)) return 0;
+    for (; strsize--; strings++) {
+        if (!_JANET_ATOMIC_LOAD(&strings->strref) &&
+	    !_j9_janet_loadString(ENV, strings, filename, lineno)) return 0;
     }
     return 1;
 }
+
+/*
+ * Only the first class of the library links the unit. The lock is not held
+ * while linking, since loading classes of the library may initialize them,
+ * and thus re-enter; native methods resolve anything not yet linked by
+ * themselves, as in the LAZY mode.
+ */
+int _j10_janet_linkUnit(JNIEnv *ENV, _janet_linkunit* unit, int mode,
+			const char* filename, unsigned int lineno) {
+    int first;
+    LOCK();
+    first = !unit->refcount++;
+    UNLOCK();
+    if (!first) return 1;
+    if (mode >= JANET_LINK_MODE_MEDIUM &&
+	!_j6_janet_loadClasses(ENV, unit->classes, unit->classno,
+			       filename, lineno)) return 0;
+    if (mode >= JANET_LINK_MODE_EAGER &&
+	!_j7_janet_loadMembers(ENV, unit->fields, unit->fieldno,
+			       unit->methods, unit->methodno,
+			       unit->strings, unit->stringno,
+			       filename, lineno)) return 0;
+    return 1;
+}
+
+void _j11_janet_unlinkUnit(JNIEnv *ENV, _janet_linkunit* unit) {
+    int last;
+    LOCK();
+    last = !--unit->refcount;
+    UNLOCK();
+    if (last) _j8_janet_releaseClasses(ENV, unit->classes, unit->classno);
+}
 			   
 void _j8_janet_releaseClasses(JNIEnv *ENV,
 			      _janet_cls* classes, int size) {
@@ -462,20 +716,69 @@ _janet_ref2ref* _jrh2_janet_rmRef(_janet_ref2ref* ref) {
 
 #define HTSIZE(htab) radkeNumbers[htab->sizeidx]
   
+static _janet_arr* initArray(HT_ARR* htab, _janet_arr* arr,
+			     jarray ref, jint hashcode) {
+    htab->fill++;
+    arr->htab = htab;
+    arr->ref = ref;
+    arr->hashcode = hashcode;
+    arr->refcount = 1;
+    arr->jptr = 0;
+    arr->ptr = 0;
+    arr->length = -1;
+    arr->written = 0;
+    return arr;
+}
+
 _janet_arr* _jh1_janet_putArray(JNIEnv* ENV, 
 				HT_ARR* htab, jarray ref) {
     jint hashcode;
     unsigned int hkey;
     int htab_size;
     jint j;
+    int i;
+    HT_ARR* head = htab;
+    HT_ARR* last = htab;
     _janet_arr* firstempty = 0;
     _janet_arr* arr;
 
     if (!ref) return 0;
 
+    /* look up the inline list first; it is cheaper than hashing */
+    for (i = 0; i < head->inlsize; i++) {
+	arr = head->inl[i];
+	if (arr->refcount < 0) {
+	    if (!firstempty) firstempty = arr;
+	} else if (JNI_IS_SAME_OBJECT(arr->ref, ref)) {
+	    arr->refcount++;
+	    return arr;
+	}
+    }
+
+    if (!head->hashed) {
+	/*
+	 * Nothing hashed yet, so the array is not in the table. Put it on
+	 * the inline list if possible; until then, the first slots of the
+	 * table are used by the inline list only
+	 */
+	if (firstempty) {
+	    _JANET_ASSERT(!firstempty->jptr && !firstempty->ptr);
+	    return initArray(head, firstempty, ref, 0);
+	}
+	if (head->inlsize < JANET_ARRAY_INLINE_SIZE) {
+	    arr = &head->data[head->inlsize];
+	    _JANET_ASSERT(!arr->ref);
+	    head->inl[head->inlsize++] = arr;
+	    return initArray(head, arr, ref, 0);
+	}
+	head->hashed = 1;
+    }
+    firstempty = 0;
+
     hashcode = (*ENV)->CallIntMethod(ENV, ref, _JANET_MTH_OBJECT_HASH_CODE);
     /* find the array in hashtables */
     for (; htab; htab = htab->next) {
+	last = htab;
 	htab_size = HTSIZE(htab);
 	hkey = (unsigned int)hashcode % htab_size;
 	j = -htab_size;
@@ -486,7 +789,8 @@ _janet_arr* _jh1_janet_putArray(JNIEnv* ENV,
 		_JANET_ASSERT(!arr->jptr && !arr->ptr);
 		firstempty = arr; /* empty place */
 		firstempty->htab = htab;
-	    } else if (arr->hashcode == hashcode) { /* possibly found */
+	    } else if (arr->hashcode == hashcode && arr->refcount >= 0) {
+		/* possibly found */
 		if (JNI_IS_SAME_OBJECT(arr->ref, ref)) { /* indeed found */
 		    arr->refcount++;
 		    return arr;
@@ -495,7 +799,7 @@ _janet_arr* _jh1_janet_putArray(JNIEnv* ENV,
 	    j += 2;
 	    _JANET_ASSERT(j<htab_size); /* as always treshold < htab_size */
 	    hkey += ABS(j);
-	    if (hkey > htab_size) hkey -= htab_size;
+	    if (hkey >= htab_size) hkey -= htab_size;
 	}
     
 	/* empty cell found -> must search in subsequent hashtables */
@@ -515,39 +819,34 @@ _janet_arr* _jh1_janet_putArray(JNIEnv* ENV,
 
 	/* all hashtables are filled - we must allocate next one */
 
-	if (!(newsize = radkeNumbers[htab->sizeidx+1])) return 0;
+	if (!(newsize = radkeNumbers[last->sizeidx+1])) return 0;
 
 	if (!(new_htab = (HT_ARR*)malloc(sizeof(HT_ARR)))) return 0;
 	
-	if (!(new_data = (_janet_arr*)calloc(newsize, sizeof(_janet_arr*)))) {
+	if (!(new_data = (_janet_arr*)calloc(newsize, sizeof(_janet_arr)))) {
 	    free(new_htab);
 	    return 0;
 	}
 
-	new_htab->sizeidx = htab->sizeidx+1;
+	new_htab->sizeidx = last->sizeidx+1;
 	new_htab->fill = 0;
 	new_htab->treshold = (jint)(((float)newsize) * 0.75);
 	new_htab->next = 0;
 	new_htab->data = new_data;
 	new_htab->dynamic = 1;
+	new_htab->hashed = 1;
+	new_htab->inlsize = 0;
+	new_htab->metrics = last->metrics;
 
-	firstempty = &new_htab->data[hashcode % newsize];
-	firstempty->htab = new_htab;
+	firstempty = &new_htab->data[(unsigned int)hashcode % newsize];
 
-	htab->next = new_htab;
+	last->next = new_htab;
 	htab = new_htab;
     } else {
         htab = firstempty->htab;
     }
 
-    htab->fill++;
-    firstempty->ref = ref;
-    firstempty->hashcode = hashcode;
-    firstempty->refcount = 1;
-    firstempty->jptr = 0;
-    firstempty->ptr = 0;
-    firstempty->length = -1;
-    return firstempty;
+    return initArray(htab, firstempty, ref, hashcode);
 }
 
 void _jh2_janet_rmArray(JNIEnv* ENV, _janet_arr* arr) {
@@ -557,7 +856,19 @@ void _jh2_janet_rmArray(JNIEnv* ENV, _janet_arr* arr) {
 	arr->ptr = 0;
     }
     if (arr->jptr) {
-	arr->releasef(ENV, arr->ref, arr->jptr, 0);
+	if (arr->region) {
+	    /* copy of a region; write it back, unless it was read-only */
+	    if (arr->written) {
+		arr->releasef(ENV, arr->region, arr->offset, arr->length,
+			      arr->jptr);
+	    }
+	    free(arr->jptr);
+	    JNI_DELETE_LOCAL_REF(arr->region);
+	    arr->region = 0;
+	} else {
+	    arr->releasef(ENV, arr->ref, arr->jptr,
+			  arr->written ? 0 : JNI_ABORT);
+	}
 	arr->jptr = 0;
     }
     arr->releasef = 0;
@@ -580,7 +891,10 @@ void _jh3_releaseHashTable(JNIEnv* ENV, HT_ARR* htab) {
 	    data++;
         }
 	htab_next = htab->next;
-	if (htab->dynamic) free(htab);
+	if (htab->dynamic) {
+	    free(htab->data);
+	    free(htab);
+	}
 	htab = htab_next;
     } while(htab);
 }
@@ -607,16 +921,26 @@ _JANET_IMPL_JPTR(J)
 _JANET_IMPL_JPTR(F)
 _JANET_IMPL_JPTR(D)
 
+_JANET_IMPL_JRPTR(Z)
+_JANET_IMPL_JRPTR(B)
+_JANET_IMPL_JRPTR(C)
+_JANET_IMPL_JRPTR(S)
+_JANET_IMPL_JRPTR(I)
+_JANET_IMPL_JRPTR(J)
+_JANET_IMPL_JRPTR(F)
+_JANET_IMPL_JRPTR(D)
+
 void* _jjp_critical_janet(JNIEnv* ENV, _janet_arr* ref, 
 			  const char* filename, int lineno)
 {
     _JANET_ASSERT(ref); _JANET_ASSERT(ref->ref); _JANET_ASSERT(!ref->jptr && !ref->ptr);
-    ref->jptr = JNI_GET_PRIMITIVE_ARRAY_CRITICAL(ref->ref, 0);
+    ref->jptr = JNI_GET_PRIMITIVE_ARRAY_CRITICAL(ref->ref, &ref->isCopy);
     if (!ref->jptr) {
 	_je_janet_throw(ENV, _JANET_ERR_OUT_OF_MEMORY, filename, lineno, errcnt2);
 	return 0;
     }
     ref->releasef = (*ENV)->ReleasePrimitiveArrayCritical;
+    if (ref->htab && ref->htab->metrics) _jx3_janet_countArray(ENV, ref, 0);
     return ref->jptr;
 }
 
@@ -7,32 +7,215 @@ package pl.edu.agh.icsr.janet;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import pl.edu.agh.icsr.janet.reflect.ClassManager;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.yytree.YYClass;
 import pl.edu.agh.icsr.janet.yytree.YYCompilationUnit;
 
+/**
+ * Drives the translation: parses input files, resolves them, and writes the
+ * output. Each phase runs on a pool of -threads threads: files are parsed
+ * independently of each other, compilation units are resolved after the
+ * units they depend on, and the output of each unit is written separately.
+ * With -incremental, input files which have not changed since the previous
+ * run are left out, and parsed only if classes they declare are used.
+ */
 public class CompilationManager {
 
+    // guarded by this, as units are added by the parsing threads
     Map<URL, YYCompilationUnit> compUnits;
+    Set<URL> parsedURLs;
     ClassManager classMgr;
     Janet.Settings settings;
 
+    // Input files, in the order given on the command line
+    List<Input> inputs;
+
     // Whether to generate the code to load native libraries.
     boolean loadLibrary = true;
 
     // Current (during parsing) library name as specified by the -library flag
     String currentLibName;
 
+    // Link units shared by classes of the same library (with -linkunits)
+    Map<String, LinkUnit> linkUnits;
+
+    // State of the previous run, and input files left out of this one, by
+    // URL (with -incremental); guarded by this
+    TranslationCache cache;
+    Map<String, Input> deferred;
+
+    // Whether writing any output failed (errors are reported by the Writer)
+    boolean writeFailed;
+
+    /**
+     * Input file, with the name of the library in effect for it (-library).
+     */
+    static class Input {
+        final URL url;
+        final File file;
+        final String libName;
+
+        Input(URL url, File file, String libName) {
+            this.url = url;
+            this.file = file;
+            this.libName = libName;
+        }
+    }
+
     public CompilationManager(Janet.Settings settings) {
-        compUnits = new HashMap<URL, YYCompilationUnit>();
+        compUnits = new LinkedHashMap<URL, YYCompilationUnit>();
+        parsedURLs = new HashSet<URL>();
+        inputs = new ArrayList<Input>();
+        linkUnits = new TreeMap<String, LinkUnit>();
+        deferred = new HashMap<String, Input>();
         this.settings = settings;
         classMgr = new ClassManager(this, settings);
     }
 
     /**
-     * Phase 1: parse files
+     * Adds a file to be parsed and translated, within the library
+     * currently specified.
+     */
+    public void addInput(URL url, File file) {
+        inputs.add(new Input(url, file, currentLibName));
+    }
+
+    /**
+     * Phase 1: parse input files. Files are independent of each other
+     * until resolution, so they are parsed in parallel. With -incremental,
+     * only files changed since the previous run are parsed at first; then,
+     * once the APIs of their classes are compared with the previous run,
+     * files depending on changed classes.
+     */
+    public void parse() throws ParseException, IOException {
+        if (!settings.incremental() || settings.linkUnits()) {
+            // link tables of a library are written as a whole
+            parseAll(inputs);
+            return;
+        }
+        cache = new TranslationCache(settings, classMgr);
+        List<Input> modified = cache.getModifiedInputs(inputs);
+        Set<Input> selected = new HashSet<Input>(modified);
+        synchronized (this) {
+            for (Input input : inputs) {
+                if (!selected.contains(input)) {
+                    deferred.put(input.url.toString(), input);
+                }
+            }
+        }
+        parseAll(modified);
+        if (deferred.isEmpty()) return;
+
+        List<YYCompilationUnit> units = getCompilationUnits();
+        for (YYCompilationUnit unit : units) {
+            if (!cache.declaresSameClasses(unit)) {
+                // classes moved between files: start over
+                cache.discard();
+                List<Input> rest = new ArrayList<Input>();
+                for (Input input : inputs) {
+                    if (!selected.contains(input)) rest.add(input);
+                }
+                parseAll(rest);
+                synchronized (this) {
+                    deferred.clear();
+                }
+                return;
+            }
+        }
+        for (YYCompilationUnit unit : units) {
+            cache.compareClasses(unit);
+        }
+
+        // translate files depending on changed classes as well
+        Set<String> urls = cache.getAffectedInputs();
+        List<Input> affected = new ArrayList<Input>();
+        for (Input input : inputs) {
+            if (selected.contains(input) ||
+                    !urls.contains(input.url.toString())) continue;
+            YYCompilationUnit unit;
+            synchronized (this) {
+                unit = compUnits.get(input.url);
+            }
+            if (unit != null) {
+                // parsed already, as its classes are used
+                unit.markForProcessing();
+            } else {
+                affected.add(input);
+            }
+        }
+        parseAll(affected);
+        synchronized (this) {
+            deferred.keySet().removeAll(urls);
+        }
+    }
+
+    void parseAll(List<Input> inputs) throws ParseException, IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Input input : inputs) {
+            tasks.add(new Callable<Void>() {
+                public Void call() throws ParseException, IOException {
+                    parse(input.url, input.file, true, input.libName);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Tells whether the class is declared by an input file left out of
+     * this run (-incremental), whether parsed already or not.
+     */
+    public synchronized boolean isDeferredClass(String className) {
+        if (cache == null) return false;
+        String url = cache.getInputOf(className);
+        return url != null && deferred.containsKey(url);
+    }
+
+    /**
+     * Parses the input file left out of this run which declares the class,
+     * without translating it, unless parsed already. The ClassManager calls
+     * it with its lock held, so that the class is in place once another
+     * thread looking for it gets the lock.
+     */
+    public void parseDeferredClass(String className)
+        throws ParseException, IOException
+    {
+        Input input;
+        synchronized (this) {
+            input = deferred.get(cache.getInputOf(className));
+        }
+        parse(input.url, input.file, false, input.libName);
+    }
+
+    public synchronized boolean isDeferredInput(URL url) {
+        return deferred.containsKey(url.toString());
+    }
+
+    /**
+     * Parses a file (e.g. found on the sourcepath), within the library
+     * currently specified.
      * @param input
      * @param markForTranslation
      */
@@ -40,9 +223,18 @@ public class CompilationManager {
                       boolean markForTranslation)
         throws ParseException, IOException
     {
-        if (compUnits.containsKey(originURL)) {
-            // was parsed already
-            return;
+        parse(originURL, originFile, markForTranslation, currentLibName);
+    }
+
+    void parse(URL originURL, File originFile, boolean markForTranslation,
+               String libName)
+        throws ParseException, IOException
+    {
+        synchronized (this) {
+            if (!parsedURLs.add(originURL)) {
+                // was parsed already
+                return;
+            }
         }
         JanetSourceReader jreader = new JanetSourceReader(originURL, originFile,
             1024, settings.getSrcEncoding());
@@ -52,7 +244,7 @@ public class CompilationManager {
 
         parser.setdebug(settings.getDbgLevel());
         parser.yyerrthrow = true;
-        parser.yyparse(this, markForTranslation);
+        parser.yyparse(this, markForTranslation, libName);
     }
 
     public void setLoadLibrary(boolean loadLibrary) {
@@ -71,37 +263,283 @@ public class CompilationManager {
         return currentLibName;
     }
 
+    public synchronized LinkUnit getLinkUnit(String libName) {
+        LinkUnit unit = linkUnits.get(libName);
+        if (unit == null) {
+            linkUnits.put(libName, unit = new LinkUnit(libName));
+        }
+        return unit;
+    }
+
+    public Collection<LinkUnit> getLinkUnits() {
+        return linkUnits.values();
+    }
+
     /**
-     * Phase 2: resolve semantic dependences
-     * @param fileName
-     * @param isInput
+     * Phase 2: resolve semantic dependences. Units parsed from the
+     * sourcepath meanwhile are resolved afterwards, in another round.
+     * Units of input files left out of an incremental run are not.
      */
     public void resolve() throws ParseException {
-        for (YYCompilationUnit unit : compUnits.values()) {
-            unit.resolve();
+        Set<YYCompilationUnit> resolved = new HashSet<YYCompilationUnit>();
+        while (true) {
+            List<YYCompilationUnit> units = getCompilationUnits();
+            units.removeAll(resolved);
+            for (Iterator<YYCompilationUnit> i = units.iterator(); i.hasNext();) {
+                // not translated, so its classes are resolved only as used
+                if (isDeferredInput(i.next().ibuf().getOriginURL())) i.remove();
+            }
+            if (units.isEmpty()) break;
+            if (settings.getThreads() <= 1) {
+                for (YYCompilationUnit unit : units) {
+                    unit.resolve();
+                }
+            } else {
+                resolveInParallel(units);
+            }
+            resolved.addAll(units);
         }
     }
 
     /**
-     * Phase 3: write output
-     * @param fileName
-     * @param isInput
+     * Resolves each unit after the units declaring superclasses and
+     * interfaces of its classes, so that their members are known before
+     * subclasses look them up. With -linkunits, a unit also waits for the
+     * previous one adding to the same link unit, so that the link tables
+     * come out the same as if resolved by a single thread. Units still
+     * waiting for one another at the end (circular inheritance) are
+     * resolved one by one.
      */
-    void translate() {
-        Writer w = new Writer(this, settings);
-        w.write();
+    void resolveInParallel(List<YYCompilationUnit> units)
+        throws ParseException
+    {
+        Map<YYCompilationUnit, List<YYCompilationUnit>> dependents =
+            new HashMap<YYCompilationUnit, List<YYCompilationUnit>>();
+        Map<YYCompilationUnit, Integer> waiting =
+            new HashMap<YYCompilationUnit, Integer>();
+        Map<String, YYCompilationUnit> lastOfLibrary =
+            new HashMap<String, YYCompilationUnit>();
+        for (YYCompilationUnit unit : units) {
+            dependents.put(unit, new ArrayList<YYCompilationUnit>());
+        }
+        for (YYCompilationUnit unit : units) {
+            Set<YYCompilationUnit> deps = new LinkedHashSet<YYCompilationUnit>();
+            Iterator<YYClass> i = unit.getDeclaredClassesIterator();
+            while (i.hasNext()) {
+                YYClass cls = i.next();
+                if (!cls.isInterface()) {
+                    addDependence(deps, cls.getSuperclass());
+                }
+                for (IClassInfo iface : cls.getInterfaces().values()) {
+                    addDependence(deps, iface);
+                }
+                if (settings.linkUnits()) {
+                    YYCompilationUnit prev = lastOfLibrary.put(cls.getLibName(), unit);
+                    if (prev != null) deps.add(prev);
+                }
+            }
+            deps.remove(unit);
+            int n = 0;
+            for (YYCompilationUnit dep : deps) {
+                List<YYCompilationUnit> l = dependents.get(dep);
+                if (l == null) continue; // resolved in an earlier round
+                l.add(unit);
+                n++;
+            }
+            waiting.put(unit, Integer.valueOf(n));
+        }
+
+        Set<YYCompilationUnit> done = new HashSet<YYCompilationUnit>();
+        ExecutorService pool = newThreadPool();
+        try {
+            CompletionService<YYCompilationUnit> completion =
+                new ExecutorCompletionService<YYCompilationUnit>(pool);
+            int running = 0;
+            for (YYCompilationUnit unit : units) {
+                if (waiting.get(unit).intValue() == 0) {
+                    completion.submit(newResolveTask(unit));
+                    running++;
+                }
+            }
+            ExecutionException failure = null;
+            while (running > 0) {
+                Future<YYCompilationUnit> f = completion.take();
+                running--;
+                YYCompilationUnit unit;
+                try {
+                    unit = f.get();
+                } catch (ExecutionException e) {
+                    // let the running ones finish, but start no more
+                    if (failure == null) failure = e;
+                    continue;
+                }
+                done.add(unit);
+                if (failure != null) continue;
+                for (YYCompilationUnit dependent : dependents.get(unit)) {
+                    int n = waiting.get(dependent).intValue() - 1;
+                    waiting.put(dependent, Integer.valueOf(n));
+                    if (n == 0) {
+                        completion.submit(newResolveTask(dependent));
+                        running++;
+                    }
+                }
+            }
+            if (failure != null) rethrow(failure.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e.getMessage());
+        } catch (IOException e) { // not thrown by resolution
+            throw new RuntimeException(e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+
+        for (YYCompilationUnit unit : units) {
+            if (!done.contains(unit)) unit.resolve();
+        }
     }
 
+    private void addDependence(Set<YYCompilationUnit> deps, IClassInfo cls) {
+        if (cls instanceof YYClass) {
+            YYCompilationUnit unit;
+            synchronized (this) {
+                unit = compUnits.get(((YYClass)cls).ibuf().getOriginURL());
+            }
+            if (unit != null) deps.add(unit);
+        }
+    }
 
+    private static Callable<YYCompilationUnit> newResolveTask(
+            final YYCompilationUnit unit) {
+        return new Callable<YYCompilationUnit>() {
+            public YYCompilationUnit call() throws ParseException {
+                unit.resolve();
+                return unit;
+            }
+        };
+    }
+
+    /**
+     * Phase 3: write output. The output of each compilation unit (one .java
+     * file, and a .c file per class) is written by a writer of its own;
+     * shared link units are written at the end, and so is the state of the
+     * run (-incremental).
+     */
+    void translate() throws ParseException, IOException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        Map<String, YYCompilationUnit> translated =
+            new HashMap<String, YYCompilationUnit>();
+        for (final YYCompilationUnit unit : getCompilationUnits()) {
+            if (!unit.markedForProcessing()) {
+                // skip this file
+                continue;
+            }
+            translated.put(unit.ibuf().getOriginURL().toString(), unit);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    Writer w = new Writer(CompilationManager.this, settings);
+                    w.write(unit);
+                    if (w.hasFailed()) setWriteFailed();
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        if (settings.linkUnits()) {
+            Writer w = new Writer(this, settings);
+            w.writeLinkUnits();
+            if (w.hasFailed()) setWriteFailed();
+        }
+        if (cache != null && !hasWriteFailed()) {
+            cache.save(inputs, translated);
+        }
+    }
 
+    synchronized void setWriteFailed() {
+        writeFailed = true;
+    }
+
+    synchronized boolean hasWriteFailed() {
+        return writeFailed;
+    }
 
-    public void addCompilationUnit(YYCompilationUnit unit) {
+    /**
+     * Runs the tasks on a pool of threads, or one after another if there is
+     * only one thread. Once all are done, rethrows the first exception, in
+     * the order of tasks.
+     */
+    void runAll(List<Callable<Void>> tasks)
+        throws ParseException, IOException
+    {
+        if (settings.getThreads() <= 1 || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    rethrow(e);
+                }
+            }
+            return;
+        }
+        ExecutorService pool = newThreadPool();
+        try {
+            Throwable failure = null;
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = e.getCause();
+                }
+            }
+            if (failure != null) rethrow(failure);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    ExecutorService newThreadPool() {
+        return Executors.newFixedThreadPool(settings.getThreads(),
+            new ThreadFactory() {
+                int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "janet-" + (++count));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    private static void rethrow(Throwable t) throws ParseException, IOException {
+        if (t instanceof ParseException) throw (ParseException)t;
+        if (t instanceof IOException) throw (IOException)t;
+        if (t instanceof RuntimeException) throw (RuntimeException)t;
+        if (t instanceof Error) throw (Error)t;
+        throw new RuntimeException(t.toString());
+    }
+
+    /**
+     * Returns compilation units in a fixed order: input files in the order
+     * given, then files parsed from the sourcepath.
+     */
+    synchronized List<YYCompilationUnit> getCompilationUnits() {
+        Set<YYCompilationUnit> units = new LinkedHashSet<YYCompilationUnit>();
+        for (Input input : inputs) {
+            YYCompilationUnit unit = compUnits.get(input.url);
+            if (unit != null) units.add(unit);
+        }
+        units.addAll(compUnits.values());
+        return new ArrayList<YYCompilationUnit>(units);
+    }
+
+    public synchronized void addCompilationUnit(YYCompilationUnit unit) {
         compUnits.put(unit.ibuf().getOriginURL(), unit);
     }
 
     public String toString() {
         String s = "";
-        for (YYCompilationUnit unit : compUnits.values()) {
+        for (YYCompilationUnit unit : getCompilationUnits()) {
             s += unit.dump() + "\n\n";
         }
 
@@ -111,7 +549,7 @@ public class CompilationManager {
 
     public String dumpTree() {
         String s = "";
-        for (YYCompilationUnit unit : compUnits.values()) {
+        for (YYCompilationUnit unit : getCompilationUnits()) {
             s += unit.dump() + "\n\n";
         }
 
@@ -125,8 +563,24 @@ public class CompilationManager {
         return classMgr;
     }
 
+    /**
+     * Tells whether the native language name carries the given option,
+     * appended after a slash (as "ffm" in "C/FFM", or "async" in
+     * "C++/async"), regardless of case.
+     */
+    public static boolean hasLanguageOption(String language, String option) {
+        String[] parts = language.split("/");
+        for (int i=1; i<parts.length; i++) {
+            if (parts[i].trim().equalsIgnoreCase(option)) return true;
+        }
+        return false;
+    }
+
     public static String getCanonicLanguageName(String language) {
         String s = language.toLowerCase();
+        if (s.indexOf('/') >= 0) {
+            s = s.substring(0, s.indexOf('/'));
+        }
         s = replace(s, "+", "plus");
         s = replace(s, "-", "minus");
         return s;
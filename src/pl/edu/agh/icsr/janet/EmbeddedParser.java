@@ -793,10 +793,10 @@ case 177:
 { notSupported(cxt, "unary minus operator"); ;
     break;}
 case 178:
-{ yyval = new YYPtrFetchExpression(cxt, ((YYExpression)(yyvs.tth(0))), false); ;
+{ yyval = new YYPtrFetchExpression(cxt, ((YYExpression)(yyvs.tth(0))), false, yyvs.tth(-1) != null); ;
     break;}
 case 179:
-{ yyval = new YYPtrFetchExpression(cxt, ((YYExpression)(yyvs.tth(0))), true); ;
+{ yyval = new YYPtrFetchExpression(cxt, ((YYExpression)(yyvs.tth(0))), true, yyvs.tth(-1) != null); ;
     break;}
 case 181:
 { notSupported(cxt, "++ operator"); ;
@@ -52,7 +52,7 @@ public class Janet {
             int i = parseInitialParams(args, s, cm);
             int processedInputFiles = 0;
 
-            // Phase 1: parse files
+            // collect input files, with the libraries specified for them
             while (i<args.length) {
                 if (args[i].startsWith("-")) {
                     i = parseThroughoutParam(args, i, s, cm);
@@ -65,7 +65,7 @@ public class Janet {
                     url = inFile.toURI().toURL();
                 } catch (MalformedURLException e) { throw new RuntimeException(); }
 
-                cm.parse(url, inFile, true);
+                cm.addInput(url, inFile);
                 i++;
                 processedInputFiles++;
             }
@@ -76,6 +76,9 @@ public class Janet {
                 return;
             }
 
+            // Phase 1: parse files
+            cm.parse();
+
             // Phase 2: resolve semantic dependences
             cm.resolve();
 
@@ -128,6 +131,29 @@ public class Janet {
         //System.out.println("  -qnames                  Generate name output files with fully qualified class names");
         System.out.println("  -comments                Put comments in output files");
         System.out.println("  -strict                  Enforce strict access checks for non-public members");
+        System.out.println("  -registernatives         Bind native methods with RegisterNatives instead of");
+        System.out.println("                           exporting a JNI symbol for each of them");
+        System.out.println("  -linkunits               Share link tables among all classes of a library");
+        System.out.println("  -localframes             Release references created in nested native blocks");
+        System.out.println("                           with JNI local reference frames");
+        System.out.println("  -nosetjmp                Propagate exceptions in native code with goto instead");
+        System.out.println("                           of setjmp/longjmp (requires GCC or Clang)");
+        System.out.println("  -outline                 Move embedded Java statements making several JNI calls");
+        System.out.println("                           into helper methods, invoked with a single call");
+        System.out.println("  -arglengths              Compute lengths of array parameters in Java wrappers");
+        System.out.println("                           of native methods, passing them as arguments");
+        System.out.println("  -utf8strings             Use standard UTF-8, transcoded by java.lang.String,");
+        System.out.println("                           for #&str and #$(...) instead of modified UTF-8");
+        System.out.println("  -ffm                     Call native methods not using embedded Java through");
+        System.out.println("                           java.lang.foreign downcall handles instead of JNI");
+        System.out.println("  -threadentries           Export entry points of static native methods that");
+        System.out.println("                           native threads can call, attaching them to the VM");
+        System.out.println("  -metrics                 Count calls, time, upcalls, array copies and string");
+        System.out.println("                           conversions of native methods, exposed through JMX");
+        System.out.println("  -threads <n>             Parse, resolve and write files in n threads; defaults");
+        System.out.println("                           to the number of available processors");
+        System.out.println("  -incremental             Translate only files changed since the previous run,");
+        System.out.println("                           and files depending on them");
     }
 
     public static class JanetException extends Exception {
@@ -139,6 +165,7 @@ public class Janet {
     {
         int idx=0;
         while (idx < args.length && args[idx].startsWith("-")) {
+            int start = idx;
             String param = args[idx++];
             if ("-verbose".equals(param)) {
                 settings.dbg_level = 1;
@@ -188,6 +215,49 @@ public class Janet {
             else if ("-strict".equals(param)) {
                 settings.strict_access = true;
             }
+            else if ("-registernatives".equals(param)) {
+                settings.register_natives = true;
+            }
+            else if ("-linkunits".equals(param)) {
+                settings.link_units = true;
+            }
+            else if ("-localframes".equals(param)) {
+                settings.local_frames = true;
+            }
+            else if ("-nosetjmp".equals(param)) {
+                settings.no_setjmp = true;
+            }
+            else if ("-outline".equals(param)) {
+                settings.outline_java = true;
+            }
+            else if ("-arglengths".equals(param)) {
+                settings.arg_lengths = true;
+            }
+            else if ("-utf8strings".equals(param)) {
+                settings.utf8_strings = true;
+            }
+            else if ("-ffm".equals(param)) {
+                settings.foreign = true;
+            }
+            else if ("-threadentries".equals(param)) {
+                settings.thread_entries = true;
+            }
+            else if ("-metrics".equals(param)) {
+                settings.metrics = true;
+            }
+            else if ("-threads".equals(param)) {
+                if (idx >= args.length) {
+                    throw new JanetException("-threads: missing value");
+                }
+                settings.threads = Settings.parseInt("threads", args[idx++]);
+                if (settings.threads < 1) {
+                    throw new JanetException("Invalid value for -threads " +
+                        "parameter: must be at least 1");
+                }
+            }
+            else if ("-incremental".equals(param)) {
+                settings.incremental = true;
+            }
             else if ("-noloadlibrary".equals(param)) {
                 cm.setLoadLibrary(false);
             }
@@ -199,6 +269,11 @@ public class Janet {
                 }
                 idx = newidx;
             }
+            if (settings.affectsOutput(param)) {
+                for (int i=start; i<idx; i++) {
+                    settings.options.append(' ').append(args[i]);
+                }
+            }
         }
         return idx;
     }
@@ -260,6 +335,20 @@ public class Janet {
         private boolean dump_tree;
         private boolean source_comments;
         private boolean strict_access;
+        private boolean register_natives;
+        private boolean link_units;
+        private boolean local_frames;
+        private boolean no_setjmp;
+        private boolean utf8_strings;
+        private boolean outline_java;
+        private boolean arg_lengths;
+        private boolean foreign;
+        private boolean thread_entries;
+        private boolean metrics;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private boolean incremental;
+        // options affecting the output, as given (for -incremental)
+        private StringBuffer options = new StringBuffer();
         private String headerDir;
         private ClassLoader classLoader = ClassLoader.getSystemClassLoader();
         private ClassLoader srcLoader = new URLClassLoader(path2URLs(
@@ -271,6 +360,18 @@ public class Janet {
         //public boolean getQnames() { return qnames; }
         public boolean sourceComments() { return source_comments; }
         public boolean strictAccess() { return strict_access; }
+        public boolean registerNatives() { return register_natives; }
+        public boolean linkUnits() { return link_units; }
+        public boolean localFrames() { return local_frames; }
+        public boolean noSetjmp() { return no_setjmp; }
+        public boolean utf8Strings() { return utf8_strings; }
+        public boolean outlineJava() { return outline_java; }
+        public boolean argLengths() { return arg_lengths; }
+        public boolean foreign() { return foreign; }
+        public boolean threadEntries() { return thread_entries; }
+        public boolean metrics() { return metrics; }
+        public int getThreads() { return threads; }
+        public boolean incremental() { return incremental; }
         public void setHeaderDir(String dir) { this.headerDir = dir; }
         public String getHeaderDir() { return headerDir; }
 
@@ -280,6 +381,17 @@ public class Janet {
         public PrintWriter getFErr() { return ferr; }
         public int getDbgLevel() { return dbg_level; }
 
+        public String getOptions() {
+            return options + (headerDir != null ? " -headerdir " + headerDir : "");
+        }
+
+        boolean affectsOutput(String option) {
+            return !option.startsWith("-verbose") && !"-threads".equals(option) &&
+                !"-incremental".equals(option) && !"-dumpclasses".equals(option) &&
+                !"-dumptree".equals(option) && !"-library".equals(option) &&
+                !"-headerdir".equals(option);
+        }
+
         static int parseInt(String name, String value) throws JanetException {
             try {
                 return Integer.parseInt(value);
@@ -585,6 +585,28 @@ havenumber:
         }
         token.setText(lexbuf);
     }
+
+    // "const &" and "const #&": read-only address fetch operators; they
+    // are returned as '&' and NH_ARRAY_PTR with Boolean.TRUE semantic value
+    void collectConstPtrFetch() throws LexException, IOException {
+        YYLocation beg = new YYLocation();
+        beg.copyFrom(pbeg);
+        skipWhites();
+        newTokenHere();
+        int ch = nextChar();
+        if (ch == '&') {
+            collectOperator(ch);
+        } else if (ch == '#') {
+            collectNativeExpressionHeader();
+        }
+        if (token.getTokenType() != '&' &&
+                token.getTokenType() != TokenTypes.NH_ARRAY_PTR) {
+            lexError("'const' may only precede the address fetch " +
+                "operators '&' and '#&'");
+        }
+        token.setYYlval(Boolean.TRUE);
+        pbeg.copyFrom(beg);
+    }
     // maybe should disregard rather than throw an exception
     void collectUnknown(int ch0) throws LexException {
         lexError("Unknown character encountered: '" + (char)ch0 + '\'');
@@ -688,6 +710,10 @@ havenumber:
                 break;
             } // for (;;)
 
+            if (token.getTokenType() == TokenTypes.CONST) {
+                collectConstPtrFetch();
+            }
+
             token.setBeg(pbeg);
             token.setEnd(loc);
             return token.getTokenType();
@@ -0,0 +1,149 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package pl.edu.agh.icsr.janet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+
+import pl.edu.agh.icsr.janet.reflect.ClassManager;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.reflect.IFieldInfo;
+import pl.edu.agh.icsr.janet.reflect.IMethodInfo;
+
+/**
+ * Classes, fields, methods and string literals referenced from native code,
+ * resolved at run time through a common set of tables. By default, every
+ * class has its own link unit; with -linkunits, all classes of a native
+ * library share one, so that each entity is resolved once per library.
+ */
+public class LinkUnit {
+
+    // library name; null if the unit is private to a class
+    String libName;
+
+    // maps signatures to indexes in appropriate vectors
+    Map<String, Integer> referencedClassesIdx;
+    Map<String, Integer> referencedFieldsIdx;
+    Map<String, Integer> referencedMethodsIdx;
+    Map<String, Integer> referencedStringLiteralsIdx;
+
+    Vector<IClassInfo> referencedClasses;
+    Vector<Boolean> referencedClassesWeak;
+    Vector<IFieldInfo> referencedFields;
+    Vector<Integer> referencedFieldsClsIdxs;
+    Vector<IMethodInfo> referencedMethods;
+    Vector<Integer> referencedMethodsClsIdxs;
+    Vector<String> referencedStringLiterals;
+
+    public LinkUnit(String libName) {
+        this.libName = libName;
+
+        this.referencedClassesIdx = new HashMap<String, Integer>();
+        this.referencedFieldsIdx = new HashMap<String, Integer>();
+        this.referencedMethodsIdx = new HashMap<String, Integer>();
+        this.referencedStringLiteralsIdx = new HashMap<String, Integer>();
+
+        this.referencedClasses = new Vector<IClassInfo>();
+        this.referencedClassesWeak = new Vector<Boolean>();
+        this.referencedFields = new Vector<IFieldInfo>();
+        this.referencedFieldsClsIdxs = new Vector<Integer>();
+        this.referencedMethods = new Vector<IMethodInfo>();
+        this.referencedMethodsClsIdxs = new Vector<Integer>();
+        this.referencedStringLiterals = new Vector<String>();
+    }
+
+    public boolean isShared() {
+        return libName != null;
+    }
+
+    public String getLibName() {
+        return libName;
+    }
+
+    /**
+     * Prefix of C identifiers of the shared tables.
+     */
+    public String getCName() {
+        return "_janet_lu_" + ClassManager.mangle(libName);
+    }
+
+    /**
+     * Name of the C file defining the shared tables.
+     */
+    public String getCFileName() {
+        return ClassManager.mangle(libName) + "_link.c";
+    }
+
+    /**
+     * @param weak whether the class is to be referenced weakly; used for
+     *        classes declaring the native methods, so that they can be
+     *        unloaded
+     */
+    public Integer addReferencedClass(IClassInfo cls, boolean weak) {
+        String key = cls.getJNIName();
+        Integer old = referencedClassesIdx.get(key);
+        if (old != null) {
+            if (weak) referencedClassesWeak.set(old.intValue(), Boolean.TRUE);
+            return old;
+        }
+        Integer pos = new Integer(referencedClasses.size());
+        referencedClasses.add(cls);
+        referencedClassesWeak.add(Boolean.valueOf(weak));
+        referencedClassesIdx.put(key, pos);
+        return pos;
+    }
+
+    public Integer addReferencedMethod(int classidx, IMethodInfo mth)
+            throws ParseException {
+        String key = ClassManager.getMethodKey(mth);
+        Integer old = referencedMethodsIdx.get(key);
+        if (old != null) {
+            return old;
+        }
+        Integer pos = new Integer(referencedMethods.size());
+        referencedMethods.add(mth);
+        referencedMethodsClsIdxs.add(new Integer(classidx));
+        referencedMethodsIdx.put(key, pos);
+        return pos;
+    }
+
+    public Integer addReferencedField(int classidx, IFieldInfo fld)
+            throws CompileException {
+        String key = ClassManager.getFieldKey(fld);
+        Integer old = referencedFieldsIdx.get(key);
+        if (old != null) {
+            return old;
+        }
+        Integer pos = new Integer(referencedFields.size());
+        referencedFields.add(fld);
+        referencedFieldsClsIdxs.add(new Integer(classidx));
+        referencedFieldsIdx.put(key, pos);
+        return pos;
+    }
+
+    public Integer addReferencedStringLiteral(String lit) {
+        String interlit = lit.intern();
+        Integer old = referencedStringLiteralsIdx.get(interlit);
+        if (old != null) {
+            return old;
+        }
+        Integer pos = new Integer(referencedStringLiterals.size());
+        referencedStringLiterals.add(interlit);
+        referencedStringLiteralsIdx.put(interlit, pos);
+        return pos;
+    }
+
+    public boolean isReferencedClassWeak(int idx) {
+        return referencedClassesWeak.get(idx).booleanValue();
+    }
+
+    public Vector<IClassInfo> getReferencedClasses() { return referencedClasses; }
+    public Vector<IMethodInfo> getReferencedMethods() { return referencedMethods; }
+    public Vector<Integer> getRefMethodClsIdxs() { return referencedMethodsClsIdxs; }
+    public Vector<IFieldInfo> getReferencedFields() { return referencedFields; }
+    public Vector<Integer> getRefFieldClsIdxs() { return referencedFieldsClsIdxs; }
+    public Vector<String> getRefStringLiterals() { return referencedStringLiterals; }
+}
@@ -19,6 +19,7 @@ import pl.edu.agh.icsr.janet.reflect.IFieldInfo;
 import pl.edu.agh.icsr.janet.reflect.IMethodInfo;
 import pl.edu.agh.icsr.janet.reflect.INativeMethodInfo;
 import pl.edu.agh.icsr.janet.yytree.YYClass;
+import pl.edu.agh.icsr.janet.yytree.YYNativeMethod;
 import pl.edu.agh.icsr.janet.yytree.YYNativeMethodImplementation;
 import pl.edu.agh.icsr.janet.yytree.YYStaticNativeStatement;
 import pl.edu.agh.icsr.janet.yytree.YYVariableDeclarator;
@@ -35,6 +36,16 @@ public class NativeWriter {
         "#include %JANET_BASE_H%\n" +
         "\n";
 
+    static final String linkUnitHeader =
+        "/**\n" +
+        " * file:      %__CFILENAME__%\n" +
+        " * library:   %LIBNAME%\n" +
+        " * generated: %__DATE__%\n" +
+        " */\n" +
+        "\n" +
+        "#include %JANET_BASE_H%\n" +
+        "\n";
+
     BufferedWriter fileWriter;
     Writer.Substituter subst;
     ClassManager classMgr;
@@ -42,6 +53,10 @@ public class NativeWriter {
     Hashtable<String, IWriter> nwriters;
     String filename;
 
+    // entries of the JNINativeMethod table of the current class;
+    // used only with -registernatives
+    Vector<String> registeredNatives;
+
     public NativeWriter(Writer.Substituter subst, Janet.Settings settings,
                         ClassManager classMgr) {
         this.subst = subst;
@@ -60,29 +75,120 @@ public class NativeWriter {
         File cOutput = new File(dir, filename);
         fileWriter = new BufferedWriter(new FileWriter(cOutput));
         subst.setSubst("__CFILENAME__", filename);
+        setJanetBaseHSubst();
+        fileWriter.write(Janet.getGeneratedCodeLicense());
+        fileWriter.write(subst.substitute(janetHeader));
+        registeredNatives = new Vector<String>();
+        LinkUnit unit = cls.getLinkUnit();
+        if (unit.isShared()) {
+            writeSharedRefs(unit);
+        } else {
+            writeRefClasses(unit, null);
+            writeRefFields(unit, null);
+            writeRefMethods(unit, null);
+            writeRefStringLiterals(unit, null);
+        }
+        if (settings.threadEntries()) {
+            // weak, so that native threads do not keep the class loaded
+            fileWriter.write("static _janet_threadcls _janet_threadclass = { 0, 0 };\n\n");
+        }
+        writeInitMethods(cls);
+    }
+
+    void setJanetBaseHSubst() {
         if (settings.getHeaderDir() == null) {
             subst.setSubst("JANET_BASE_H", "<janet_base.h>");
         } else {
             subst.setSubst("JANET_BASE_H", "\"" + settings.getHeaderDir() + "/janet_base.h\"");
         }
-        fileWriter.write(Janet.getGeneratedCodeLicense());
-        fileWriter.write(subst.substitute(janetHeader));
-        writeRefClasses(cls);
-        writeRefFields(cls);
-        writeRefMethods(cls);
-        writeRefStringLiterals(cls);
-        writeInitMethods(cls);
     }
 
-    void writeRefClasses(YYClass cls) throws IOException {
-        Vector<IClassInfo> refClasses = cls.getReferencedClasses();
+    /**
+     * Writes the file with tables shared by all classes of a library.
+     */
+    public void writeLinkUnit(LinkUnit unit) throws IOException {
+        filename = unit.getCFileName();
+        File cOutput = new File(settings.getTargetDirectory(), filename);
+        fileWriter = new BufferedWriter(new FileWriter(cOutput));
+        try {
+            subst.setSubst("__CFILENAME__", filename);
+            subst.setSubst("LIBNAME", unit.getLibName());
+            setJanetBaseHSubst();
+            fileWriter.write(Janet.getGeneratedCodeLicense());
+            fileWriter.write(subst.substitute(linkUnitHeader));
+            String cname = unit.getCName();
+            writeRefClasses(unit, cname);
+            writeRefFields(unit, cname);
+            writeRefMethods(unit, cname);
+            writeRefStringLiterals(unit, cname);
+            fileWriter.write("_janet_linkunit " + cname + " = {\n" +
+                "   0,\n" +
+                "   " + getRefTableName(unit.getReferencedClasses(), cname, "classes") +
+                    ", " + unit.getReferencedClasses().size() + ",\n" +
+                "   " + getRefTableName(unit.getReferencedFields(), cname, "fields") +
+                    ", " + unit.getReferencedFields().size() + ",\n" +
+                "   " + getRefTableName(unit.getReferencedMethods(), cname, "methods") +
+                    ", " + unit.getReferencedMethods().size() + ",\n" +
+                "   " + getRefTableName(unit.getRefStringLiterals(), cname, "strings") +
+                    ", " + unit.getRefStringLiterals().size() + "\n" +
+                "};\n");
+            subst.unsetSubst("LIBNAME");
+            subst.unsetSubst("__CFILENAME__");
+            fileWriter.flush();
+            fileWriter.close();
+            fileWriter = null;
+        } catch (IOException e) {
+            throw new IOException("can't write to file " + filename +
+                ": " + e.getMessage());
+        }
+    }
+
+    static String getRefTableName(Vector<?> table, String cname, String kind) {
+        return table.size() == 0 ? "((void*)0)" : cname + "_" + kind;
+    }
+
+    /**
+     * Refers the class to the tables of its library.
+     */
+    void writeSharedRefs(LinkUnit unit) throws IOException {
+        String cname = unit.getCName();
+        fileWriter.write("/* link tables of library " + unit.getLibName() +
+            ", defined in " + unit.getCFileName() + " */\n");
+        fileWriter.write("extern _janet_linkunit " + cname + ";\n");
+        writeSharedRef(unit.getReferencedClasses(), cname, "classes", "_janet_cls");
+        writeSharedRef(unit.getReferencedFields(), cname, "fields", "_janet_fld");
+        writeSharedRef(unit.getReferencedMethods(), cname, "methods", "_janet_mth");
+        writeSharedRef(unit.getRefStringLiterals(), cname, "strings", "_janet_str");
+        fileWriter.write("\n");
+    }
+
+    void writeSharedRef(Vector<?> table, String cname, String kind, String type)
+            throws IOException {
+        String name = getRefTableName(table, cname, kind);
+        if (table.size() > 0) {
+            fileWriter.write("extern " + type + " " + name + "[];\n");
+        }
+        fileWriter.write("#define _janet_dep" + kind + " " + name + "\n");
+    }
+
+    /**
+     * Writes a table of referenced entities: a static one private to a
+     * class (if <code>cname</code> is null), or one of a shared link unit.
+     */
+    void writeRefClasses(LinkUnit unit, String cname) throws IOException {
+        Vector<IClassInfo> refClasses = unit.getReferencedClasses();
         if (refClasses.size() == 0) {
-            fileWriter.write("#define _janet_depclasses ((void*)0)\n\n");
+            if (cname == null) {
+                fileWriter.write("#define _janet_depclasses ((void*)0)\n\n");
+            }
         } else {
-            fileWriter.write("static _janet_cls _janet_depclasses[] = {\n");
+            fileWriter.write(cname == null
+                ? "static _janet_cls _janet_depclasses[] = {\n"
+                : "_janet_cls " + cname + "_classes[] = {\n");
             for (int i=0, len = refClasses.size(); i<len; i++) {
                 IClassInfo refcls = refClasses.get(i);
-                fileWriter.write("   { 0, " + (i==0 ? "1" : "0") + ", \"");
+                fileWriter.write("   { 0, " +
+                    (unit.isReferencedClassWeak(i) ? "1" : "0") + ", \"");
                 fileWriter.write(refcls.getJNIName());
                 fileWriter.write("\" },\n");
             }
@@ -90,20 +196,25 @@ public class NativeWriter {
         }
     }
 
-    void writeRefFields(YYClass cls) throws IOException {
-        Vector<IFieldInfo> refFields = cls.getReferencedFields();
-        Vector<Integer> refFieldsClsIdxs = cls.getRefFieldClsIdxs();
+    void writeRefFields(LinkUnit unit, String cname) throws IOException {
+        Vector<IFieldInfo> refFields = unit.getReferencedFields();
+        Vector<Integer> refFieldsClsIdxs = unit.getRefFieldClsIdxs();
+        String classes = (cname == null ? "_janet_depclasses" : cname + "_classes");
         if (refFields.size() == 0) {
-            fileWriter.write("#define _janet_depfields ((void*)0)\n\n");
+            if (cname == null) {
+                fileWriter.write("#define _janet_depfields ((void*)0)\n\n");
+            }
             return;
         }
-        fileWriter.write("static _janet_fld _janet_depfields[] = {\n");
+        fileWriter.write(cname == null
+            ? "static _janet_fld _janet_depfields[] = {\n"
+            : "_janet_fld " + cname + "_fields[] = {\n");
         for (int i=0, len = refFields.size(); i<len; i++) {
             IFieldInfo reffld = refFields.get(i);
             int clsidx = refFieldsClsIdxs.get(i).intValue();
             try {
                 fileWriter.write("   { 0, " +
-                    "&_janet_depclasses[" + clsidx + "], " +
+                    "&" + classes + "[" + clsidx + "], " +
                     (Modifier.isStatic(reffld.getModifiers()) ? "1" : "0") +
                     ", \"" + reffld.getName() + "\"" +
                     ", \"" + reffld.getType().getSignature() + "\" },\n");
@@ -114,20 +225,25 @@ public class NativeWriter {
         fileWriter.write("};\n\n");
     }
 
-    void writeRefMethods(YYClass cls) throws IOException {
-        Vector<IMethodInfo> refMethods = cls.getReferencedMethods();
-        Vector<Integer> refMethodsClsIdxs = cls.getRefMethodClsIdxs();
+    void writeRefMethods(LinkUnit unit, String cname) throws IOException {
+        Vector<IMethodInfo> refMethods = unit.getReferencedMethods();
+        Vector<Integer> refMethodsClsIdxs = unit.getRefMethodClsIdxs();
+        String classes = (cname == null ? "_janet_depclasses" : cname + "_classes");
         if (refMethods.size() == 0) {
-            fileWriter.write("#define _janet_depmethods ((void*)0)\n\n");
+            if (cname == null) {
+                fileWriter.write("#define _janet_depmethods ((void*)0)\n\n");
+            }
             return;
         }
-        fileWriter.write("static _janet_mth _janet_depmethods[] = {\n");
+        fileWriter.write(cname == null
+            ? "static _janet_mth _janet_depmethods[] = {\n"
+            : "_janet_mth " + cname + "_methods[] = {\n");
         for (int i=0, len = refMethods.size(); i<len; i++) {
             IMethodInfo refmth = refMethods.get(i);
             int clsidx = refMethodsClsIdxs.get(i).intValue();
             try {
                 fileWriter.write("   { 0, " +
-                    "&_janet_depclasses[" + clsidx + "], " +
+                    "&" + classes + "[" + clsidx + "], " +
                     (Modifier.isStatic(refmth.getModifiers()) ? "1" : "0") +
                     ", \"" +
                     (refmth.isConstructor() ? "<init>" : refmth.getName()) +
@@ -140,14 +256,18 @@ public class NativeWriter {
         fileWriter.write("};\n\n");
     }
 
-    void writeRefStringLiterals(YYClass cls) throws IOException {
-        Vector<String> refStrings = cls.getRefStringLiterals();
+    void writeRefStringLiterals(LinkUnit unit, String cname) throws IOException {
+        Vector<String> refStrings = unit.getRefStringLiterals();
         //Vector refFieldsClsIdxs = cls.getRefFieldClsIdxs();
         if (refStrings.size() == 0) {
-            fileWriter.write("#define _janet_depstrings ((void*)0)\n\n");
+            if (cname == null) {
+                fileWriter.write("#define _janet_depstrings ((void*)0)\n\n");
+            }
             return;
         }
-        fileWriter.write("static _janet_str _janet_depstrings[] = {\n");
+        fileWriter.write(cname == null
+            ? "static _janet_str _janet_depstrings[] = {\n"
+            : "_janet_str " + cname + "_strings[] = {\n");
         for (int i=0, len = refStrings.size(); i<len; i++) {
             String utf = ClassManager.utf2cstring(ClassManager.unicode2UTF(
                 refStrings.get(i)));
@@ -160,30 +280,119 @@ public class NativeWriter {
         fileWriter.write("void _");*/
 
     void writeInitMethods(YYClass cls) throws IOException {
+        if (settings.registerNatives()) {
+            // written by classWriteFinalize, after all the native methods
+            // have been collected in the registration table
+            return;
+        }
+        writeClassInitMethod(cls);
+        writeClassFinalizeMethod(cls);
+    }
+
+    void writeClassInitMethod(YYClass cls) throws IOException {
+        // janetClassInit$ is always exported, as it registers the others
         fileWriter.write(getNativeMethodHeader(cls, true,
-            cls.getClassManager().VOID, "janetClassInit$", false, null));
+            cls.getClassManager().VOID, "janetClassInit$", false, null, null,
+            true));
         fileWriter.write(
             "{\n" +
+            (settings.registerNatives()
+                ? "    _JANET_REGISTER_NATIVES(_janet_natives, " +
+                      registeredNatives.size() + ");\n"
+                : "") +
             "    _JANET_INIT();\n" +
-            "    _JANET_LINK(" +
+            (cls.getLinkUnit().isShared()
+                ? "    _JANET_LINK_UNIT(&" + cls.getLinkUnit().getCName() + ");\n"
+                : "    _JANET_LINK(" +
             "_janet_depclasses, " + cls.getReferencedClasses().size() + ", " +
             "_janet_depfields, " + cls.getReferencedFields().size() + ", " +
             "_janet_depmethods, " + cls.getReferencedMethods().size() + ", " +
-            "_janet_depstrings, " + cls.getRefStringLiterals().size() + ");\n" +
+            "_janet_depstrings, " + cls.getRefStringLiterals().size() + ");\n") +
+            (settings.threadEntries()
+                ? "    _JANET_ATOMIC_STORE(&_janet_threadclass.cls,\n" +
+                  "        (jclass)JNI_NEW_WEAK_GLOBAL_REF(_janet_jthisclass));\n"
+                : "") +
             "}\n\n");
+    }
 
+    void writeClassFinalizeMethod(YYClass cls) throws IOException {
         fileWriter.write(getNativeMethodHeader(cls, true,
-            cls.getClassManager().VOID, "janetClassFinalize$", false, null));
+            cls.getClassManager().VOID, "janetClassFinalize$", false, null,
+            null, !settings.registerNatives()));
         fileWriter.write(
             "{\n" +
-            "    _JANET_UNLINK(" +
-            "_janet_depclasses, " + cls.getReferencedClasses().size() + ");\n" +
+            (settings.threadEntries()
+                ? "    _JANET_RELEASE_THREAD_CLASS(&_janet_threadclass);\n"
+                : "") +
+            (cls.getLinkUnit().isShared()
+                ? "    _JANET_UNLINK_UNIT(&" + cls.getLinkUnit().getCName() + ");\n"
+                : "    _JANET_UNLINK(" +
+            "_janet_depclasses, " + cls.getReferencedClasses().size() + ");\n") +
             "    _JANET_FINALIZE();\n" +
             "}\n\n");
+        if (settings.registerNatives()) {
+            addRegisteredNative("janetClassFinalize$", "()V",
+                getNativeMethodName(cls, "janetClassFinalize$", false, null,
+                                    null));
+        }
+    }
+
+    void writeRegisteredNatives() throws IOException {
+        fileWriter.write("static JNINativeMethod _janet_natives[] = {\n");
+        for (String entry : registeredNatives) {
+            fileWriter.write(entry);
+        }
+        fileWriter.write("};\n\n");
+    }
+
+    void addRegisteredNative(String name, String signature, String fname) {
+        registeredNatives.add("   { (char*)\"" + name + "\", (char*)\"" +
+            signature + "\", (void*)" + fname + " },\n");
+    }
+
+    void writeMetricsMethod(YYClass cls) throws IOException {
+        int size = cls.getMetricsMethodsNum();
+        fileWriter.write(
+            (settings.registerNatives() ? "static " : "JNIEXPORT ") +
+            "jlongArray JNICALL\n" +
+            getNativeMethodName(cls, "janetMetrics$", false, null, null) +
+            "(\n" +
+            Writer.makeIndent(8) + "JNIEnv* _janet_jnienv,\n" +
+            Writer.makeIndent(8) + "jclass _janet_jthisclass)\n" +
+            "{\n");
+        if (size > 0) {
+            fileWriter.write("    static _janet_methodMetrics* metrics[] = {");
+            for (int i=0; i<size; i++) {
+                fileWriter.write((i > 0 ? "," : "") + "\n        &" +
+                                 getMetricsName(i));
+            }
+            fileWriter.write("\n    };\n" +
+                "    return _JANET_METRICS_SNAPSHOT(metrics, " + size + ");\n");
+        } else {
+            fileWriter.write("    return _JANET_METRICS_SNAPSHOT(0, 0);\n");
+        }
+        fileWriter.write("}\n\n");
+        if (settings.registerNatives()) {
+            addRegisteredNative("janetMetrics$", "()[J",
+                getNativeMethodName(cls, "janetMetrics$", false, null, null));
+        }
+    }
+
+    static String getMetricsName(int idx) {
+        return "_janet_metrics_" + idx;
     }
 
-    public void classWriteFinalize() throws IOException {
+    public void classWriteFinalize(YYClass cls) throws IOException {
         try {
+            if (settings.metrics()) {
+                writeMetricsMethod(cls);
+            }
+            if (settings.registerNatives()) {
+                writeClassFinalizeMethod(cls);
+                writeRegisteredNatives();
+                writeClassInitMethod(cls);
+            }
+            registeredNatives = null;
             subst.unsetSubst("__CFILENAME__");
             fileWriter.flush();
             fileWriter.close();
@@ -243,11 +452,31 @@ public class NativeWriter {
 
         YYNativeMethodImplementation nimpl = mth.getImplementation();
 
+        String metrics = null;
+        if (settings.metrics()) {
+            metrics = getMetricsName(cls.addMetricsMethod(mth));
+            write("static _janet_methodMetrics " + metrics + ";\n\n");
+        }
+
         write(getImplementationFunctionHeader(mth, true));
         write(";\n\n");
 
-        write(getNativeMethodHeader(mth));
+        write(getNativeMethodHeader(mth, !settings.registerNatives()));
         write("{\n");
+        if (metrics != null) {
+            write("    jlong _janet_start = _JANET_METRICS_START();\n");
+        }
+
+        if (settings.registerNatives()) {
+            try {
+                addRegisteredNative(mth.getNativeName(), getNativeSignature(mth),
+                    getNativeMethodName(mth.getDeclaringClass(),
+                        mth.getNativeName(), isNativeMethodOverloaded(mth),
+                        mth.getParameters(), mth.getLengthParameters()));
+            } catch (ParseException e) {
+                throw new RuntimeException();
+            }
+        }
 
         // write data structures for primitive type arrays if required
         if (nimpl.usesPrimitiveTypeArrays()) {
@@ -276,7 +505,11 @@ public class NativeWriter {
         }
 
         if (nimpl.usesPrimitiveTypeArrays()) {
-            write("    _janet_arrhtable.data = _janet_arrhtdata;\n\n");
+            write("    _janet_arrhtable.data = _janet_arrhtdata;\n");
+            if (metrics != null) {
+                write("    _janet_arrhtable.metrics = &" + metrics + ";\n");
+            }
+            write("\n");
         }
 
         // linking classes
@@ -352,6 +585,10 @@ public class NativeWriter {
                       nsync + ");\n\n");
             }
 
+            if (metrics != null) {
+                write("    _JANET_METRICS_END(&" + metrics + ", _janet_start);\n");
+            }
+
             if (mth.getReturnType() != classMgr.VOID) {
                 write("    return _janet_result;\n");
             }
@@ -362,6 +599,11 @@ public class NativeWriter {
         //finished
         write("}\n\n");
 
+        if (settings.threadEntries() &&
+                (mth.getModifiers() & Modifier.STATIC) != 0) {
+            writeThreadEntry(mth);
+        }
+
         // now get the native writer and write implementation body
         try {
             String nlang_name = CompilationManager.getCanonicLanguageName(
@@ -374,6 +616,112 @@ public class NativeWriter {
         }
     }
 
+    /**
+     * Writes the entry point through which native threads call a static
+     * native method. The thread is attached to the VM on its first call,
+     * and the call runs in a local frame, since an attached thread never
+     * returns to Java to have its local references released. Exceptions
+     * thrown by the method have no Java caller to go to; they are reported
+     * and cleared, as the VM does for exceptions ending a thread.
+     */
+    void writeThreadEntry(INativeMethodInfo mth) throws IOException {
+        try {
+            IClassInfo rettype = mth.getReturnType();
+            YYVariableDeclarator[] parameters = mth.getParameters();
+            YYVariableDeclarator[] lenparams = mth.getLengthParameters();
+            boolean isVoid = rettype == classMgr.VOID;
+
+            write("JNIEXPORT " + rettype.getJNIType() + " JNICALL\n" +
+                  getThreadEntryName(mth) + "(");
+            for (int i=0; i<parameters.length; i++) {
+                write((i > 0 ? "," : "") + "\n" + Writer.makeIndent(8) +
+                      parameters[i].getType().getJNIType() + " " +
+                      getNativeArgName(parameters[i].getName()));
+            }
+            write(parameters.length > 0 ? ")\n" : "void)\n");
+            write("{\n" +
+                  "    JNIEnv* _janet_jnienv = JANET_ATTACHED_ENV();\n" +
+                  "    jclass _janet_jthisclass;\n");
+            if (!isVoid) {
+                write("    " + rettype.getJNIType() + " _janet_result = 0;\n");
+            }
+            write("\n" +
+                  "    if (!_janet_jnienv) return" + (isVoid ? "" : " _janet_result") +
+                  ";\n" +
+                  "    if (JNI_PUSH_LOCAL_FRAME(16) == 0) {\n" +
+                  "        _janet_jthisclass = _JANET_THREAD_CLASS(&_janet_threadclass);\n" +
+                  "        if (_janet_jthisclass) {\n" +
+                  "            " + (isVoid ? "" : "_janet_result = ") +
+                  getNativeMethodName(mth.getDeclaringClass(),
+                      mth.getNativeName(), isNativeMethodOverloaded(mth),
+                      parameters, lenparams) +
+                  "(_janet_jnienv, _janet_jthisclass");
+            for (int i=0; i<parameters.length; i++) {
+                write(",\n                " +
+                      getNativeArgName(parameters[i].getName()));
+            }
+            for (int i=0; i<lenparams.length; i++) {
+                String arg = getNativeArgName(lenparams[i].getName());
+                write(",\n                " + arg + " ? JNI_GET_ARRAY_LENGTH(" +
+                      arg + ") : -1");
+            }
+            write(");\n" +
+                  "        }\n" +
+                  "        if (JNI_EXCEPTION_CHECK()) {\n" +
+                  "            JNI_EXCEPTION_DESCRIBE();\n" +
+                  "            JNI_EXCEPTION_CLEAR();\n" +
+                  "        }\n" +
+                  (rettype.isPrimitive()
+                      ? "        JNI_POP_LOCAL_FRAME(0);\n"
+                      : "        _janet_result = (" + rettype.getJNIType() +
+                        ")JNI_POP_LOCAL_FRAME(_janet_result);\n") +
+                  "    } else {\n" +
+                  "        JNI_EXCEPTION_DESCRIBE();\n" +
+                  "        JNI_EXCEPTION_CLEAR();\n" +
+                  "    }\n");
+            if (!isVoid) {
+                write("    return _janet_result;\n");
+            }
+            write("}\n\n");
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+    }
+
+    static String getThreadEntryName(INativeMethodInfo mth) {
+        try {
+            String s = "Janet_thread_" +
+                ClassManager.mangle(mth.getDeclaringClass().getFullName()) +
+                "_" + ClassManager.mangle(mth.getName());
+            if (isNativeMethodOverloaded(mth)) {
+                s += "__";
+                YYVariableDeclarator[] params = mth.getParameters();
+                for (int i=0; i<params.length; i++) {
+                    s += ClassManager.mangle(params[i].getType().getSignature());
+                }
+            }
+            return s;
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+    }
+
+    /**
+     * Writes the plain native function of a method called through
+     * java.lang.foreign; there is no JNI glue code for such methods.
+     */
+    public void writeForeignMethod(YYNativeMethod mth) throws IOException {
+        try {
+            String nlang_name = CompilationManager.getCanonicLanguageName(
+                mth.getNativeLanguage());
+
+            IWriter w = nwload(nlang_name);
+            w.writeForeign(mth);
+        } catch (Janet.JanetException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
     public void writeStaticNativeStatement(YYStaticNativeStatement stmt)
             throws IOException {
         try {
@@ -388,25 +736,41 @@ public class NativeWriter {
     }
 
 
-    static String getNativeMethodHeader(INativeMethodInfo mth) {
+    static String getNativeMethodHeader(INativeMethodInfo mth,
+                                        boolean exported) {
         try {
             return getNativeMethodHeader(mth.getDeclaringClass(),
                     (mth.getModifiers() & Modifier.STATIC) != 0,
-                     mth.getReturnType(), mth.getName(),
-                     isNativeMethodOverloaded(mth), mth.getParameters());
+                     mth.getReturnType(), mth.getNativeName(),
+                     isNativeMethodOverloaded(mth), mth.getParameters(),
+                     mth.getLengthParameters(), exported);
         } catch (ParseException e) {
             throw new RuntimeException();
         }
 
     }
 
-    static String getNativeMethodHeader(IClassInfo cls, boolean isStatic,
-            IClassInfo rettype, String methodName, boolean overridden,
-            YYVariableDeclarator[] parameters) {
+    /**
+     * Returns the JNI signature of the Java native method, including the
+     * array lengths passed as additional arguments.
+     */
+    static String getNativeSignature(INativeMethodInfo mth)
+            throws ParseException {
+        String s = "(" + mth.getArgumentSignature();
+        for (int i=0; i<mth.getLengthParameters().length; i++) {
+            s += "I";
+        }
+        return s + ")" + mth.getReturnType().getSignature();
+    }
+
+    /**
+     * Returns the JNI name of the function implementing given native method.
+     */
+    static String getNativeMethodName(IClassInfo cls, String methodName,
+            boolean overridden, YYVariableDeclarator[] parameters,
+            YYVariableDeclarator[] lenparams) {
         try {
-            String result =
-                "JNIEXPORT " + rettype.getJNIType() + " JNICALL\n" +
-                "Java_" +
+            String result = "Java_" +
                 ClassManager.mangle(cls.getFullName()) +
                 "_" + ClassManager.mangle(methodName);
 
@@ -418,7 +782,33 @@ public class NativeWriter {
                             getSignature());
                     }
                 }
+                if (lenparams != null) {
+                    for (int i=0; i<lenparams.length; i++) {
+                        result += "I";
+                    }
+                }
             }
+            return result;
+        } catch (ParseException e) {
+            throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Non-exported functions are static, and must be registered with
+     * RegisterNatives.
+     */
+    static String getNativeMethodHeader(IClassInfo cls, boolean isStatic,
+            IClassInfo rettype, String methodName, boolean overridden,
+            YYVariableDeclarator[] parameters,
+            YYVariableDeclarator[] lenparams, boolean exported) {
+        try {
+            String result =
+                (exported ? "JNIEXPORT " : "static ") +
+                rettype.getJNIType() + " JNICALL\n" +
+                getNativeMethodName(cls, methodName, overridden, parameters,
+                                    lenparams);
+
             result += "(\n";
             result += Writer.makeIndent(8) + "JNIEnv* _janet_jnienv,\n" +
                 Writer.makeIndent(8) +
@@ -432,6 +822,12 @@ public class NativeWriter {
                         getNativeArgName(parameters[i].getName());
                 }
             }
+            if (lenparams != null) {
+                for (int i=0; i<lenparams.length; i++) {
+                    result += ",\n" + Writer.makeIndent(8) + "jint " +
+                        getNativeLengthArgName(lenparams[i].getName());
+                }
+            }
             result += ")\n";
             return result;
         } catch (ParseException e) {
@@ -443,6 +839,10 @@ public class NativeWriter {
         return "_janet_arg_" + ClassManager.mangle(name);
     }
 
+    public static String getNativeLengthArgName(String name) {
+        return "_janet_arglen_" + ClassManager.mangle(name);
+    }
+
     public final static boolean isNativeMethodOverloaded(
             INativeMethodInfo mth) {
         try {
@@ -548,6 +948,16 @@ public class NativeWriter {
                 }
             }
 
+            int metricsIdx = ((YYClass)cls).getMetricsIndex(mth);
+            if (metricsIdx >= 0) {
+                s += ",\n        ";
+                if (isDeclaration) {
+                    s += "_janet_methodMetrics*";
+                } else {
+                    s += "&" + getMetricsName(metricsIdx);
+                }
+            }
+
             s += ",\n        ";
             if (isDeclaration) {
                 s += (Modifier.isStatic(mth.getModifiers())
@@ -568,6 +978,16 @@ public class NativeWriter {
                 }
             }
 
+            YYVariableDeclarator[] lenparams = mth.getLengthParameters();
+            for (int i=0; i<lenparams.length; i++) {
+                s += ",\n        ";
+                if (isDeclaration) {
+                    s += "jint";
+                } else {
+                    s += getNativeLengthArgName(lenparams[i].getName());
+                }
+            }
+
             s += (")");
             return s;
 
@@ -141,6 +141,9 @@ public static final int YYLAST = 4189;
     // (used for sourcepath; when sources are parsed but not translated)
     protected boolean doProcessThisFile;
 
+    // name of the native library for classes of this file (-library)
+    protected String libName;
+
     protected Lexer yylex;
     protected java.io.PrintWriter yyerr;
 
@@ -176,11 +179,13 @@ static final int YYTRANSLATE(int x)
         loc = yylex.loc();
     }
 
-    public int yyparse(CompilationManager compMgr, boolean doProcessThisFile)
+    public int yyparse(CompilationManager compMgr, boolean doProcessThisFile,
+                       String libName)
         throws ParseException
     {
         this.compMgr = compMgr;
     this.doProcessThisFile = doProcessThisFile;
+        this.libName = libName;
         this.lexmode = Lexer.JAVA_TOKEN;
         yylbeg.copyFrom(loc);
         yylend.copyFrom(loc);
@@ -372,7 +377,8 @@ static final int YYTRANSLATE(int x)
 
 case 1:
 { setNativeLanguage("c");
-        compUnit = new YYCompilationUnit(cxt, compMgr, doProcessThisFile);
+        compUnit = new YYCompilationUnit(cxt, compMgr, doProcessThisFile,
+            libName);
         pushScope(compUnit); ;
     break;}
 case 2:
@@ -2927,17 +2933,20 @@ public static void reportError(ILocationContext cxt, String msg, boolean errthro
     String orig = ibuf.getOriginAsString();
     String line = ibuf.getLine(lbeg);
 
-    System.err.println(orig + ":" + (lbeg.lineno+1) + ": " + msg);
-    if (line != null && !line.equals("")) {
-        System.err.println(line);
+    // files may be parsed and resolved in parallel; keep messages whole
+    synchronized (System.err) {
+        System.err.println(orig + ":" + (lbeg.lineno+1) + ": " + msg);
+        if (line != null && !line.equals("")) {
+            System.err.println(line);
 
-        String marker = "";
-        for (int i=0; i<lbeg.charno; i++) {
-            char c = line.charAt(i);
-            marker += (Character.isWhitespace(c) ? c : ' ');
+            String marker = "";
+            for (int i=0; i<lbeg.charno; i++) {
+                char c = line.charAt(i);
+                marker += (Character.isWhitespace(c) ? c : ' ');
+            }
+            marker += "^";
+            System.err.println(marker);
         }
-        marker += "^";
-        System.err.println(marker);
     }
     if(errthrow) throw new CompileException(msg);
 }
@@ -0,0 +1,528 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package pl.edu.agh.icsr.janet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import pl.edu.agh.icsr.janet.reflect.ClassManager;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.reflect.IFieldInfo;
+import pl.edu.agh.icsr.janet.reflect.IMethodInfo;
+import pl.edu.agh.icsr.janet.yytree.YYClass;
+import pl.edu.agh.icsr.janet.yytree.YYCompilationUnit;
+
+/**
+ * State of the previous run, kept in the target directory (-incremental).
+ * For every input file it records the hash of the file, the classes it
+ * declares with hashes of their API (modifiers, supertypes, and signatures
+ * of declared members) and their direct supertypes, the classes it uses,
+ * and hashes of the files written for it. Used classes are those its names
+ * were resolved to, and those it looked members up in, with the types of
+ * these members. Classes not declared by input files are recorded with
+ * hashes of their API, including the APIs of their supertypes.
+ *
+ * An input file is translated again if it or its output has changed, if a
+ * class it uses from outside the input files has changed its API, or if it
+ * uses a changed class of another input file. A class of an input file is
+ * changed if its API has changed, or if it inherits from a changed class.
+ * Everything is translated if options or the translator have changed, or
+ * if input files have been added, removed, or declare other classes.
+ */
+class TranslationCache {
+
+    static final String FILENAME = ".janet-cache";
+    static final String VERSION = "janet-cache 2";
+
+    File file;
+    Janet.Settings settings;
+    ClassManager classMgr;
+    String options;
+
+    // entries of the previous run, by URL of the input file (null if
+    // there is nothing to reuse)
+    Map<String, Entry> previous;
+
+    // input files declaring classes, in the previous run
+    Map<String, String> classInputs = new HashMap<String, String>();
+
+    // classes declared by input files
+    Set<String> inputClasses = new HashSet<String>();
+
+    // hashes of input files and of APIs of classes, in this run
+    Map<String, String> inputHashes = new HashMap<String, String>();
+    Map<String, String> apiHashes = new HashMap<String, String>();
+
+    // classes whose API or stamp has changed since the previous run
+    Set<String> changedClasses = new HashSet<String>();
+
+    static class Entry {
+        String url;
+        String hash;
+        String libName;
+        Map<String, String> classes = new TreeMap<String, String>();
+        Map<String, Set<String>> supers = new TreeMap<String, Set<String>>();
+        Map<String, String> uses = new TreeMap<String, String>();
+        Map<String, String> outputs = new TreeMap<String, String>();
+    }
+
+    TranslationCache(Janet.Settings settings, ClassManager classMgr) {
+        this.settings = settings;
+        this.classMgr = classMgr;
+        this.file = new File(settings.getTargetDirectory(), FILENAME);
+        this.options = hash(settings.getOptions() + " " +
+            getStamp(Janet.class.getResource("Janet.class")));
+    }
+
+    /**
+     * Returns the input files which have to be translated because they or
+     * their output have changed, or all of them if the previous run cannot
+     * be reused.
+     */
+    List<CompilationManager.Input> getModifiedInputs(
+            List<CompilationManager.Input> inputs)
+        throws ParseException, IOException
+    {
+        for (CompilationManager.Input input : inputs) {
+            inputHashes.put(input.url.toString(), hash(read(input.url)));
+        }
+        previous = load();
+        if (previous == null || !previous.keySet().equals(inputHashes.keySet())) {
+            previous = null;
+            return inputs;
+        }
+        List<CompilationManager.Input> modified =
+            new ArrayList<CompilationManager.Input>();
+        for (CompilationManager.Input input : inputs) {
+            if (isModified(input, previous.get(input.url.toString()))) {
+                modified.add(input);
+            }
+        }
+        return modified;
+    }
+
+    private boolean isModified(CompilationManager.Input input, Entry e)
+        throws ParseException, IOException
+    {
+        boolean modified = !e.hash.equals(inputHashes.get(e.url)) ||
+            !e.libName.equals(toString(input.libName));
+        for (Map.Entry<String, String> use : e.uses.entrySet()) {
+            if (use.getValue().equals("-")) continue; // declared by an input
+            if (!use.getValue().equals(getApiHash(use.getKey()))) {
+                changedClasses.add(use.getKey());
+                modified = true;
+            }
+        }
+        for (Map.Entry<String, String> output : e.outputs.entrySet()) {
+            if (!output.getValue().equals(hashFile(new File(output.getKey())))) {
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Tells whether the previous run may still be used, i.e. the parsed
+     * unit declares the same classes as before.
+     */
+    boolean declaresSameClasses(YYCompilationUnit unit) {
+        if (previous == null) return false;
+        Entry e = previous.get(unit.ibuf().getOriginURL().toString());
+        Set<String> names = new HashSet<String>();
+        Iterator<YYClass> i = unit.getDeclaredClassesIterator();
+        while (i.hasNext()) {
+            names.add(i.next().getFullName());
+        }
+        return e != null && names.equals(e.classes.keySet());
+    }
+
+    /**
+     * Gives the previous run up, so that everything is translated.
+     */
+    void discard() {
+        previous = null;
+    }
+
+    /**
+     * Compares APIs of classes of a modified unit with the previous run.
+     */
+    void compareClasses(YYCompilationUnit unit) throws ParseException {
+        Entry e = previous.get(unit.ibuf().getOriginURL().toString());
+        Iterator<YYClass> i = unit.getDeclaredClassesIterator();
+        while (i.hasNext()) {
+            YYClass cls = i.next();
+            String name = cls.getFullName();
+            if (!getApiHash(cls).equals(e.classes.get(name))) {
+                changedClasses.add(name);
+            }
+        }
+    }
+
+    /**
+     * Returns the URLs of input files using changed classes. Classes
+     * inheriting from a changed class are changed as well, so the files
+     * using them are included; other classes of the files found are not.
+     */
+    Set<String> getAffectedInputs() {
+        Map<String, Set<String>> users = new HashMap<String, Set<String>>();
+        for (Entry e : previous.values()) {
+            for (String name : e.uses.keySet()) {
+                addUser(users, name, e.url);
+            }
+            for (Set<String> names : e.supers.values()) {
+                for (String name : names) addUser(users, name, e.url);
+            }
+        }
+        Set<String> affected = new HashSet<String>();
+        LinkedList<String> queue = new LinkedList<String>(changedClasses);
+        Set<String> seen = new HashSet<String>(changedClasses);
+        while (!queue.isEmpty()) {
+            String changed = queue.removeFirst();
+            Set<String> urls = users.get(changed);
+            if (urls == null) continue;
+            for (String url : urls) {
+                affected.add(url);
+                for (Map.Entry<String, Set<String>> c :
+                         previous.get(url).supers.entrySet()) {
+                    if (c.getValue().contains(changed) && seen.add(c.getKey())) {
+                        queue.add(c.getKey());
+                    }
+                }
+            }
+        }
+        return affected;
+    }
+
+    private static void addUser(Map<String, Set<String>> users, String name,
+                                String url) {
+        Set<String> s = users.get(name);
+        if (s == null) users.put(name, s = new HashSet<String>());
+        s.add(url);
+    }
+
+    /**
+     * Returns the URL of the input file which declared the class in the
+     * previous run, or null.
+     */
+    String getInputOf(String className) {
+        return previous != null ? classInputs.get(className) : null;
+    }
+
+    /**
+     * Writes the entries of translated units, and those of the previous run
+     * for the other input files. Called only if all output has been written,
+     * so that after a failure the previous entries are kept, and the units
+     * are translated again next time.
+     */
+    void save(List<CompilationManager.Input> inputs,
+              Map<String, YYCompilationUnit> translated)
+        throws ParseException, IOException
+    {
+        if (previous == null) inputClasses.clear();
+        for (YYCompilationUnit unit : translated.values()) {
+            Iterator<YYClass> i = unit.getDeclaredClassesIterator();
+            while (i.hasNext()) {
+                inputClasses.add(i.next().getFullName());
+            }
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (CompilationManager.Input input : inputs) {
+            String url = input.url.toString();
+            YYCompilationUnit unit = translated.get(url);
+            entries.add(unit != null
+                ? newEntry(input, unit)
+                : previous.get(url));
+        }
+
+        // replace the file at once, so that a failed run leaves no half
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedWriter w = new BufferedWriter(new FileWriter(tmp));
+        try {
+            w.write(VERSION + "\n");
+            w.write("options " + options + "\n");
+            for (Entry e : entries) {
+                w.write("unit " + e.url + "\n");
+                w.write("hash " + e.hash + "\n");
+                w.write("lib " + e.libName + "\n");
+                for (Map.Entry<String, String> c : e.classes.entrySet()) {
+                    w.write("class " + c.getKey() + " " + c.getValue() + "\n");
+                }
+                for (Map.Entry<String, Set<String>> c : e.supers.entrySet()) {
+                    w.write("extends " + c.getKey());
+                    for (String name : c.getValue()) w.write(" " + name);
+                    w.write("\n");
+                }
+                for (Map.Entry<String, String> c : e.uses.entrySet()) {
+                    w.write("uses " + c.getKey() + " " + c.getValue() + "\n");
+                }
+                for (Map.Entry<String, String> c : e.outputs.entrySet()) {
+                    w.write("output " + c.getValue() + " " + c.getKey() + "\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot write " + file);
+            }
+        }
+    }
+
+    private Entry newEntry(CompilationManager.Input input,
+                           YYCompilationUnit unit)
+        throws ParseException, IOException
+    {
+        Entry e = new Entry();
+        e.url = input.url.toString();
+        e.hash = inputHashes.get(e.url);
+        e.libName = toString(input.libName);
+
+        File dir = Writer.getOutDirForInput(unit.ibuf(), settings);
+        addOutput(e, new File(dir, Writer.toJavaFilename(
+            unit.ibuf().getOriginFile().getName())), true);
+        Iterator<YYClass> i = unit.getDeclaredClassesIterator();
+        while (i.hasNext()) {
+            YYClass cls = i.next();
+            e.classes.put(cls.getFullName(), getApiHash(cls));
+            Set<String> supers = new TreeSet<String>(cls.getInterfaces().keySet());
+            if (!cls.isInterface()) supers.add(cls.getSuperclass().getFullName());
+            if (!supers.isEmpty()) e.supers.put(cls.getFullName(), supers);
+            String name = ClassManager.mangle(cls.getSimpleName());
+            addOutput(e, new File(dir, name + ".c"), false);
+            addOutput(e, new File(dir, name + "Impl.c"), false);
+            addOutput(e, new File(dir, name + "Impl.cc"), false);
+        }
+
+        for (IClassInfo cls : unit.getUsedClasses()) {
+            while (cls.isArray()) cls = cls.getComponentType();
+            if (!cls.isReference()) continue;
+            String name = cls.getFullName();
+            e.uses.put(name, inputClasses.contains(name) ? "-" : getApiHash(cls));
+        }
+        return e;
+    }
+
+    // native files are written only for classes with native code; the Java
+    // file is always, so if it is missing the unit is recorded as modified
+    private static void addOutput(Entry e, File f, boolean required)
+        throws IOException
+    {
+        String hash = hashFile(f);
+        if (hash != null) {
+            e.outputs.put(f.getPath(), hash);
+        } else if (required) {
+            e.outputs.put(f.getPath(), "-");
+        }
+    }
+
+    /**
+     * Hashes the API of a class not declared by input files, found by name;
+     * "none" if the class is not found.
+     */
+    String getApiHash(String className) throws ParseException {
+        String hash = apiHashes.get(className);
+        if (hash != null) return hash;
+        IClassInfo cls = classMgr.forName(className);
+        return cls != null ? getApiHash(cls) : "none";
+    }
+
+    /**
+     * Hashes the API of a class, as seen by the code using it. The hash of
+     * a class not declared by input files covers the members it inherits
+     * from outside of the input files; for classes of input files, these
+     * are taken care of by getAffectedInputs.
+     */
+    String getApiHash(IClassInfo cls) throws ParseException {
+        String name = cls.getFullName();
+        String hash = apiHashes.get(name);
+        if (hash != null) return hash;
+
+        boolean inherited = !inputClasses.contains(name);
+        StringBuffer b = new StringBuffer();
+        b.append(cls.getModifiers()).append(' ').append(name);
+        if (!cls.isInterface() && cls.getSuperclass() != null) {
+            appendSupertype(b, " extends ", cls.getSuperclass(), inherited);
+        }
+        for (IClassInfo intf : new TreeMap<String, IClassInfo>(
+                 cls.getInterfaces()).values()) {
+            appendSupertype(b, " implements ", intf, inherited);
+        }
+        b.append('\n');
+        for (IFieldInfo f : new TreeMap<String, IFieldInfo>(
+                 cls.getDeclaredFields()).values()) {
+            b.append(f.getModifiers()).append(' ').append(f.getName())
+             .append(' ').append(f.getType().getSignature()).append('\n');
+        }
+        appendMethods(b, cls.getConstructors());
+        appendMethods(b, cls.getDeclaredMethods());
+        apiHashes.put(name, hash = hash(b.toString()));
+        return hash;
+    }
+
+    private void appendSupertype(StringBuffer b, String keyword,
+            IClassInfo cls, boolean inherited) throws ParseException {
+        b.append(keyword).append(cls.getFullName());
+        if (inherited && !inputClasses.contains(cls.getFullName())) {
+            b.append(' ').append(getApiHash(cls));
+        }
+    }
+
+    private static void appendMethods(StringBuffer b,
+            Map<String, ? extends IMethodInfo> methods) throws ParseException {
+        for (IMethodInfo m : new TreeMap<String, IMethodInfo>(methods).values()) {
+            b.append(m.getModifiers()).append(' ').append(m.getName())
+             .append(m.getJNISignature()).append(" throws ")
+             .append(new TreeSet<String>(m.getExceptionTypes().keySet()))
+             .append('\n');
+        }
+    }
+
+    /**
+     * Reads the entries of the previous run; returns null if there are
+     * none, or they were made with other options or another translator.
+     */
+    private Map<String, Entry> load() throws IOException {
+        if (!file.isFile()) return null;
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        BufferedReader r = new BufferedReader(new FileReader(file));
+        try {
+            if (!VERSION.equals(r.readLine())) return null;
+            if (!("options " + options).equals(r.readLine())) return null;
+            Entry e = null;
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] s = line.split(" ", 3);
+                if (s[0].equals("unit") && s.length == 2) {
+                    e = new Entry();
+                    e.url = s[1];
+                    entries.put(e.url, e);
+                } else if (e == null || s.length < 2) {
+                    return null;
+                } else if (s[0].equals("hash")) {
+                    e.hash = s[1];
+                } else if (s[0].equals("lib")) {
+                    e.libName = s[1];
+                } else if (s[0].equals("class") && s.length == 3) {
+                    e.classes.put(s[1], s[2]);
+                    classInputs.put(s[1], e.url);
+                    inputClasses.add(s[1]);
+                } else if (s[0].equals("extends") && s.length == 3) {
+                    e.supers.put(s[1], new TreeSet<String>(
+                        Arrays.asList(s[2].split(" "))));
+                } else if (s[0].equals("uses") && s.length == 3) {
+                    e.uses.put(s[1], s[2]);
+                } else if (s[0].equals("output") && s.length == 3) {
+                    e.outputs.put(s[2], s[1]);
+                } else {
+                    return null;
+                }
+            }
+        } finally {
+            r.close();
+        }
+        for (Entry e : entries.values()) {
+            if (e.hash == null || e.libName == null) return null;
+        }
+        return entries;
+    }
+
+    static String getStamp(URL url) {
+        String s = url.toString();
+        if (s.startsWith("jar:") && s.indexOf("!/") > 0) {
+            s = s.substring("jar:".length(), s.indexOf("!/"));
+        }
+        if (s.startsWith("file:")) {
+            try {
+                File f = new File(new URI(s));
+                return f.length() + "-" + f.lastModified();
+            } catch (URISyntaxException e) {
+            } catch (IllegalArgumentException e) {}
+        }
+        // e.g. classes of the platform
+        return System.getProperty("java.version");
+    }
+
+    private static String toString(String libName) {
+        return libName != null ? libName : "-";
+    }
+
+    static String hashFile(File f) throws IOException {
+        if (!f.isFile()) return null;
+        InputStream in = new FileInputStream(f);
+        try {
+            return hash(read(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] read(URL url) throws IOException {
+        InputStream in = url.openStream();
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    static String hash(String s) {
+        try {
+            return hash(s.getBytes("UTF-8"));
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    static String hash(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuffer b = new StringBuffer(2 * digest.length);
+            for (int i=0; i<digest.length; i++) {
+                b.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+                b.append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return b.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
@@ -21,6 +21,7 @@ public class Writer {
     String jFilename;
     NativeWriter nativeWriter;
     Substituter subst;
+    boolean failed;
 
     public Writer(CompilationManager compMgr, Janet.Settings settings) {
         this.compMgr = compMgr;
@@ -38,37 +39,60 @@ public class Writer {
         return subst;
     }
 
-    public void write() {
-        for (YYCompilationUnit cunit : compMgr.compUnits.values()) {
-            if (!cunit.markedForProcessing()) {
-                // skip this file
-                continue;
-            }
+    /**
+     * Writes the output of the compilation unit. A writer is used for one
+     * unit only, since units are written in parallel.
+     */
+    public void write(YYCompilationUnit cunit) {
+        jFilename = cunit.ibuf().getOriginFile().getName();
 
-            jFilename = cunit.ibuf().getOriginFile().getName();
+        // apply appropriate file type suffix (".java")
+        jFilename = toJavaFilename(jFilename);
 
-            // apply appropriate file type suffix (".java")
-            jFilename = toJavaFilename(jFilename);
+        try {
+            File dir = getOutDirForInput(cunit.ibuf(), settings);
+            File jOutput = new File(dir, jFilename);
+            javaFileWriter = new BufferedWriter(new FileWriter(jOutput));
+            subst.setSubst("__JAVAFILENAME__", jFilename);
+            subst.setSubst("__DATE__", new Date().toString());
+            cunit.write(this);
+            javaFileWriter.flush();
+            javaFileWriter.close();
+            javaFileWriter = null;
+        } catch(IOException e) {
+            reportError(e.getMessage());
+            failed = true;
+        } finally {
+            subst.unsetSubst("__DATE__");
+            subst.unsetSubst("__FILENAME__");
+        }
+    }
 
+    /**
+     * Writes the tables of link units shared by classes of a library
+     * (with -linkunits), once all classes are written.
+     */
+    public void writeLinkUnits() {
+        for (LinkUnit unit : compMgr.getLinkUnits()) {
             try {
-                File dir = getOutDirForInput(cunit.ibuf(), settings);
-                File jOutput = new File(dir, jFilename);
-                javaFileWriter = new BufferedWriter(new FileWriter(jOutput));
-                subst.setSubst("__JAVAFILENAME__", jFilename);
                 subst.setSubst("__DATE__", new Date().toString());
-                cunit.write(this);
-                javaFileWriter.flush();
-                javaFileWriter.close();
-                javaFileWriter = null;
+                nativeWriter.writeLinkUnit(unit);
             } catch(IOException e) {
                 reportError(e.getMessage());
+                failed = true;
             } finally {
                 subst.unsetSubst("__DATE__");
-                subst.unsetSubst("__FILENAME__");
             }
         }
     }
 
+    /**
+     * Tells whether writing any file failed (the error has been reported).
+     */
+    public boolean hasFailed() {
+        return failed;
+    }
+
     public static File getOutDirForInput(JanetSourceReader rdr, Janet.Settings settings)
             throws IOException
     {
@@ -92,8 +116,8 @@ public class Writer {
             }
             return dir;
         }
-        // not exists
-        if (!dir.mkdirs()) {
+        // not exists (unless just created by a thread writing another unit)
+        if (!dir.mkdirs() && !dir.isDirectory()) {
             throw new IOException("cannot create directory: " + dir);
         }
         return dir;
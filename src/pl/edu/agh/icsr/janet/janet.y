@@ -236,7 +236,8 @@ import pl.edu.agh.icsr.janet.natives.YYNativeCode;
 
 Goal
     : { setNativeLanguage("c");
-        compUnit = new YYCompilationUnit(cxt, compMgr, doProcessThisFile);
+        compUnit = new YYCompilationUnit(cxt, compMgr, doProcessThisFile,
+            libName);
         pushScope(compUnit); }
           CompilationUnit
       { popScope(); $$ = compUnit.expand(cxt); }
@@ -1266,17 +1267,20 @@ public static void reportError(ILocationContext cxt, String msg, boolean errthro
     String orig = ibuf.getOriginAsString();
     String line = ibuf.getLine(lbeg);
 
-    System.err.println(orig + ":" + (lbeg.lineno+1) + ": " + msg);
-    if (line != null && !line.equals("")) {
-        System.err.println(line);
-
-        String marker = "";
-        for (int i=0; i<lbeg.charno; i++) {
-            char c = line.charAt(i);
-            marker += (Character.isWhitespace(c) ? c : ' ');
+    // files may be parsed and resolved in parallel; keep messages whole
+    synchronized (System.err) {
+        System.err.println(orig + ":" + (lbeg.lineno+1) + ": " + msg);
+        if (line != null && !line.equals("")) {
+            System.err.println(line);
+
+            String marker = "";
+            for (int i=0; i<lbeg.charno; i++) {
+                char c = line.charAt(i);
+                marker += (Character.isWhitespace(c) ? c : ' ');
+            }
+            marker += "^";
+            System.err.println(marker);
         }
-        marker += "^";
-        System.err.println(marker);
     }
     if(errthrow) throw new CompileException(msg);
 }
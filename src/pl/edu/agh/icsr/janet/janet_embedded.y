@@ -589,8 +589,8 @@ UnaryExpression
     | PreDecrementExpression
     | '+' UnaryExpression          { $$ = $2; }
     | '-' UnaryExpression          { notSupported(cxt, "unary minus operator"); }
-    | '&' UnaryExpression          { $$ = new YYPtrFetchExpression(cxt, $2, false); }
-    | NH_ARRAY_PTR UnaryExpression { $$ = new YYPtrFetchExpression(cxt, $2, true); } /* #& */
+    | '&' UnaryExpression          { $$ = new YYPtrFetchExpression(cxt, $2, false, $1 != null); }
+    | NH_ARRAY_PTR UnaryExpression { $$ = new YYPtrFetchExpression(cxt, $2, true, $1 != null); } /* #& */
     | UnaryExpressionNotPlusMinus
     ;
 
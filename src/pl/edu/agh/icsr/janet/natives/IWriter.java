@@ -22,6 +22,7 @@ public interface IWriter {
     void write(String s) throws IOException;
     void write(INativeMethodInfo mth) throws IOException;
     void write(YYStaticNativeStatement stm) throws IOException;
+    void writeForeign(YYNativeMethod mth) throws IOException;
 
     int write(YYNode s, int param) throws IOException;
     int write(YYStatement s, int param) throws IOException;
@@ -61,6 +62,7 @@ public interface IWriter {
     int write(YYVariableDeclaratorList s, int param) throws IOException;
     int write(YYVariableDeclarator s, int param) throws IOException;
     int write(YYSynchronizedStatement s, int param) throws IOException;
+    int write(YYOutlinedStatement s, int param) throws IOException;
 
     int write(YYEnclosedNativeString e, int param) throws IOException;
     int write(YYEnclosedNativeExpression e, int param) throws IOException;
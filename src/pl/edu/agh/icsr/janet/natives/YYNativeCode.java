@@ -4,7 +4,14 @@
 
 package pl.edu.agh.icsr.janet.natives;
 
+import java.util.HashMap;
+import java.util.Vector;
+
 import pl.edu.agh.icsr.janet.IJavaContext;
+import pl.edu.agh.icsr.janet.ParseException;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.tree.Node;
+import pl.edu.agh.icsr.janet.yytree.YYOutlinedStatement;
 import pl.edu.agh.icsr.janet.yytree.YYStatement;
 
 public class YYNativeCode extends YYStatement {
@@ -20,6 +27,27 @@ public class YYNativeCode extends YYStatement {
 
     public boolean isJava() { return false; }
 
+    public void resolve() throws ParseException {
+        if (!getCurrentClass().getClassManager().getSettings().outlineJava()) {
+            super.resolve();
+            return;
+        }
+        // embedded Java may be replaced by outlined statements
+        addExceptions(new HashMap<IClassInfo, YYStatement>());
+        Vector<YYStatement> stmts = new Vector<YYStatement>();
+        for (Node node : this) {
+            stmts.add((YYStatement)node);
+        }
+        for (YYStatement s : stmts) {
+            if (!(s instanceof YYNativeCode)) {
+                s = YYOutlinedStatement.resolve(s);
+            } else {
+                s.resolve();
+            }
+            addExceptions(s.getExceptionsThrown());
+        }
+    }
+
     public YYStatement compact() {
 /*        isPureNative = true;
         YYStatement s = (YYStatement)firstSon();
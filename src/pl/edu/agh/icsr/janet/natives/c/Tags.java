@@ -17,6 +17,7 @@ import pl.edu.agh.icsr.janet.yytree.YYCastExpression;
 import pl.edu.agh.icsr.janet.yytree.YYExpression;
 import pl.edu.agh.icsr.janet.yytree.YYLocalVariableAccessExpression;
 import pl.edu.agh.icsr.janet.yytree.YYNativeMethodImplementation;
+import pl.edu.agh.icsr.janet.yytree.YYPtrFetchExpression;
 import pl.edu.agh.icsr.janet.yytree.YYStatement;
 import pl.edu.agh.icsr.janet.yytree.YYStringLiteral;
 import pl.edu.agh.icsr.janet.yytree.YYVariableDeclarator;
@@ -44,6 +45,26 @@ class Tags {
         private int abruptingChildren;
         boolean abruptsUsed = false;
 
+        // Java expressions and statements embedded in the block (including
+        // nested blocks), and how many of them are `&arr` or `arr.length`
+        // for the same variable arr of primitive array type. Used to decide
+        // if the array may be held with GetPrimitiveArrayCritical.
+        private int javaChunks;
+        private int arrayChunks;
+        private YYVariableDeclarator arrayVariable;
+
+        // Local reference frames (-localframes). A candidate block gets its
+        // own frame if it (or a nested block without a frame) creates
+        // references, and none of them may be used after the block ends:
+        // they are neither assigned to variables declared outside of the
+        // block, nor pinned by array or string contents, which are released
+        // lazily through the multiref pool.
+        private boolean localFrameCandidate;
+        private boolean createsReferences;
+        private boolean leaksReferences;
+        private boolean pinsReferences;
+        private boolean usesLocalFrame;
+
         DeclarationTag(FunctionDeclarationTag ftag, DeclarationTag parent,
                        YYStatement relatedStatement) {
             this.main = ftag;
@@ -63,9 +84,42 @@ class Tags {
         public FunctionDeclarationTag getMain() { return main; }
         public DeclarationTag getParent() { return parent; }
 
+        void setLocalFrameCandidate() { localFrameCandidate = true; }
+        boolean usesLocalFrame() { return usesLocalFrame; }
+
+        /**
+         * Marks that a reference created in this block is assigned to the
+         * variable declared in the specified block (null for parameters),
+         * so that blocks in between must not release it.
+         */
+        void setLeaksReferences(DeclarationTag upTo) {
+            for (DeclarationTag t = this; t != null && t != upTo; t = t.parent) {
+                t.leaksReferences = true;
+            }
+        }
+
+        /**
+         * Marks that array or string contents are obtained in this block;
+         * their references are held until the variable is released, which
+         * may happen in any of the enclosing blocks.
+         */
+        void setPinsReferences() { pinsReferences = true; }
+
+        /**
+         * Returns the innermost enclosing block (including this one) that
+         * has its own local reference frame, or null if there is none.
+         */
+        DeclarationTag getLocalFrame() {
+            for (DeclarationTag t = this; t != null; t = t.parent) {
+                if (t.usesLocalFrame) return t;
+            }
+            return null;
+        }
+
         VariableTag addVariable(VariableTag tag) {
             main.addVariable(tag);
             myVariables.add(tag);
+            tag.dclTag = this;
     /*        if (tag.mustBeReleased()) {
                 setRequiresFinally();
                 variablesToRelease.add(tag);
@@ -74,7 +128,58 @@ class Tags {
             return tag;
         }
 
+        /**
+         * @param arrayVariable the array variable, if the chunk is
+         *        `&arr` or `arr.length`; null otherwise
+         */
+        void addJavaChunk(YYVariableDeclarator arrayVariable) {
+            javaChunks++;
+            if (arrayVariable != null) addArrayChunks(1, arrayVariable);
+        }
+
+        private void addArrayChunks(int n, YYVariableDeclarator var) {
+            if (arrayChunks == 0) {
+                arrayVariable = var;
+            } else if (arrayVariable != var) {
+                arrayVariable = null; // different arrays used
+            }
+            arrayChunks += n;
+        }
+
+        /**
+         * Returns true if all Java code embedded in the block only
+         * accesses the specified array variable, and does so without
+         * JNI calls once the array contents are obtained.
+         */
+        boolean onlyAccessesArray(YYVariableDeclarator var) {
+            return javaChunks == arrayChunks && arrayVariable == var;
+        }
+
         void finalCheck() {
+            for (int i=0, len = myVariables.size(); i<len; i++) {
+                if (myVariables.get(i).getType().isReference()) {
+                    createsReferences = true;
+                    break;
+                }
+            }
+            if (localFrameCandidate && createsReferences &&
+                    !leaksReferences && !pinsReferences) {
+                usesLocalFrame = true;
+                // the frame is popped in the destruct clause
+                requiresTryClause = true;
+                requiresDestructClause = true;
+                main.usesExceptions = true;
+            }
+            if (parent != null) {
+                parent.javaChunks += javaChunks;
+                if (arrayChunks > 0) {
+                    parent.addArrayChunks(arrayChunks, arrayVariable);
+                }
+                if (createsReferences && !usesLocalFrame) {
+                    parent.createsReferences = true;
+                }
+                if (pinsReferences) parent.pinsReferences = true;
+            }
             /* determine if exceptions are thrown from here or
                come unhandled from inside of here */
             if (!relatedStatement.getExceptionsThrown().isEmpty() ||
@@ -191,6 +296,13 @@ class Tags {
         private VariableTag javaThisVariableTag;
         int maxMultiRefsUsed;
         boolean usesExceptions;
+        // if exceptions are propagated with longjmp, variables modified
+        // in exception contexts must be volatile
+        boolean usesSetjmp = true;
+        Vector<VariableTag> allVariables = new Vector<VariableTag>();
+        // `&str` and `#&str` in the method; may get stack buffers
+        Vector<YYPtrFetchExpression> stringFetches =
+            new Vector<YYPtrFetchExpression>();
         boolean usesPrimitiveTypeArrays;
         DeclarationTag myDeclarationTag;
 
@@ -234,6 +346,7 @@ class Tags {
                 tag.next = tag.prev = tag;
             }
             tag.fdeclTag = this;
+            allVariables.add(tag);
             return tag;
         }
     /*
@@ -249,6 +362,23 @@ class Tags {
             return new MyVariablesIterator();
         }
 
+        /**
+         * Returns auxiliary variables to be declared at the beginning of
+         * the specified block with a local reference frame, instead of at
+         * the function level. This way, they are reset whenever the block
+         * is entered, and never hold references deleted by the frame.
+         */
+        public Iterator<VariableTag> frameVariablesIterator(DeclarationTag frame) {
+            Vector<VariableTag> result = new Vector<VariableTag>();
+            for (int i=0, len = allVariables.size(); i<len; i++) {
+                VariableTag v = allVariables.get(i);
+                if (v.isFrameVariable() && v.dclTag.getLocalFrame() == frame) {
+                    result.add(v);
+                }
+            }
+            return result.iterator();
+        }
+
         // only NOT handled by appropriate blocks
         private class MyVariablesIterator implements Iterator<VariableTag> {
             Iterator<VariableTag> itr1;//, itr2;
@@ -290,7 +420,8 @@ class Tags {
                         } else {
                             currentTag = currentTag.next;
                         }
-                    } while (currentTag != null && currentTag.mustBeReleased());
+                    } while (currentTag != null && (currentTag.mustBeReleased() ||
+                                                    currentTag.isFrameVariable()));
     /*                if (currentTag == null) {
                         finishedWithOwn = true;
                         fetchNextLocally();
@@ -319,9 +450,13 @@ class Tags {
         VariableTag prev, next;
         //protected FunctionDeclarationTag fdeclTag;
         protected FunctionDeclarationTag fdeclTag;
+        // the block declaring the variable; released at its end
+        DeclarationTag dclTag;
 
         IClassInfo cls;
         int type = SIMPLE;
+        // stack buffer for contents of the string, or -1
+        int stringBufferIdx = -1;
 
         public static final int SIMPLE           = 1;
         public static final int MULTIREF         = 2;
@@ -408,6 +543,15 @@ class Tags {
             return (type == LOCAL_VARIABLE);
         }
 
+        /**
+         * Returns true for the simple reference variable of the block within
+         * a local reference frame; it is declared by the framed block.
+         */
+        boolean isFrameVariable() {
+            return type == SIMPLE && cls.isReference() &&
+                dclTag != null && dclTag.getLocalFrame() != null;
+        }
+
         String getUseInternal(boolean wantMultiRef) {
             if (!wantMultiRef) {
                 return type == SIMPLE ? getName() : "_JANET_DEREF(" + getName() + ")";
@@ -432,7 +576,8 @@ class Tags {
         }
 
         String getDeclaration() {
-            String vl = fdeclTag.usesExceptions ? "volatile " : "";
+            String vl = fdeclTag.usesExceptions && fdeclTag.usesSetjmp
+                ? "volatile " : "";
             if (type == SIMPLE) {
                 return (cls.isReference() ? vl : "") +
                        cls.getJNIType() + " " +
@@ -9,7 +9,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import pl.edu.agh.icsr.janet.CompileException;
 import pl.edu.agh.icsr.janet.Janet;
@@ -98,6 +101,22 @@ public class Writer implements IWriter {
     //public static final int IS_SUBSEQUENT       = 0x00000020;
     //public static final int WROTE_NOTHING       = 0x00000040;
 
+    /**
+     * JNI functions which cannot raise Java exceptions, provided that
+     * their arguments are valid - that is, references are not null and
+     * indices are within bounds, which the generated code checks
+     * beforehand. (Type-specific functions are listed with <type> in place
+     * of the type.)
+     */
+    static final Set<String> jniNoThrow = new HashSet<String>(Arrays.asList(
+        "Get<type>Field", "Set<type>Field",
+        "GetStatic<type>Field", "SetStatic<type>Field",
+        "GetArrayLength", "GetObjectArrayElement", "IsSameObject"));
+
+    static boolean jniMayThrow(String jnifun) {
+        return !jniNoThrow.contains(jnifun);
+    }
+
     static final String janetHeader =
         "/**\n" +
         " * file:      %CIMPLFILENAME%\n" +
@@ -105,6 +124,7 @@ public class Writer implements IWriter {
         " * generated: %__DATE__%\n" +
         " */\n" +
         "\n" +
+        "%JANET_DEFINES%" +
         "#include %JANET_H%\n" +
         "\n";
 
@@ -160,6 +180,9 @@ public class Writer implements IWriter {
             } else {
                 subst.setSubst("JANET_H", "\"" + settings.getHeaderDir() + "/janet.h\"");
             }
+            subst.setSubst("JANET_DEFINES",
+                (settings.noSetjmp() ? "#define JANET_NO_SETJMP\n" : "") +
+                (settings.metrics() ? "#define JANET_METRICS\n" : ""));
             subst.setSubst("CIMPLFILENAME", filename);
             fileWriter.write(Janet.getGeneratedCodeLicense());
             fileWriter.write(subst.substitute(janetHeader));
@@ -216,6 +239,9 @@ public class Writer implements IWriter {
                 (nimpl.getSynchronizedStatementsNum() > 0
                     ? ",\n    jobject* _janet_monitors"
                     : "") +
+                (settings.metrics()
+                    ? ",\n    _janet_methodMetrics* _janet_metrics"
+                    : "") +
                 ",\n    " + (Modifier.isStatic(mth.getModifiers())
                                  ? "jclass _janet_jthisclass"
                                  : "jobject _janet_jthis"));
@@ -225,6 +251,11 @@ public class Writer implements IWriter {
                     parameters[i].getType().getJNIType() + " " +
                     "_janet_arg_" + ClassManager.mangle(parameters[i].getName()));
             }
+            YYVariableDeclarator[] lenparams = mth.getLengthParameters();
+            for (int i=0; i<lenparams.length; i++) {
+                write(",\n" + "    jint " +
+                    NativeWriter.getNativeLengthArgName(lenparams[i].getName()));
+            }
 
             write(")\n{ ");
             currIndent = tabSize;
@@ -239,6 +270,126 @@ public class Writer implements IWriter {
         }
     }
 
+    /**
+     * Writes the native code of a method called through java.lang.foreign
+     * as a plain C function. The embedded Java it may contain (see
+     * YYNativeMethod.isForeign()) is replaced with function arguments.
+     */
+    public void writeForeign(YYNativeMethod mth) throws IOException {
+        YYClass cls = (YYClass)mth.getDeclaringClass();
+        openFileForClass(cls);
+        this.currMth = mth;
+
+        if (cplusplus()) {
+            write("\nextern \"C\"");
+        }
+        try {
+            YYVariableDeclarator[] parameters = mth.getParameters();
+            write("\nJNIEXPORT " + mth.getReturnType().getJNIType() +
+                " JNICALL " + mth.getForeignFunctionName() + "(");
+
+            String sep = "\n    ";
+            for (int i=0; i<parameters.length; i++) {
+                String name = parameters[i].getName();
+                IClassInfo type = parameters[i].getType();
+                int uses = parameters[i].getForeignUses();
+                if ((uses & YYNativeMethod.FOREIGN_VALUE) != 0) {
+                    write(sep + type.getJNIType() + " " +
+                        NativeWriter.getNativeArgName(name));
+                    sep = ",\n    ";
+                }
+                if ((uses & YYNativeMethod.FOREIGN_ARRAY) != 0) {
+                    write(sep + type.getComponentType().getJNIType() + "* " +
+                        NativeWriter.getNativeArgName(name));
+                    sep = ",\n    ";
+                }
+                if ((uses & YYNativeMethod.FOREIGN_LENGTH) != 0) {
+                    write(sep + "jint " +
+                        NativeWriter.getNativeLengthArgName(name));
+                    sep = ",\n    ";
+                }
+                if ((uses & YYNativeMethod.FOREIGN_STRING) != 0) {
+                    write(sep + "const char* " +
+                        NativeWriter.getNativeArgName(name));
+                    sep = ",\n    ";
+                }
+            }
+            if (sep.length() == 5) {
+                write("void");
+            }
+
+            write(")\n{ ");
+            writeForeign(mth.getImplementation().getStatements());
+            write("\n}\n");
+
+            fileWriter.flush();
+
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+    }
+
+    private void writeForeign(YYNode n) throws IOException {
+        try {
+            if (n instanceof YYCChunk) {
+                StringBuffer buf = n.ibuf().getbuf();
+                int pos = n.lbeg().charno0;
+                for (Iterator<Node> i = n.iterator(); i.hasNext();) {
+                    YYNode c = (YYNode)i.next();
+                    write(buf.substring(pos, c.lbeg().charno0));
+                    writeForeign(c);
+                    pos = c.lend().charno0;
+                }
+                write(buf.substring(pos, n.lend().charno0));
+            } else if (n instanceof YYEnclosedNativeExpression) {
+                write("(");
+                writeForeign(((YYEnclosedNativeExpression)n).getNativeCode());
+                write(")");
+            } else if (n instanceof YYEnclosedNativeStatements) {
+                writeForeign(((YYEnclosedNativeStatements)n).getNativeCode());
+            } else if (n instanceof YYReturnStatement) {
+                YYExpression e = ((YYReturnStatement)n).getReturnedExpression();
+                write("return");
+                if (e != null) {
+                    write(" ");
+                    writeForeign(e);
+                }
+                write(";");
+            } else if (n instanceof YYLocalVariableAccessExpression) {
+                write(NativeWriter.getNativeArgName(
+                    ((YYLocalVariableAccessExpression)n).getVariable().getName()));
+            } else if (n instanceof YYPtrFetchExpression) {
+                YYPtrFetchExpression e = (YYPtrFetchExpression)n;
+                IClassInfo type = e.getBase().getExpressionType();
+                String arg = NativeWriter.getNativeArgName(
+                    ((YYLocalVariableAccessExpression)e.getBase()).getVariable().getName());
+                if (type.isArray() && e.isReadOnly()) {
+                    write("((const " + type.getComponentType().getJNIType() +
+                        "*)" + arg + ")");
+                } else {
+                    write(arg);
+                }
+            } else if (n instanceof YYFieldAccessExpression) {
+                write(NativeWriter.getNativeLengthArgName(
+                    ((YYLocalVariableAccessExpression)((YYFieldAccessExpression)n).
+                        getTarget()).getVariable().getName()));
+            } else if (n instanceof YYExpression) { // literal
+                n.write(this, PHASE_PREPARE);
+                write(getTag((YYExpression)n).getUse());
+            } else { // Java statements
+                YYStatement s = (YYStatement)n;
+                if (s.getScopeType() == IScope.BLOCK) write("{ ");
+                for (Iterator<Node> i = s.iterator(); i.hasNext();) {
+                    writeForeign((YYNode)i.next());
+                    if (i.hasNext()) write(" ");
+                }
+                if (s.getScopeType() == IScope.BLOCK) write(" }");
+            }
+        } catch (CompileException e) {
+            throw new RuntimeException();
+        }
+    }
+
     public void write(YYStaticNativeStatement stmt) throws IOException {
         openFileForClass(stmt.getDeclaringClass());
         stmt.getImplementation().write(this, PHASE_WRITE);
@@ -254,6 +405,10 @@ public class Writer implements IWriter {
     DeclarationTag begDeclarationTag(YYStatement s) {
         s.tag = this.currentDclTag = new DeclarationTag(this.functionDclTag,
                                                         this.currentDclTag, s);
+        // native blocks nested in the method body may get local frames
+        if (settings.localFrames() && s instanceof YYCBlock) {
+            currentDclTag.setLocalFrameCandidate();
+        }
         return this.currentDclTag;
     }
 
@@ -266,8 +421,72 @@ public class Writer implements IWriter {
         return (DeclarationTag)s.tag;
     }
 
+    /**
+     * Called in the PREPARE phase for every Java expression or statement
+     * embedded directly in native code.
+     */
+    void addEmbeddedJava(YYNode n) {
+        currentDclTag.addJavaChunk(getAccessedArrayVariable(n));
+    }
+
+    /**
+     * If the node is `&arr` or `arr.length`, where arr is a variable of
+     * primitive array type, or `&str`, where str is a String variable,
+     * returns the variable. Once the contents are obtained, these do not
+     * call JNI.
+     */
+    private YYVariableDeclarator getAccessedArrayVariable(YYNode n) {
+        YYExpression base;
+        boolean ptrFetch = false;
+        if (n instanceof YYPtrFetchExpression &&
+                !((YYPtrFetchExpression)n).convertToNative()) {
+            base = ((YYPtrFetchExpression)n).getBase();
+            ptrFetch = true;
+        } else if (n instanceof YYFieldAccessExpression &&
+                ((YYFieldAccessExpression)n).isArrayLength()) {
+            base = ((YYFieldAccessExpression)n).getTarget();
+        } else {
+            return null;
+        }
+        if (!(base instanceof YYLocalVariableAccessExpression)) return null;
+        try {
+            IClassInfo type = base.getExpressionType();
+            if (!(type.isArray() && type.getComponentType().isPrimitive()) &&
+                    !(ptrFetch && type == classMgr.String)) {
+                return null;
+            }
+        } catch (CompileException e) { throw new RuntimeException(); }
+        return ((YYLocalVariableAccessExpression)base).getVariable();
+    }
+
+    /**
+     * Returns true if the array contents obtained by `&arr` may be held
+     * with GetPrimitiveArrayCritical (and similarly, the string contents
+     * obtained by `&str` with GetStringCritical), i.e. if no JNI calls can
+     * happen until they are released. They are released at the end of the block declaring
+     * the variable holding the array (for parameters, the whole method), so
+     * the Java code embedded in that block must be limited to `&arr` and
+     * `arr.length`.
+     */
+    private boolean isCriticalArrayAccess(YYPtrFetchExpression e) {
+        YYVariableDeclarator var = getAccessedArrayVariable(e);
+        if (var == null) return false;
+        VariableTag vtag = getTag(e.getBase()).getVariableTag();
+        return vtag != null && vtag.dclTag != null &&
+            vtag.dclTag.onlyAccessesArray(var);
+    }
+
     boolean writeDclUnitDeclarations(DeclarationTag dt) throws IOException {
         boolean hasVariables = false;
+        if (dt.usesLocalFrame()) {
+            hasVariables = true;
+            cr(); write("_JANET_DECLARE_LOCAL_FRAME(" +
+                Math.max(functionDclTag.maxMultiRefsUsed, 1) + ");");
+            for (Iterator<VariableTag> i =
+                    functionDclTag.frameVariablesIterator(dt); i.hasNext();) {
+                cr(); write(i.next().getDeclaration());
+            }
+        }
         for (Iterator<VariableTag> i = dt.variablesIterator(); i.hasNext();) {
             VariableTag vtag = i.next();
             hasVariables = true;
@@ -305,6 +524,23 @@ public class Writer implements IWriter {
             cr(); write("_JANET_TRY {");
             currIndent += tabSize;
         }
+        if (dt.usesLocalFrame()) {
+            cr(); write("_JANET_PUSH_LOCAL_FRAME(" + getLocalFramePool() + ");");
+        }
+    }
+
+    // the multiref pool, whose references installed within a local frame
+    // must be forgotten when the frame is popped
+    private String getLocalFramePool() {
+        int size = functionDclTag.maxMultiRefsUsed;
+        return size > 0 ? "_janet_multirefs, " + size : "0, 0";
+    }
+
+    // reference return values must survive popping of the local frame
+    private String getLocalFrameSuffix() {
+        try {
+            return currMth.getReturnType().isReference() ? "_RET" : "";
+        } catch (ParseException e) { throw new RuntimeException(); }
     }
 
     private void writeDclUnitEnd1(DeclarationTag dt) throws IOException {
@@ -345,11 +581,22 @@ public class Writer implements IWriter {
                 cr(); write(vtag.getVariableRelease() + ";");
             }
         }
+        if (!cplusplus() && dt.usesLocalFrame()) {
+            hasVariables = true;
+            cr(); write("_JANET_POP_LOCAL_FRAME" + getLocalFrameSuffix() +
+                "(" + getLocalFramePool() + ");");
+        }
         return hasVariables;
     }
 
     boolean writeDclUnitCppDeleters(DeclarationTag dt) throws IOException {
         boolean hasVariables = false;
+        if (cplusplus() && dt.usesLocalFrame()) {
+            // declared first, so that it is destroyed after the variables
+            hasVariables = true;
+            cr(); write("_JANET_DECLARE_LOCAL_FRAME_GUARD" +
+                getLocalFrameSuffix() + "(" + getLocalFramePool() + ");");
+        }
         for (Iterator<VariableTag> i = dt.variablesIterator(); i.hasNext();) {
             VariableTag vtag = i.next();
             hasVariables = true;
@@ -411,6 +658,7 @@ public class Writer implements IWriter {
 
             currentDclTag = null;
             functionDclTag = new FunctionDeclarationTag(nimpl, this.classMgr);
+            functionDclTag.usesSetjmp = !settings.noSetjmp();
             functionDclTag.setDeclarationTag(begDeclarationTag(nimpl));
             //writeDeclarationUnit(nimpl, param | BODY_PREFIX);
             result = nimpl.getStatements().write(this, param);
@@ -443,6 +691,24 @@ public class Writer implements IWriter {
                     functionDclTag.maxMultiRefsUsed + ");");
             }
 
+            // if needed, declare stack buffers for short strings; one per
+            // string variable, unless its contents are held as critical
+
+            int strbufs = 0;
+            for (Iterator<YYPtrFetchExpression> i =
+                    functionDclTag.stringFetches.iterator(); i.hasNext();) {
+                YYPtrFetchExpression e = i.next();
+                VariableTag v = getTag(e.getBase()).getVariableTag();
+                if (v.stringBufferIdx >= 0 ||
+                        (!e.convertToNative() && isCriticalArrayAccess(e))) {
+                    continue;
+                }
+                v.stringBufferIdx = strbufs++;
+            }
+            if (strbufs > 0) {
+                cr(); write("_JANET_DECLARE_STRING_BUFFERS(" + strbufs + ");");
+            }
+
             // if needed, declare auxiliary variables for exception handling
             // and early return
 
@@ -507,6 +773,12 @@ public class Writer implements IWriter {
                     write(tag.getVariableAssignmentPrefix(false) +
                         "_janet_arg_" + var.getName() +
                         tag.getVariableAssignmentSuffix(false) + ";");
+                    if (var.hasLengthArgument() && tag.useMultiRef()) {
+                        cr();
+                        write("_JANET_MULTIARRAY_SET_LENGTH(" + tag.getName() +
+                            ", " + NativeWriter.getNativeLengthArgName(
+                                       var.getName()) + ");");
+                    }
                 }
             }
 
@@ -602,9 +874,9 @@ public class Writer implements IWriter {
 
     private void writeJNIMethodCall(ExpressionTag tag, ExpressionTag tgttag,
         int invocation_mode,
-        IClassInfo returntype, boolean useJNIThis, YYExpressionList arguments,
-        int clsidx, int mthidx,
-        YYMethodInvocationExpression e) throws IOException
+        IClassInfo returntype, boolean useJNIThis,
+        Iterable<? extends Node> arguments, int clsidx, int mthidx,
+        IMethodInfo method) throws IOException
     {
         if (cplusplus()) {
             write("_janet_jnienv->Call");
@@ -636,7 +908,7 @@ public class Writer implements IWriter {
             if (useJNIThis) {
                 write("_janet_jthisclass");
             } else {
-                writeClassRef(clsidx, e.getMethod().getDeclaringClass());
+                writeClassRef(clsidx, method.getDeclaringClass());
             }
         }
 
@@ -644,15 +916,15 @@ public class Writer implements IWriter {
             case YYMethodInvocationExpression.IMODE_NONVIRTUAL:
             case YYMethodInvocationExpression.IMODE_SUPER:
                 write(",");
-                writeClassRef(clsidx, e.getMethod().getDeclaringClass());
+                writeClassRef(clsidx, method.getDeclaringClass());
         }
 
         write(",");
-        cr(); writeMethodRef(mthidx, e.getMethod());
+        cr(); writeMethodRef(mthidx, method);
 
-        for (Iterator<Node> i = arguments.iterator(); i.hasNext();) {
+        for (Node arg : arguments) {
             write(",");
-            cr(); write((getTag((YYExpression)i.next())).getUse());
+            cr(); write((getTag((YYExpression)arg)).getUse());
         }
         closeWriteContext(")");
     }
@@ -736,9 +1008,19 @@ public class Writer implements IWriter {
                 write("JNI_GET_STRING_LENGTH(" + tgtTag.getUse() + ")");
                 write(myTag.getEvaluationSuffix());
 
+            } else if (e.isBufferAccessor()) {
+
+                cr();
+                write(myTag.getEvaluationPrefix());
+                write("_JANET_BUFFER_GET_" +
+                      e.getMethod().getName().toUpperCase() +
+                      "(" + tgtTag.getUse() + ")");
+                write(myTag.getEvaluationSuffix());
+
             } else {
 
                 // write JNI invocation
+                writeMetricsCount("upcalls");
                 cr();
                 if (!isVoid) {
                     write(myTag.getEvaluationPrefix());
@@ -756,13 +1038,12 @@ public class Writer implements IWriter {
 
                 writeJNIMethodCall(myTag, tgtTag, invoc_mode,
                     e.getExpressionType(), useJNIThis, args, e.getClassIdx(),
-                    e.getMethodIdx(), e);
+                    e.getMethodIdx(), e.getMethod());
 
                 if (!isVoid) {
                     write(myTag.getEvaluationSuffix());
                 }
-                write(",");
-                cr(); write("_JANET_LOCAL_HANDLE_EXCEPTION()");
+                writeExceptionCheck("Call<type>Method");
             }
 
             // write resulting value
@@ -812,7 +1093,7 @@ public class Writer implements IWriter {
 
             closeWriteContext(")");
             write(myTag.getEvaluationSuffix(false));
-            write(","); cr(); write("_JANET_LOCAL_HANDLE_EXCEPTION()");
+            writeExceptionCheck("AllocObject");
 
             // write parameters evaluation
             for (Iterator<Node> i = args.iterator(); i.hasNext();) {
@@ -826,6 +1107,7 @@ public class Writer implements IWriter {
             write(",");
 
             // write JNI invocation
+            writeMetricsCount("upcalls");
             cr();
             if (cplusplus()) {
                 openWriteContextInline("_janet_jnienv->CallNonvirtualVoidMethod(");
@@ -844,8 +1126,7 @@ public class Writer implements IWriter {
                 write((getTag((YYExpression)i.next())).getUse());
             }
             closeWriteContext(")");
-            write(",");
-            cr(); write("_JANET_LOCAL_HANDLE_EXCEPTION()");
+            writeExceptionCheck("CallNonvirtual<type>Method");
 
             // write resulting value
             if ((param & EVALUATE_ONLY) == 0) {
@@ -860,6 +1141,25 @@ public class Writer implements IWriter {
         return 0;
     }
 
+    /**
+     * With -metrics, writes the increment of a counter of the current
+     * native method, followed by a comma.
+     */
+    private void writeMetricsCount(String counter) throws IOException {
+        if (!settings.metrics()) return;
+        cr(); write("_JANET_METRICS_COUNT(" + counter + "),");
+    }
+
+    /**
+     * Writes the check for the pending exception, if the JNI function
+     * just called may raise one.
+     */
+    private void writeExceptionCheck(String jnifun) throws IOException {
+        if (!jniMayThrow(jnifun)) return;
+        write(",");
+        cr(); write("_JANET_LOCAL_HANDLE_EXCEPTION()");
+    }
+
     private void writeFieldTargetEvaluation(YYFieldAccessExpression e,
         ExpressionTag myTag, boolean useJNIThis) throws IOException
     {
@@ -889,10 +1189,13 @@ public class Writer implements IWriter {
 //                String tgt = useJNIThis ? "_janet_jthisclass"
 //                                        : getTag(e.getTarget()).getUse();
             ExpressionTag tgtTag = getTag(e.getTarget());
+            String lenarg = getLengthArgName(e.getTarget());
 
 //                if (e.getExpressionType().isPrimitive() &&
 //                        functionDclTag.usesPrimitiveTypeArrays) {
-            if (tgtTag.getVariableTag() != null && tgtTag.getVariableTag().useMultiRef()) {
+            if (lenarg != null) {
+                write(lenarg);
+            } else if (tgtTag.getVariableTag() != null && tgtTag.getVariableTag().useMultiRef()) {
                 write("_JANET_MULTIARRAY_GET_LENGTH(" + tgtTag.getUse(true) + ")");
             } else {
                 write("JNI_GET_ARRAY_LENGTH(" + tgtTag.getUse(false) + ")");
@@ -965,6 +1268,8 @@ public class Writer implements IWriter {
                 write(myTag.getEvaluationSuffix(true));
                 write(",");
                 cr(); writeFieldGetSet(e, myTag, useJNIThis, true);
+                writeExceptionCheck(e.isInstanceField() ? "Set<type>Field"
+                                                        : "SetStatic<type>Field");
                 closeWriteContext(")");
             }
             else if ((param & COMPOUND_PREFIX) != 0)
@@ -1381,12 +1686,14 @@ public class Writer implements IWriter {
             if (op == null || isPrimitive) {
                 // we reuse the same variable
                 leftHandSide.write(this, PHASE_PREPARE + REUSABLE + MULTIREF);
+                if (!isPrimitive) setLeaksReferences(leftHandSide);
                 assignment.write(this, PHASE_PREPARE +
                     (isPrimitive ? 0 : MULTIREF + REUSABLE));
                 e.tag = new OpaqueExpressionTag(e, (ExpressionTag)leftHandSide.tag);
             } else {
                 // string concatenation; we can discard old string
                 leftHandSide.write(this, PHASE_PREPARE);
+                setLeaksReferences(leftHandSide);
                 assignment.write(this, PHASE_PREPARE);
                 initExpressionTag(e, null, param, false);
             }
@@ -1422,6 +1729,16 @@ public class Writer implements IWriter {
     }
 
 
+    /**
+     * If a reference is assigned to a local variable, it must outlive
+     * local frames of blocks nested in the one declaring the variable.
+     */
+    private void setLeaksReferences(YYExpression leftHandSide) {
+        if (!(leftHandSide instanceof YYLocalVariableAccessExpression)) return;
+        VariableTag v = getTag(leftHandSide).getVariableTag();
+        currentDclTag.setLeaksReferences(v != null ? v.dclTag : null);
+    }
+
     public int write(YYExpressionStatement s, int param) throws IOException {
         if ((param & PHASE_PREPARE) != 0) {
             return s.getExpression().write(this, param);
@@ -1454,8 +1771,21 @@ public class Writer implements IWriter {
         cr();
     }
 
-    private void writeCheckBeforeArrayDeref(ExpressionTag tgttag,
-        ExpressionTag idxtag, boolean isPrimitive) throws IOException
+    /**
+     * Returns the name of the argument holding the length of the array
+     * parameter accessed by given expression, if it is passed by the
+     * Java wrapper (-arglengths); null otherwise.
+     */
+    private String getLengthArgName(YYExpression e) {
+        if (!(e instanceof YYLocalVariableAccessExpression)) return null;
+        YYVariableDeclarator var =
+            ((YYLocalVariableAccessExpression)e).getVariable();
+        return var.hasLengthArgument()
+            ? NativeWriter.getNativeLengthArgName(var.getName()) : null;
+    }
+
+    private void writeCheckBeforeArrayDeref(YYExpression tgt,
+        ExpressionTag tgttag, ExpressionTag idxtag) throws IOException
     {
         // check target against null
         cr(); write("_JANET_LOCAL_ENSURE_NOT_NULL(");
@@ -1464,17 +1794,20 @@ public class Writer implements IWriter {
         write("    \"trying to access " +
             "an array using a null target reference\"),");
 
-        // check bounds (for Object arrays, this is done by JNI)
-        if (isPrimitive) {
-            cr();
-            if (tgttag.getVariableTag() != null &&
-                    tgttag.getVariableTag().useMultiRef()) {
-                write("_JANET_MULTIARRAY_CHECK_BOUNDS(" + tgttag.getUse(true));
-            } else {
-                write("_JANET_ARRAY_CHECK_BOUNDS(" + tgttag.getUse(false));
-            }
-            write(", " + idxtag.getUse() + "),");
+        // check bounds (also for Object arrays, so that
+        // GetObjectArrayElement cannot throw; their targets are multiref,
+        // so the length is fetched once per array)
+        cr();
+        String lenarg = getLengthArgName(tgt);
+        if (lenarg != null) {
+            write("_JANET_ARRAY_CHECK_BOUNDS_LEN(" + lenarg);
+        } else if (tgttag.getVariableTag() != null &&
+                tgttag.getVariableTag().useMultiRef()) {
+            write("_JANET_MULTIARRAY_CHECK_BOUNDS(" + tgttag.getUse(true));
+        } else {
+            write("_JANET_ARRAY_CHECK_BOUNDS(" + tgttag.getUse(false));
         }
+        write(", " + idxtag.getUse() + "),");
         cr();
     }
 
@@ -1491,7 +1824,8 @@ public class Writer implements IWriter {
             cr();
             write("((" + jnitype + "*)" +
                 "_JANET_ARRAY_GET_JPTR(" +
-                tgttag.getUse(true) + ", " + signature + "))[" +
+                tgttag.getUse(true) + ", " + signature + ", " +
+                (set ? "0" : "1") + "))[" +
                 idxtag.getUse() +
                 "]");
             if (set) { write(" = " + mytag.getUse(false)); }
@@ -1519,8 +1853,11 @@ public class Writer implements IWriter {
                 // must be stored to be released later
                 e.getTarget().write(this, PHASE_PREPARE | REUSABLE | MULTIREF);
                 getTag(e.getTarget()).getVariableTag().setTypeLocalVariable();
+                currentDclTag.setPinsReferences();
             } else {
-                e.getTarget().write(this, PHASE_PREPARE | REUSABLE);
+                // multiref, so that the length of the array is cached
+                e.getTarget().write(this, PHASE_PREPARE | REUSABLE | MULTIREF);
+                getTag(e.getTarget()).getVariableTag().setTypeLocalVariable();
             }
             e.getIndexExpression().write(this, PHASE_PREPARE | REUSABLE);
             currentDclTag.setUsesLocalExceptions();
@@ -1544,7 +1881,9 @@ public class Writer implements IWriter {
             {
                 write(myTag.getEvaluationSuffix(true));
                 write(",");
-                writeCheckBeforeArrayDeref(tgtTag, idxTag, isPrimitive);
+                writeCheckBeforeArrayDeref(tgt, tgtTag, idxTag);
+                // an ArrayStoreException raised by SetObjectArrayElement is
+                // left pending, to be found by the next check
                 writeArrayElemGetSet(e, myTag, tgtTag, idxTag, isPrimitive, true, false);
                 closeWriteContext(")");
             }
@@ -1552,7 +1891,7 @@ public class Writer implements IWriter {
             {
                 openWriteContext("(");
                 writeTargetAndIndexEvaluation(tgt, tgtTag, idx, idxTag);
-                writeCheckBeforeArrayDeref(tgtTag, idxTag, isPrimitive);
+                writeCheckBeforeArrayDeref(tgt, tgtTag, idxTag);
                 // assigning GetObjectArrayElement or primitive value -> never multiref
                 if (!isPrimitive) { // array of strings
                     write(myTag.getEvaluationPrefix(false));
@@ -1574,7 +1913,7 @@ public class Writer implements IWriter {
                 writeBegComment(e);
                 openWriteContext("(");
                 writeTargetAndIndexEvaluation(tgt, tgtTag, idx, idxTag);
-                writeCheckBeforeArrayDeref(tgtTag, idxTag, isPrimitive);
+                writeCheckBeforeArrayDeref(tgt, tgtTag, idxTag);
                 // assigning GetObjectArrayElement or primitive value -> never multiref
                 write(myTag.getEvaluationPrefix(false));
                 writeArrayElemGetSet(e, myTag, tgtTag, idxTag, isPrimitive, false, true);
@@ -1682,6 +2021,10 @@ public class Writer implements IWriter {
 
             // use variable from base
             vtag.setTypeLocalVariable();
+            currentDclTag.setPinsReferences();
+            if (base.getExpressionType() == classMgr.String) {
+                functionDclTag.stringFetches.add(e);
+            }
             //VariableTag vtag = new VariableTag(base.getExpressionType());
             //currentDclTag.addVariable(vtag);
             //vtag.setTypeLocalVariable();
@@ -1703,14 +2046,32 @@ public class Writer implements IWriter {
             //write(tag.getEvaluationSuffix(true) + ", ");
             //write(", ");
 
-            if (base.getExpressionType().isArray()) {
-                // must be primitive type array
+            if (e.isBuffer()) {
+                // direct java.nio buffer; no need to pin or release
+                String sign = e.getBufferElementType().getSignature();
+                String jnitype = e.getBufferElementType().getJNIType();
 
+                cr(); write("_JANET_LOCAL_ENSURE_NOT_NULL(");
+                write(tag.getUse());
+                write(","); cr();
+                write("    \"trying to access a buffer using a null target " +
+                      "reference\"),");
+                cr(); write("_JANET_LOCAL_ENSURE_DIRECT_BUFFER(" +
+                            tag.getUse() + "),");
+                cr(); write("(" + (e.isReadOnly() ? "const " : "") +
+                            jnitype + "*)_JANET_BUFFER_GET_JPTR(" +
+                            tag.getUse() + ", " + sign + ")");
+
+            } else if (base.getExpressionType().isArray() || e.isRegion()) {
+                // must be primitive type array, or region of such
+
+                IClassInfo arrtype = e.isRegion() ? e.getRegionArrayType()
+                                                  : base.getExpressionType();
                 String sign;
                 String jnitype;
                 IClassInfo cls;
                 try {
-                    cls = base.getExpressionType().getComponentType();
+                    cls = arrtype.getComponentType();
                     sign = cls.getSignature();
                     jnitype = cls.getJNIType();
                 } catch (CompileException exc) { throw new RuntimeException(); }
@@ -1719,14 +2080,32 @@ public class Writer implements IWriter {
                 write(tag.getUse());
                 write(","); cr();
                 write("    \"trying to access " +
-                    "an array using a null target reference\"),");
+                    (e.isRegion() ? "a region" : "an array") +
+                    " using a null target reference\"),");
+
+                String kind = e.isRegion() ? "REGION" : "ARRAY";
+                String ro = e.isReadOnly() ? "1" : "0";
+                String cnst = e.isReadOnly() ? "const " : "";
+                String args = tag.getUse(true) + ", " + sign + ", " + ro;
+                if (e.isRegion()) {
+                    int[] fldidxs = e.getRegionFieldIdxs();
+                    for (int i=0; i<fldidxs.length; i++) {
+                        args += ", _janet_fields[" + fldidxs[i] + "].id";
+                    }
+                }
 
                 if (!e.convertToNative()) {
                     cr();
-                    write("(" + jnitype + "*)" + "_JANET_ARRAY_GET_JPTR(" +
-                          tag.getUse(true) + ", " + sign + ")");
+                    if (isCriticalArrayAccess(e)) {
+                        write("(" + cnst + jnitype + "*)" +
+                              "_JANET_ARRAY_GET_JPTR_CRITICAL(" +
+                              tag.getUse(true) + ", " + ro + ")");
+                    } else {
+                        write("(" + cnst + jnitype + "*)" + "_JANET_" + kind +
+                              "_GET_JPTR(" + args + ")");
+                    }
                 } else {
-                    cr(); write("(");
+                    cr(); write("(" + cnst);
                     if (cls == classMgr.INT) {
                         write("int");
                     } else if (cls == classMgr.BYTE) {
@@ -1744,17 +2123,28 @@ public class Writer implements IWriter {
                     } else if (cls == classMgr.LONG) {
                         write("long");
                     }
-                    write("*)_JANET_ARRAY_GET_CPTR(" +
-                        tag.getUse(true) + ", " + sign + ")");
+                    write("*)_JANET_" + kind + "_GET_CPTR(" + args + ")");
                 }
 
             } else {
                 // must be string
+                String kind = e.convertToNative() ? "UTF" : "UNICODE";
+                int bufidx = tag.getVariableTag().stringBufferIdx;
                 cr();
-                if (!e.convertToNative()) {
-                    write("_JANET_STRING_GET_UNICODE(" + tag.getUse(true) + ")");
+                if (!e.convertToNative() && isCriticalArrayAccess(e)) {
+                    write("_JANET_STRING_GET_CRITICAL(" + tag.getUse(true) + ")");
+                } else if (e.isUTF8()) {
+                    int[] idxs = e.getUTF8Idxs();
+                    write("_JANET_STRING_GET_UTF8" + (bufidx >= 0 ? "_BUF(" : "(") +
+                          tag.getUse(true) + ", ");
+                    write("_janet_methods[" + idxs[1] + "].id, ");
+                    write("_janet_strings[" + idxs[2] + "].strref");
+                    write((bufidx >= 0 ? ", " + bufidx : "") + ")");
+                } else if (bufidx >= 0) {
+                    write("_JANET_STRING_GET_" + kind + "_BUF(" +
+                          tag.getUse(true) + ", " + bufidx + ")");
                 } else {
-                    write("_JANET_STRING_GET_UTF(" + tag.getUse(true) + ")");
+                    write("_JANET_STRING_GET_" + kind + "(" + tag.getUse(true) + ")");
                 }
             }
             closeWriteContext(")");
@@ -1874,6 +2264,44 @@ public class Writer implements IWriter {
 
 
 
+    public int write(YYOutlinedStatement s, int param) throws IOException {
+        if ((param & PHASE_PREPARE) != 0) {
+
+            for (YYExpression arg : s.getArguments()) {
+                arg.write(this, PHASE_PREPARE + REUSABLE);
+            }
+            currentDclTag.setUsesLocalExceptions();
+
+        } else {
+
+            writeBegComment(s);
+            openWriteContext("(");
+
+            // write parameter evaluations
+            for (YYExpression arg : s.getArguments()) {
+                if (getTag(arg).needsEvaluation()) {
+                    arg.write(this, PHASE_WRITE + EVALUATE_ONLY);
+                    write(",");
+                }
+            }
+
+            // write JNI invocation of the outlined method
+            writeMetricsCount("upcalls");
+            cr();
+            writeJNIMethodCall(null, null, s.isStatic()
+                    ? YYMethodInvocationExpression.IMODE_STATIC
+                    : YYMethodInvocationExpression.IMODE_NONVIRTUAL,
+                classMgr.VOID, true, s.getArguments(), s.getClassIdx(),
+                s.getMethodIdx(), s);
+            writeExceptionCheck(s.isStatic() ? "CallStatic<type>Method"
+                                             : "CallNonvirtual<type>Method");
+
+            closeWriteContext(");");
+            writeEndComment(s);
+        }
+        return 0;
+    }
+
     public int write(YYTryStatement s, int param) throws IOException {
 
         YYStatement body = s.getBody();
@@ -2080,12 +2508,27 @@ public class Writer implements IWriter {
 
             writeBegComment(e);
             openWriteContext("(");
-            cr(); write(getTag(e).getEvaluationPrefix(false) + "JNI_NEW_STRING");
-            if (!e.isUnicode()) write("_UTF");
-            write("(");
+            writeMetricsCount("strings");
+            cr(); write(getTag(e).getEvaluationPrefix(false));
+            if (e.isUTF8()) {
+                write("_JANET_NEW_STRING_UTF8(");
+            } else {
+                write("JNI_NEW_STRING");
+                if (!e.isUnicode()) write("_UTF");
+                write("(");
+            }
             e.getNativeString().write(this, PHASE_WRITE);
-            write(getTag(e).getEvaluationSuffix(false) + "),");
-            cr(); write("_JANET_LOCAL_HANDLE_EXCEPTION(),");
+            if (e.isUTF8()) {
+                int[] idxs = e.getUTF8Idxs();
+                write(", ");
+                writeClassRef(idxs[0], classMgr.String);
+                write(", _janet_methods[" + idxs[1] + "].id, ");
+                write("_janet_strings[" + idxs[2] + "].strref");
+            }
+            write(getTag(e).getEvaluationSuffix(false) + ")");
+            writeExceptionCheck(e.isUTF8() ? "NewObject"
+                : e.isUnicode() ? "NewString" : "NewStringUTF");
+            write(",");
             cr(); write(getTag(e).getUse((param & MULTIREF) != 0));
 
             closeWriteContext(")");
@@ -2308,14 +2751,17 @@ public class Writer implements IWriter {
     private static String[] string_seqs = new String[256];
 
     private String makeIndent(int indent) {
-        if (indent < 256) {
-            if (string_seqs[indent] == null) {
-                string_seqs[indent] = seq_spaces.substring(0, indent);
+        // shared by writers of all classes, which may run in parallel
+        synchronized (seq_spaces) {
+            if (indent < 256) {
+                if (string_seqs[indent] == null) {
+                    string_seqs[indent] = seq_spaces.substring(0, indent);
+                }
+                return string_seqs[indent];
             }
-            return string_seqs[indent];
+            while (seq_spaces.length() < indent) seq_spaces.append(seq_spaces);
+            return seq_spaces.substring(0, indent);
         }
-        while (seq_spaces.length() < indent) seq_spaces.append(seq_spaces);
-        return seq_spaces.substring(0, indent);
     }
 
     String getJNITypeInfixName(IClassInfo cls) {
@@ -62,6 +62,9 @@ public class YYCBlock extends YYCChunk {
                     w.write(buf.substring(pos, n.lbeg().charno0));
                 }
                 n.write(w, param);
+                if ((param & Writer.PHASE_PREPARE) != 0 && !(n instanceof YYCChunk)) {
+                    w.addEmbeddedJava(n);
+                }
                 pos = n.lend().charno0;
             }
             w.write(buf.substring(pos, content_end));
@@ -46,6 +46,9 @@ public int write(IWriter w, int param) throws IOException {
                 w.write(buf.substring(pos, n.lbeg().charno0));
             }
             n.write(w, param);
+            if ((param & Writer.PHASE_PREPARE) != 0 && !(n instanceof YYCChunk)) {
+                ((Writer)w).addEmbeddedJava(n);
+            }
             pos = n.lend().charno0;
         }
         if ((param & Writer.PHASE_WRITE) != 0) {
@@ -147,14 +147,14 @@ class ArrayType implements IClassInfo {
         return this.getSignature() == cls.getSignature();
     }
 */
-    public Map<String, IFieldInfo> getDeclaredFields() { // final field length is not reflected
+    public synchronized Map<String, IFieldInfo> getDeclaredFields() { // final field length is not reflected
         if (dclfields != null) return dclfields;
         dclfields = new HashMap<String, IFieldInfo>();
         dclfields.put("length", new ArrayLength());
         return dclfields;
     }
 
-    public SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
+    public synchronized SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
         if (accfields != null) return accfields;
         return accfields = classMgr.getAccessibleFields(this);
     }
@@ -173,7 +173,8 @@ class ArrayType implements IClassInfo {
 //        return dclmethods = new TreeMap();
     }
 
-    public SortedMap<String, ? extends IMethodInfo> getAccessibleMethods() throws ParseException {
+    public synchronized SortedMap<String, ? extends IMethodInfo> getAccessibleMethods()
+            throws ParseException {
         if (accmethods != null) return accmethods;
         // the same as in java.lang.Object
         return accmethods = getSuperclass().getAccessibleMethods();
@@ -188,7 +189,7 @@ class ArrayType implements IClassInfo {
         return classMgr.getMethods(this, name, jlssignature);
     }
 
-    public Map<String, IClassInfo> getInterfaces() {
+    public synchronized Map<String, IClassInfo> getInterfaces() {
         if (interfaces != null) return interfaces;
         return interfaces = new HashMap<String, IClassInfo>();
     }
@@ -20,6 +20,8 @@ public final class ClassInfoReflected implements IClassInfo {
     private Class<?> cls;
     private ClassManager classMgr;
     transient String signature;
+    // computed on demand; getters of maps are synchronized, as the class may
+    // be used by several threads at once
     transient Map<String, IFieldInfo> dclfields;
     transient SortedMap<String, IFieldInfo> accfields;
     transient SortedMap<String, IMethodInfo> dclmethods;
@@ -182,7 +184,7 @@ public final class ClassInfoReflected implements IClassInfo {
         return this.getSignature() == cls.getSignature();
     }
 
-    public Map<String, IFieldInfo> getDeclaredFields() {
+    public synchronized Map<String, IFieldInfo> getDeclaredFields() {
         if (dclfields != null) return dclfields;
         if (isPrimitive()) throw new UnsupportedOperationException();
         dclfields = new HashMap<String, IFieldInfo>();
@@ -194,7 +196,7 @@ public final class ClassInfoReflected implements IClassInfo {
         return dclfields;
     }
 
-    public SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
+    public synchronized SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
         if (accfields != null) return accfields;
         return accfields = classMgr.getAccessibleFields(this);
     }
@@ -203,7 +205,8 @@ public final class ClassInfoReflected implements IClassInfo {
         return classMgr.getFields(this, name);
     }
 
-    public SortedMap<String, IMethodInfo> getDeclaredMethods() throws CompileException {
+    public synchronized SortedMap<String, IMethodInfo> getDeclaredMethods()
+            throws CompileException {
         if (dclmethods != null) return dclmethods;
         if (isPrimitive()) throw new UnsupportedOperationException();
         dclmethods = new TreeMap<String, IMethodInfo>();
@@ -215,7 +218,8 @@ public final class ClassInfoReflected implements IClassInfo {
         return dclmethods;
     }
 
-    public SortedMap<String, IMethodInfo> getAccessibleMethods() throws ParseException {
+    public synchronized SortedMap<String, IMethodInfo> getAccessibleMethods()
+            throws ParseException {
         if (accmethods != null) return accmethods;
         return accmethods = classMgr.getAccessibleMethods(this);
     }
@@ -229,7 +233,7 @@ public final class ClassInfoReflected implements IClassInfo {
         return classMgr.getMethods(this, name, jlssignature);
     }
 
-    public Map<String, IClassInfo> getInterfaces() throws CompileException {
+    public synchronized Map<String, IClassInfo> getInterfaces() throws CompileException {
         if (interfaces != null) return interfaces;
         interfaces = new HashMap<String, IClassInfo>();
         Class<?>[] intfs = cls.getInterfaces();
@@ -240,7 +244,7 @@ public final class ClassInfoReflected implements IClassInfo {
         return interfaces;
     }
 
-    public Map<String, IMethodInfo> getConstructors() throws ParseException {
+    public synchronized Map<String, IMethodInfo> getConstructors() throws ParseException {
         if (constructors != null) return constructors;
         constructors = new HashMap<String, IMethodInfo>();
         Constructor<?>[] cstrs = cls.getDeclaredConstructors();
@@ -294,7 +298,7 @@ public final class ClassInfoReflected implements IClassInfo {
 //        { false, true,  true,  true,  true,  true,  true,  true  }  // double
 //    };
 
-    public boolean isAssignableFrom(IClassInfo clsFrom) throws ParseException {
+    public synchronized boolean isAssignableFrom(IClassInfo clsFrom) throws ParseException {
         if (this.cls.isPrimitive()) {
             if (!clsFrom.isPrimitive()) return false;
             return prWidCnvTable[getPrIdx(this)][getPrIdx(clsFrom)];
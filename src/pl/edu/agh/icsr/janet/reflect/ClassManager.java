@@ -9,18 +9,23 @@ import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import pl.edu.agh.icsr.janet.AmbigiousReferenceException;
 import pl.edu.agh.icsr.janet.CompilationManager;
 import pl.edu.agh.icsr.janet.CompileException;
 import pl.edu.agh.icsr.janet.ILocationContext;
 import pl.edu.agh.icsr.janet.Janet;
+import pl.edu.agh.icsr.janet.LinkUnit;
 import pl.edu.agh.icsr.janet.MethodNotAccessibleException;
 import pl.edu.agh.icsr.janet.NoAccessibleMethodsFoundException;
 import pl.edu.agh.icsr.janet.NoApplicableMethodsFoundException;
@@ -29,16 +34,28 @@ import pl.edu.agh.icsr.janet.yytree.YYClass;
 import pl.edu.agh.icsr.janet.yytree.YYCompilationUnit;
 import pl.edu.agh.icsr.janet.yytree.YYModifierList;
 
+/**
+ * Registry of classes, both parsed and reflected. It may be used by several
+ * threads at once, as compilation units are resolved in parallel; class
+ * objects are unique, so that they may be compared by identity, even if two
+ * threads look the same class up simultaneously.
+ */
 public class ClassManager {
 
-    Map<String, YYClass> compClasses = new HashMap<String, YYClass>(256);
-    Map<String, IClassInfo> reflClasses = new HashMap<String, IClassInfo>(256);
-    Map<String, IClassInfo> arrayClasses = new HashMap<String, IClassInfo>(256);
+    ConcurrentMap<String, YYClass> compClasses =
+        new ConcurrentHashMap<String, YYClass>(256);
+    ConcurrentMap<String, IClassInfo> reflClasses =
+        new ConcurrentHashMap<String, IClassInfo>(256);
+    ConcurrentMap<String, IClassInfo> arrayClasses =
+        new ConcurrentHashMap<String, IClassInfo>(256);
 
-    private boolean locked = false;
+    private volatile boolean locked = false;
     CompilationManager compMgr;
     Janet.Settings settings;
     public Janet.Settings getSettings() { return settings; }
+    public LinkUnit getLinkUnit(String libName) {
+        return compMgr.getLinkUnit(libName);
+    }
 
     /**
      * @param compMgr compilation manager (to resolve classes from sourcepath)
@@ -64,7 +81,7 @@ public class ClassManager {
             c = reflClasses.get(name);
         }
         if (c == null) {
-            reflClasses.put(name, c = new ClassInfoReflected(cls, this));
+            c = putIfAbsent(reflClasses, name, new ClassInfoReflected(cls, this));
         }
         return c;
     }
@@ -80,12 +97,29 @@ public class ClassManager {
         c = reflClasses.get(qname);
         if (c != null) return c;
 
+        try {
+            // look at input files left out of an incremental run, before
+            // their output found on the classpath; the check, the parse and
+            // the lookup are under one lock, so that no thread looks further
+            // while another is parsing the file
+            if (compMgr.isDeferredClass(qname)) {
+                synchronized (this) {
+                    c = compClasses.get(qname);
+                    if (c != null) return c;
+                    compMgr.parseDeferredClass(qname);
+                    c = compClasses.get(qname);
+                    if (c != null) return c;
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new ParseException(e.getMessage());
+        }
+
         try {
             // look at the classpath
             Class<?> cls = settings.getClassLoader().loadClass(qname);
-            c = new ClassInfoReflected(cls, this);
-            reflClasses.put(qname, c);
-            return c;
+            return putIfAbsent(reflClasses, qname, new ClassInfoReflected(cls, this));
         } catch (ClassNotFoundException e) {}
 
         // look at the sourcepath (no inner classes supported)
@@ -94,13 +128,20 @@ public class ClassManager {
 
         try {
             if (url != null) {
-                // parse the file and add the compilation unit to the compMgr
-                compMgr.parse(url, null, false);
-
-                // if the class was defined in that source file, it should now
-                // be visible through compClasses
-                c = compClasses.get(qname);
-                if (c != null) return c;
+                // one thread at a time, so that the others find the class
+                // when they get here
+                synchronized (this) {
+                    c = compClasses.get(qname);
+                    if (c != null) return c;
+
+                    // parse the file and add the compilation unit to the compMgr
+                    compMgr.parse(url, null, false);
+
+                    // if the class was defined in that source file, it should now
+                    // be visible through compClasses
+                    c = compClasses.get(qname);
+                    if (c != null) return c;
+                }
             }
         }
         catch (IOException e) {
@@ -120,18 +161,30 @@ public class ClassManager {
         String name = cls.getFullName() + "_" + dims;
         c = arrayClasses.get(name);
         if (c == null) {
-            arrayClasses.put(name, c = new ArrayType(this, cls, dims));
+            c = putIfAbsent(arrayClasses, name, new ArrayType(this, cls, dims));
         }
         return c;
     }
 
+    /**
+     * Adds the class to the map unless another thread has just added one
+     * of the same name, and returns the one that is in the map.
+     */
+    private static IClassInfo putIfAbsent(ConcurrentMap<String, IClassInfo> map,
+                                          String name, IClassInfo c) {
+        IClassInfo prev = map.putIfAbsent(name, c);
+        return prev != null ? prev : c;
+    }
+
     public void lock() {
         locked = true;
     }
 
-    public boolean addClass(YYClass cls) throws CompileException {
+    public synchronized boolean addClass(YYClass cls) throws CompileException {
         if (locked) {
-            if (cls.ibuf().getOriginFile() != null) {
+            // input files left out of an incremental run are parsed on demand
+            if (cls.ibuf().getOriginFile() != null &&
+                    !compMgr.isDeferredInput(cls.ibuf().getOriginURL())) {
                 throw new IllegalStateException("Can't add new class");
             }
         }
@@ -149,7 +202,6 @@ public class ClassManager {
         } else {
             compClasses.put(clname, cls);
             cls.setLoadLibrary(compMgr.getLoadLibrary());
-            cls.setLibName(compMgr.getCurrentLibName());
             return true;
         }
     }
@@ -319,35 +371,36 @@ enumnew:
     // rules for arrays are defined in ArrayType.java
     public Map<String, IClassInfo> getAssignableClasses(IClassInfo cls) throws ParseException {
         HashMap<String, IClassInfo> result = new HashMap<String, IClassInfo>();
-        addAssignableClasses(cls, result);
+        addAssignableClasses(cls, result, new HashSet<IClassInfo>());
         // any class or _interface_ is assignable from Object
         result.put("java.lang.Object", this.Object);
 
         return result;
     }
 
-    private void addAssignableClasses(IClassInfo cls, HashMap<String, IClassInfo> result)
-        throws ParseException
+    // Superclasses are tracked in a set of our own rather than with working
+    // flags, as other threads may be walking the same superclasses.
+    private void addAssignableClasses(IClassInfo cls, HashMap<String, IClassInfo> result,
+        Set<IClassInfo> working) throws ParseException
     {
+        if (!working.add(cls)) { // circularity
+            reportError(cls, "Circularity detected: " + cls +
+                " inherits from itself");
+            return;
+        }
         try {
-            if (cls.getWorkingFlag()) { // circularity
-                reportError(cls, "Circularity detected: " + cls +
-                    " inherits from itself");
-            } else {
-                cls.setWorkingFlag(true);
-                result.put(cls.getFullName(), cls);
-                if (!cls.isInterface()) {
-                    IClassInfo superclass = cls.getSuperclass();
-                    if (superclass != null) {
-                        addAssignableClasses(superclass, result);
-                    }
-                }
-                for (IClassInfo iface : cls.getInterfaces().values()) {
-                    addAssignableClasses(iface, result);
+            result.put(cls.getFullName(), cls);
+            if (!cls.isInterface()) {
+                IClassInfo superclass = cls.getSuperclass();
+                if (superclass != null) {
+                    addAssignableClasses(superclass, result, working);
                 }
             }
+            for (IClassInfo iface : cls.getInterfaces().values()) {
+                addAssignableClasses(iface, result, working);
+            }
         } finally {
-            cls.setWorkingFlag(false);
+            working.remove(cls);
         }
     }
 
@@ -739,8 +792,19 @@ enumnew:
 
     //}
 
+    /**
+     * Resolves a type name used in the compilation unit, and records the
+     * class found as used by the unit (for -incremental).
+     */
     public IClassInfo tryResolveAsType(String refpkgname, String clsname,
             YYCompilationUnit compUnit) throws ParseException {
+        IClassInfo result = resolveAsType(refpkgname, clsname, compUnit);
+        if (result != null) compUnit.addUsedClass(result);
+        return result;
+    }
+
+    private IClassInfo resolveAsType(String refpkgname, String clsname,
+            YYCompilationUnit compUnit) throws ParseException {
         IClassInfo result;
         String curpkgname = compUnit.getPackageName();
         if (refpkgname == "") { // simple name
@@ -929,6 +993,7 @@ methods:
     public IClassInfo Class      = forClass(java.lang.Class.class);
     public IClassInfo Cloneable  = forClass(java.lang.Cloneable.class);
     public IClassInfo Serializable  = forClass(java.io.Serializable.class);
+    public IClassInfo Buffer     = forClass(java.nio.Buffer.class);
 
     public IClassInfo Throwable        = forClass(java.lang.Throwable.class);
     public IClassInfo RuntimeException = forClass(RuntimeException.class);
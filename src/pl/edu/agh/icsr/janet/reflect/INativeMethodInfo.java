@@ -18,4 +18,16 @@ public interface INativeMethodInfo extends IMethodInfo {
     public Collection<Integer> getUsedMethodsIdxs();
     public Collection<Integer> getUsedStringsIdxs();
     public YYNativeMethodImplementation getImplementation();
+
+    /**
+     * Returns the name of the Java native method, which differs from the
+     * method name if the method is wrapped (see getLengthParameters()).
+     */
+    public String getNativeName();
+
+    /**
+     * Returns the array parameters whose lengths are computed in Java and
+     * passed to native code as additional int arguments (-arglengths).
+     */
+    public YYVariableDeclarator[] getLengthParameters() throws CompileException;
 }
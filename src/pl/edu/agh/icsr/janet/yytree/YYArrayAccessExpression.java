@@ -38,6 +38,7 @@ public class YYArrayAccessExpression extends YYExpression {
 
         //OK
         dimexpr.setImplicitCastType(classMgr.INT);
+        YYVariableDeclarator.markLengthUsed(target); // for bounds checks
         expressionType = reftype.getComponentType();
 
         addExceptions(target.getExceptionsThrown());
@@ -53,6 +53,7 @@ public class YYAssignmentExpression extends YYExpression {
                 "as the left side of assignment");
         }
         assignment.resolve(true);
+        YYVariableDeclarator.markAssigned(leftHandSide);
 
         checkTypes();
         IClassInfo t = leftHandSide.getExpressionType();
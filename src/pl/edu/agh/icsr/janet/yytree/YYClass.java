@@ -14,6 +14,8 @@ import java.util.Vector;
 
 import pl.edu.agh.icsr.janet.CompileException;
 import pl.edu.agh.icsr.janet.IJavaContext;
+import pl.edu.agh.icsr.janet.LinkUnit;
+import pl.edu.agh.icsr.janet.NativeWriter;
 import pl.edu.agh.icsr.janet.ParseException;
 import pl.edu.agh.icsr.janet.Writer;
 import pl.edu.agh.icsr.janet.reflect.ClassManager;
@@ -21,6 +23,7 @@ import pl.edu.agh.icsr.janet.reflect.DefaultConstructor;
 import pl.edu.agh.icsr.janet.reflect.IClassInfo;
 import pl.edu.agh.icsr.janet.reflect.IFieldInfo;
 import pl.edu.agh.icsr.janet.reflect.IMethodInfo;
+import pl.edu.agh.icsr.janet.reflect.INativeMethodInfo;
 import pl.edu.agh.icsr.janet.tree.Node;
 
 public class YYClass extends YYNode implements IClassInfo, IScope {
@@ -74,6 +77,182 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         "////// END OF GENERATED CODE //////\n" +
         "\n";
 
+    // worker threads of asynchronous native methods
+    String asyncClass =
+        "%INDENT%private static final class janet$async {\n" +
+        "%INDENT%    static final java.util.concurrent.Executor pool =\n" +
+        "%INDENT%        java.util.concurrent.Executors.newFixedThreadPool(\n" +
+        "%INDENT%            Integer.getInteger(\"janet.async.threads\",\n" +
+        "%INDENT%                Runtime.getRuntime().availableProcessors()),\n" +
+        "%INDENT%            r -> {\n" +
+        "%INDENT%                Thread t = new Thread(r, \"janet-async-%CLASSNAME%\");\n" +
+        "%INDENT%                t.setDaemon(true);\n" +
+        "%INDENT%                return t;\n" +
+        "%INDENT%            });\n" +
+        "\n" +
+        "%INDENT%    static <T> java.util.concurrent.CompletableFuture<T> submit(\n" +
+        "%INDENT%            java.util.concurrent.Callable<T> task) {\n" +
+        "%INDENT%        java.util.concurrent.CompletableFuture<T> f =\n" +
+        "%INDENT%            new java.util.concurrent.CompletableFuture<T>();\n" +
+        "%INDENT%        pool.execute(() -> {\n" +
+        "%INDENT%            try {\n" +
+        "%INDENT%                f.complete(task.call());\n" +
+        "%INDENT%            } catch (Throwable e) {\n" +
+        "%INDENT%                f.completeExceptionally(e);\n" +
+        "%INDENT%            }\n" +
+        "%INDENT%        });\n" +
+        "%INDENT%        return f;\n" +
+        "%INDENT%    }\n" +
+        "%INDENT%}\n";
+
+    // platform threads running blocking native methods for virtual threads
+    String blockingClass =
+        "%INDENT%private static final class janet$blocking {\n" +
+        "%INDENT%    static final java.util.concurrent.ExecutorService pool =\n" +
+        "%INDENT%        java.util.concurrent.Executors.newCachedThreadPool(r -> {\n" +
+        "%INDENT%            Thread t = new Thread(r, \"janet-blocking-%CLASSNAME%\");\n" +
+        "%INDENT%            t.setDaemon(true);\n" +
+        "%INDENT%            return t;\n" +
+        "%INDENT%        });\n" +
+        "\n" +
+        "%INDENT%    // the native call can't be abandoned, so the caller waits for it\n" +
+        "%INDENT%    // even if interrupted; exceptions are rethrown as they are\n" +
+        "%INDENT%    static <T> T call(java.util.concurrent.Callable<T> task) {\n" +
+        "%INDENT%        java.util.concurrent.Future<T> f = pool.submit(task);\n" +
+        "%INDENT%        boolean interrupted = false;\n" +
+        "%INDENT%        try {\n" +
+        "%INDENT%            while (true) {\n" +
+        "%INDENT%                try {\n" +
+        "%INDENT%                    return f.get();\n" +
+        "%INDENT%                } catch (InterruptedException e) {\n" +
+        "%INDENT%                    interrupted = true;\n" +
+        "%INDENT%                }\n" +
+        "%INDENT%            }\n" +
+        "%INDENT%        } catch (java.util.concurrent.ExecutionException e) {\n" +
+        "%INDENT%            throw janet$blocking.<RuntimeException>rethrow(e.getCause());\n" +
+        "%INDENT%        } finally {\n" +
+        "%INDENT%            if (interrupted) Thread.currentThread().interrupt();\n" +
+        "%INDENT%        }\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    @SuppressWarnings(\"unchecked\")\n" +
+        "%INDENT%    static <E extends Throwable> E rethrow(Throwable e) throws E {\n" +
+        "%INDENT%        throw (E)e;\n" +
+        "%INDENT%    }\n" +
+        "%INDENT%}\n";
+
+    // counters of native methods (-metrics), registered as an MBean once the
+    // native library has been loaded; the names of the methods come between
+    // metricsHeader and metricsFooter
+    String metricsHeader =
+        "%INDENT%private static native long[] janetMetrics$();\n" +
+        "\n" +
+        "%INDENT%static {\n" +
+        "%INDENT%    janet$metrics.register();\n" +
+        "%INDENT%}\n" +
+        "\n" +
+        "%INDENT%private static final class janet$metrics\n" +
+        "%INDENT%        implements javax.management.DynamicMBean {\n" +
+        "%INDENT%    static final String[] counters = {\n" +
+        "%INDENT%        \"Calls\", \"TotalNanos\", \"MaxNanos\", \"Upcalls\",\n" +
+        "%INDENT%        \"ArrayPins\", \"ArrayCopies\", \"BytesCopied\", \"StringConversions\"\n" +
+        "%INDENT%    };\n" +
+        "%INDENT%    static final String[] methods = {\n";
+
+    String metricsFooter =
+        "%INDENT%    };\n" +
+        "\n" +
+        "%INDENT%    static void register() {\n" +
+        "%INDENT%        try {\n" +
+        "%INDENT%            java.lang.management.ManagementFactory.getPlatformMBeanServer()\n" +
+        "%INDENT%                .registerMBean(new janet$metrics(), new javax.management.ObjectName(\n" +
+        "%INDENT%                    \"janet:type=NativeMethods,class=%FULLCLASSNAME%\"));\n" +
+        "%INDENT%        } catch (javax.management.JMException e) {\n" +
+        "%INDENT%            // a class of the same name, from another class loader, is\n" +
+        "%INDENT%            // already registered\n" +
+        "%INDENT%        }\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    // attributes are named method.Counter\n" +
+        "%INDENT%    static int index(String attribute) {\n" +
+        "%INDENT%        int dot = attribute.lastIndexOf('.');\n" +
+        "%INDENT%        if (dot < 0) return -1;\n" +
+        "%INDENT%        int m = java.util.Arrays.asList(methods).indexOf(attribute.substring(0, dot));\n" +
+        "%INDENT%        int c = java.util.Arrays.asList(counters).indexOf(attribute.substring(dot + 1));\n" +
+        "%INDENT%        return m < 0 || c < 0 ? -1 : m * counters.length + c;\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public Object getAttribute(String attribute)\n" +
+        "%INDENT%            throws javax.management.AttributeNotFoundException {\n" +
+        "%INDENT%        int i = index(attribute);\n" +
+        "%INDENT%        if (i < 0) throw new javax.management.AttributeNotFoundException(attribute);\n" +
+        "%INDENT%        return Long.valueOf(janetMetrics$()[i]);\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public javax.management.AttributeList getAttributes(String[] attributes) {\n" +
+        "%INDENT%        long[] values = janetMetrics$();\n" +
+        "%INDENT%        javax.management.AttributeList list = new javax.management.AttributeList();\n" +
+        "%INDENT%        for (String attribute : attributes) {\n" +
+        "%INDENT%            int i = index(attribute);\n" +
+        "%INDENT%            if (i >= 0) {\n" +
+        "%INDENT%                list.add(new javax.management.Attribute(attribute, Long.valueOf(values[i])));\n" +
+        "%INDENT%            }\n" +
+        "%INDENT%        }\n" +
+        "%INDENT%        return list;\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public void setAttribute(javax.management.Attribute attribute)\n" +
+        "%INDENT%            throws javax.management.AttributeNotFoundException {\n" +
+        "%INDENT%        throw new javax.management.AttributeNotFoundException(\n" +
+        "%INDENT%            attribute.getName() + \" is read-only\");\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public javax.management.AttributeList setAttributes(\n" +
+        "%INDENT%            javax.management.AttributeList attributes) {\n" +
+        "%INDENT%        return new javax.management.AttributeList();\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public Object invoke(String action, Object[] params, String[] signature)\n" +
+        "%INDENT%            throws javax.management.ReflectionException {\n" +
+        "%INDENT%        throw new javax.management.ReflectionException(\n" +
+        "%INDENT%            new NoSuchMethodException(action));\n" +
+        "%INDENT%    }\n" +
+        "\n" +
+        "%INDENT%    public javax.management.MBeanInfo getMBeanInfo() {\n" +
+        "%INDENT%        javax.management.MBeanAttributeInfo[] attributes =\n" +
+        "%INDENT%            new javax.management.MBeanAttributeInfo[methods.length * counters.length];\n" +
+        "%INDENT%        int i = 0;\n" +
+        "%INDENT%        for (String method : methods) {\n" +
+        "%INDENT%            for (String counter : counters) {\n" +
+        "%INDENT%                attributes[i++] = new javax.management.MBeanAttributeInfo(\n" +
+        "%INDENT%                    method + \".\" + counter, \"long\",\n" +
+        "%INDENT%                    counter + \" of native method \" + method, true, false, false);\n" +
+        "%INDENT%            }\n" +
+        "%INDENT%        }\n" +
+        "%INDENT%        return new javax.management.MBeanInfo(getClass().getName(),\n" +
+        "%INDENT%            \"Native methods of %FULLCLASSNAME%\", attributes, null, null, null);\n" +
+        "%INDENT%    }\n" +
+        "%INDENT%}\n";
+
+    // downcall handles of native methods called through java.lang.foreign
+    String foreignHeader =
+        "%INDENT%private static final class janet$ffm {\n";
+
+    String foreignFooter =
+        "\n" +
+        "%INDENT%    static java.lang.invoke.MethodHandle link(String name,\n" +
+        "%INDENT%            java.lang.foreign.FunctionDescriptor desc, boolean critical) {\n" +
+        "%INDENT%        java.lang.foreign.MemorySegment fun =\n" +
+        "%INDENT%            java.lang.foreign.SymbolLookup.loaderLookup().find(name)\n" +
+        "%INDENT%                .orElseThrow(() -> new UnsatisfiedLinkError(name));\n" +
+        "%INDENT%        return java.lang.foreign.Linker.nativeLinker().downcallHandle(\n" +
+        "%INDENT%            fun, desc, critical\n" +
+        "%INDENT%                ? new java.lang.foreign.Linker.Option[] {\n" +
+        "%INDENT%                      java.lang.foreign.Linker.Option.critical(true) }\n" +
+        "%INDENT%                : new java.lang.foreign.Linker.Option[0]);\n" +
+        "%INDENT%    }\n" +
+        "%INDENT%}\n";
+
     ClassManager classMgr;
 
     int type; // CLASS or INTERFACE
@@ -84,7 +263,14 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
     IScope enclosing; // compilation unit, class, or statement
     Map<String, YYVariableDeclarator> dclfields;
     Vector<YYNativeStatement> implicitNativeMethods;
-
+    Vector<YYOutlinedStatement> outlinedMethods;
+    Vector<YYNativeMethod> foreignMethods;
+    int asyncMethods;
+    int blockingMethods;
+    Vector<INativeMethodInfo> metricsMethods;
+
+    // computed on demand by synchronized getters, as the class may be looked
+    // at by threads resolving other compilation units
     transient SortedMap<String, IFieldInfo> accfields;
     transient SortedMap<String, YYMethod> dclmethods;
     transient SortedMap<String, IMethodInfo> accmethods;
@@ -98,18 +284,8 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
 
     private boolean workingFlag;
 
-    // maps signatures to indexes in appropriate vectors
-    Map<String, Integer> referencedClassesIdx;
-    Map<String, Integer> referencedFieldsIdx;
-    Map<String, Integer> referencedMethodsIdx;
-    Map<String, Integer> referencedStringLiteralsIdx;
-
-    Vector<IClassInfo> referencedClasses;
-    Vector<IFieldInfo> referencedFields;
-    Vector<Integer> referencedFieldsClsIdxs;
-    Vector<IMethodInfo> referencedMethods;
-    Vector<Integer> referencedMethodsClsIdxs;
-    Vector<String> referencedStringLiterals;
+    // classes, fields, methods and strings referenced from native code
+    LinkUnit linkUnit;
 //    boolean valid;
 
     private boolean hasNativeMethodImpls = false;
@@ -127,19 +303,12 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         this.modifiers = checkModifiers(m);
         this.dclfields = new HashMap<String, YYVariableDeclarator>();
         this.implicitNativeMethods = new Vector<YYNativeStatement>();
+        this.outlinedMethods = new Vector<YYOutlinedStatement>();
+        this.foreignMethods = new Vector<YYNativeMethod>();
+        this.metricsMethods = new Vector<INativeMethodInfo>();
         this.unresolvedMethods = new Vector<YYMethod>();
 
-        this.referencedClassesIdx = new HashMap<String, Integer>();
-        this.referencedFieldsIdx = new HashMap<String, Integer>();
-        this.referencedMethodsIdx = new HashMap<String, Integer>();
-        this.referencedStringLiteralsIdx = new HashMap<String, Integer>();
-
-        this.referencedClasses = new Vector<IClassInfo>();
-        this.referencedFields = new Vector<IFieldInfo>();
-        this.referencedFieldsClsIdxs = new Vector<Integer>();
-        this.referencedMethods = new Vector<IMethodInfo>();
-        this.referencedMethodsClsIdxs = new Vector<Integer>();
-        this.referencedStringLiterals = new Vector<String>();
+        this.linkUnit = new LinkUnit(null);
     }
 
     // inner classes (unsupported)
@@ -149,6 +318,9 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         this.enclosing = cxt.getScope();
         this.dclfields = new HashMap<String, YYVariableDeclarator>();
         this.implicitNativeMethods = new Vector<YYNativeStatement>();
+        this.outlinedMethods = new Vector<YYOutlinedStatement>();
+        this.foreignMethods = new Vector<YYNativeMethod>();
+        this.metricsMethods = new Vector<INativeMethodInfo>();
         this.unresolvedMethods = new Vector<YYMethod>();
     }
 
@@ -159,6 +331,9 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         this.enclosing = cxt.getScope();
         this.dclfields = new HashMap<String, YYVariableDeclarator>();
         this.implicitNativeMethods = new Vector<YYNativeStatement>();
+        this.outlinedMethods = new Vector<YYOutlinedStatement>();
+        this.foreignMethods = new Vector<YYNativeMethod>();
+        this.metricsMethods = new Vector<INativeMethodInfo>();
         this.unresolvedMethods = new Vector<YYMethod>();
     }
 
@@ -404,7 +579,7 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         return enclosing.getCurrentClass();
     }
 
-    public IClassInfo getSuperclass() throws ParseException {
+    public synchronized IClassInfo getSuperclass() throws ParseException {
         if (isInterface()) {
             throw new UnsupportedOperationException();
         }
@@ -466,7 +641,7 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
     /**
      * Enforces deep fields resolving
      */
-    public SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
+    public synchronized SortedMap<String, IFieldInfo> getAccessibleFields() throws ParseException {
         if (accfields != null) return accfields;
         lock();
         return accfields = classMgr.getAccessibleFields(this);
@@ -479,14 +654,15 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
     /**
      * Enforces method resolving
      */
-    public SortedMap<String, YYMethod> getDeclaredMethods() throws ParseException {
+    public synchronized SortedMap<String, YYMethod> getDeclaredMethods() throws ParseException {
         if (dclmethods != null) return dclmethods;
         lock();
         resolveMethodsAndConstructors();
         return dclmethods;
     }
 
-    public SortedMap<String, IMethodInfo> getAccessibleMethods() throws ParseException {
+    public synchronized SortedMap<String, IMethodInfo> getAccessibleMethods()
+            throws ParseException {
         if (accmethods != null) return accmethods;
         return accmethods = classMgr.getAccessibleMethods(this);
     }
@@ -500,7 +676,7 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         return classMgr.getMethods(this, name, jlssignature);
     }
 
-    public Map<String, IMethodInfo> getConstructors() throws ParseException {
+    public synchronized Map<String, IMethodInfo> getConstructors() throws ParseException {
         if (constructors != null) return constructors;
         lock();
         resolveMethodsAndConstructors();
@@ -510,7 +686,7 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
     /**
      * Enforces interfaces resolving
      */
-    public Map<String, IClassInfo> getInterfaces() throws ParseException {
+    public synchronized Map<String, IClassInfo> getInterfaces() throws ParseException {
         if (interfaces != null) return interfaces;
         lock();
         interfaces = new HashMap<String, IClassInfo>();
@@ -529,7 +705,8 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         return interfaces;
     }
 
-    public boolean isAssignableFrom(IClassInfo cls) throws ParseException { // JLS 5.1.4
+    public synchronized boolean isAssignableFrom(IClassInfo cls)
+            throws ParseException { // JLS 5.1.4
         if (assignableClasses == null) {
             lock();
             assignableClasses = classMgr.getAssignableClasses(this);
@@ -597,69 +774,40 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
 
     // todo: check for duplicate method definitions
     public void resolve() throws ParseException {
-        // self-reference always first on the list
-        addReferencedClass(this);
+        if (hasNativeMethodImpls && classMgr.getSettings().linkUnits()) {
+            linkUnit = classMgr.getLinkUnit(getLibName());
+        }
+        // self-reference always first on the list of a private link unit
+        linkUnit.addReferencedClass(this, true);
         super.resolve();
     }
 
+    public LinkUnit getLinkUnit() { return linkUnit; }
+
     public Integer addReferencedClass(IClassInfo cls) {
-        String key = cls.getJNIName();
-        Integer old = referencedClassesIdx.get(key);
-        if (old != null) {
-            return old;
-        }
-        Integer pos = new Integer(referencedClasses.size());
-        referencedClasses.add(cls);
-        referencedClassesIdx.put(key, pos);
-        return pos;
+        return linkUnit.addReferencedClass(cls, false);
     }
 
     public Integer addReferencedMethod(int classidx, IMethodInfo mth)
             throws ParseException {
-        String key = ClassManager.getMethodKey(mth);
-        Integer old = referencedMethodsIdx.get(key);
-        if (old != null) {
-            return old;
-        }
-        Integer pos = new Integer(referencedMethods.size());
-        referencedMethods.add(mth);
-        referencedMethodsClsIdxs.add(new Integer(classidx));
-        referencedMethodsIdx.put(key, pos);
-        return pos;
+        return linkUnit.addReferencedMethod(classidx, mth);
     }
 
     public Integer addReferencedField(int classidx, IFieldInfo fld)
             throws CompileException {
-        String key = ClassManager.getFieldKey(fld);
-        Integer old = referencedFieldsIdx.get(key);
-        if (old != null) {
-            return old;
-        }
-        Integer pos = new Integer(referencedFields.size());
-        referencedFields.add(fld);
-        referencedFieldsClsIdxs.add(new Integer(classidx));
-        referencedFieldsIdx.put(key, pos);
-        return pos;
+        return linkUnit.addReferencedField(classidx, fld);
     }
 
     public Integer addReferencedStringLiteral(String lit) {
-        String interlit = lit.intern();
-        Integer old = referencedStringLiteralsIdx.get(interlit);
-        if (old != null) {
-            return old;
-        }
-        Integer pos = new Integer(referencedStringLiterals.size());
-        referencedStringLiterals.add(interlit);
-        referencedStringLiteralsIdx.put(interlit, pos);
-        return pos;
+        return linkUnit.addReferencedStringLiteral(lit);
     }
 
-    public Vector<IClassInfo> getReferencedClasses() { return referencedClasses; }
-    public Vector<IMethodInfo> getReferencedMethods() { return referencedMethods; }
-    public Vector<Integer> getRefMethodClsIdxs() { return referencedMethodsClsIdxs; }
-    public Vector<IFieldInfo> getReferencedFields() { return referencedFields; }
-    public Vector<Integer> getRefFieldClsIdxs() { return referencedFieldsClsIdxs; }
-    public Vector<String> getRefStringLiterals() { return referencedStringLiterals; }
+    public Vector<IClassInfo> getReferencedClasses() { return linkUnit.getReferencedClasses(); }
+    public Vector<IMethodInfo> getReferencedMethods() { return linkUnit.getReferencedMethods(); }
+    public Vector<Integer> getRefMethodClsIdxs() { return linkUnit.getRefMethodClsIdxs(); }
+    public Vector<IFieldInfo> getReferencedFields() { return linkUnit.getReferencedFields(); }
+    public Vector<Integer> getRefFieldClsIdxs() { return linkUnit.getRefFieldClsIdxs(); }
+    public Vector<String> getRefStringLiterals() { return linkUnit.getRefStringLiterals(); }
 
     public int addImplicitNativeMethod(YYNativeStatement stmt) {
         int pos = implicitNativeMethods.size();
@@ -668,6 +816,43 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         return pos;
     }
 
+    public int addOutlinedMethod(YYOutlinedStatement stmt) {
+        int pos = outlinedMethods.size();
+        outlinedMethods.add(stmt);
+        return pos;
+    }
+
+    public int addForeignMethod(YYNativeMethod mth) {
+        int pos = foreignMethods.size();
+        foreignMethods.add(mth);
+        return pos;
+    }
+
+    public void addAsyncMethod() {
+        asyncMethods++;
+    }
+
+    public void addBlockingMethod() {
+        blockingMethods++;
+    }
+
+    /**
+     * Assigns the next index of native method counters to a native method,
+     * as its JNI glue code is written.
+     */
+    public int addMetricsMethod(INativeMethodInfo mth) {
+        metricsMethods.add(mth);
+        return metricsMethods.size() - 1;
+    }
+
+    public int getMetricsIndex(INativeMethodInfo mth) {
+        return metricsMethods.indexOf(mth);
+    }
+
+    public int getMetricsMethodsNum() {
+        return metricsMethods.size();
+    }
+
     public String getLibName() {
         if (libName != null) return libName;
         try {
@@ -724,6 +909,26 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
             implicitNativeMethods.get(j).writeMethod(w);
             w.write("\n");
         }
+        for (int j=0, len = outlinedMethods.size(); j<len; j++) {
+            outlinedMethods.get(j).writeMethod(w);
+            w.write("\n");
+        }
+        if (asyncMethods > 0) {
+            w.write(asyncClass, true);
+        }
+        if (blockingMethods > 0) {
+            w.write(blockingClass, true);
+        }
+        if (classMgr.getSettings().metrics()) {
+            writeMetrics(w);
+        }
+        if (!foreignMethods.isEmpty()) {
+            w.write(foreignHeader, true);
+            for (int j=0, len = foreignMethods.size(); j<len; j++) {
+                foreignMethods.get(j).writeForeignHandle(w);
+            }
+            w.write(foreignFooter, true);
+        }
         w.write("\n////// END OF GENERATED NATIVE METHODS //////\n");
 
         w.write(buf.substring(pos, this.end_charno0));
@@ -732,7 +937,29 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         s.setSubst("INDENT", oldInd);
         s.setSubst("CLASSNAME", oldCls);
 
-        w.getNativeWriter().classWriteFinalize();
+        w.getNativeWriter().classWriteFinalize(this);
+    }
+
+    private void writeMetrics(Writer w) throws java.io.IOException {
+        String oldName = w.getSubstituter().setSubst("FULLCLASSNAME",
+                                                     getFullName());
+        w.write(metricsHeader, true);
+        for (int j=0, len = metricsMethods.size(); j<len; j++) {
+            INativeMethodInfo mth = metricsMethods.get(j);
+            String name = mth.getName();
+            if (NativeWriter.isNativeMethodOverloaded(mth)) {
+                try {
+                    name += "(" + classMgr.getTypeNames(
+                        mth.getParameterTypes()).replace(" ", "") + ")";
+                } catch (ParseException e) {
+                    throw new RuntimeException();
+                }
+            }
+            w.write("%INDENT%        \"" + name + "\"" +
+                    (j < len-1 ? ",\n" : "\n"), true);
+        }
+        w.write(metricsFooter, true);
+        w.getSubstituter().setSubst("FULLCLASSNAME", oldName);
     }
 
     public String toString() {
@@ -763,7 +990,7 @@ public class YYClass extends YYNode implements IClassInfo, IScope {
         }
 
         s += "referenced classes:\n";
-        for (IClassInfo cls : referencedClasses) {
+        for (IClassInfo cls : getReferencedClasses()) {
             s += "    " + cls.getJNIName() + "\n";
         }
         return s;
@@ -5,9 +5,11 @@
 package pl.edu.agh.icsr.janet.yytree;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import pl.edu.agh.icsr.janet.CompilationManager;
 import pl.edu.agh.icsr.janet.CompileException;
@@ -36,12 +38,17 @@ public class YYCompilationUnit extends YYNode implements IScope {
 
     Map<String, IClassInfo> singles;
 
+    // classes names of this unit were resolved to (for -incremental);
+    // guarded by this, as they may be resolved by other units' threads
+    Set<IClassInfo> usedClasses = new HashSet<IClassInfo>();
+
     public YYCompilationUnit(IJavaContext cxt, CompilationManager mgr,
-        boolean doProcess)
+        boolean doProcess, String libName)
     {
         super(cxt);
         this.mgr = mgr;
         this.markedForProcessing = doProcess;
+        this.libName = libName;
         mgr.addCompilationUnit(this);
     }
 
@@ -67,6 +74,7 @@ public class YYCompilationUnit extends YYNode implements IScope {
                 cls.reportError((cls.isInterface() ? "interface " : "class ") +
                     "name " + sname + " clashes with imported class " + t);
             } else if (mgr.getClassManager().addClass(cls)) {
+                cls.setLibName(libName);
                 super.append(cls);
             }
         }
@@ -81,7 +89,10 @@ public class YYCompilationUnit extends YYNode implements IScope {
     }
 */
 
-    public Map<String, IClassInfo> getSingleImportDeclarations() throws ParseException {
+    // may be called while resolving other units, as their types refer to
+    // classes of this one
+    public synchronized Map<String, IClassInfo> getSingleImportDeclarations()
+            throws ParseException {
         Map<String, YYName> m = imports.getSingles();
         if (singles == null) {
             lock();
@@ -100,6 +111,7 @@ public class YYCompilationUnit extends YYNode implements IScope {
                             "package must be public");
                     }
                     singles.put(sname, cls);
+                    usedClasses.add(cls);
                 }
             }
         }
@@ -175,6 +187,16 @@ public class YYCompilationUnit extends YYNode implements IScope {
 
     public boolean markedForProcessing() { return markedForProcessing; }
 
+    public void markForProcessing() { markedForProcessing = true; }
+
+    public synchronized void addUsedClass(IClassInfo cls) {
+        usedClasses.add(cls);
+    }
+
+    public synchronized Set<IClassInfo> getUsedClasses() {
+        return new HashSet<IClassInfo>(usedClasses);
+    }
+
     public String toString() {
         return "Compilation unit: " + ibuf().getOriginAsString();
     }
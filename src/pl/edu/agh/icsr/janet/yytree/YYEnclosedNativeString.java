@@ -16,6 +16,10 @@ public class YYEnclosedNativeString extends YYExpression {
     boolean unicode;
     YYNativeCode ncode;
 
+    // in the standard UTF-8 mode: indexes of String, String(byte[], String)
+    // and "UTF-8"
+    int[] utf8Idxs;
+
     public YYEnclosedNativeString(IJavaContext cxt, YYNativeCode ncode) {
         this(cxt, ncode, false);
     }
@@ -32,6 +36,9 @@ public class YYEnclosedNativeString extends YYExpression {
         ncode.resolve();
         addExceptions(ncode.getExceptionsThrown());
         addException(classMgr.NullPointerException);
+        if (!unicode && classMgr.getSettings().utf8Strings()) {
+            utf8Idxs = registerUTF8Coding(null, "([BLjava/lang/String;)");
+        }
     }
 
     public boolean isVariable() { return false; }
@@ -40,6 +47,18 @@ public class YYEnclosedNativeString extends YYExpression {
 
     public YYNativeCode getNativeString() { return ncode; }
 
+    /**
+     * Returns true if the native string is to be decoded from standard
+     * UTF-8 by the String constructor rather than by NewStringUTF.
+     */
+    public boolean isUTF8() { return utf8Idxs != null; }
+
+    /**
+     * Returns indexes of String, String(byte[], String) and of the "UTF-8"
+     * string literal, if isUTF8().
+     */
+    public int[] getUTF8Idxs() { return utf8Idxs; }
+
     public int write(IWriter w, int param) throws java.io.IOException {
         return w.write(this, param);
     }
@@ -189,6 +189,7 @@ fields:
                 " is not accessible from " + myclass);
         } else {
             this.expressionType = field.getType();
+            addMemberUse(declCls, expressionType);
         }
 
         // JLS 15.10.1-2, 6.5.5.2
@@ -212,6 +213,8 @@ fields:
         if (!isArrayLength()) {
             classidx = registerClass(declCls, false);
             fldidx = registerField(classidx, this.field);
+        } else if (target != null) {
+            YYVariableDeclarator.markLengthUsed(target);
         }
     }
 
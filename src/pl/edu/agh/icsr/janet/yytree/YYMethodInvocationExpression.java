@@ -213,8 +213,9 @@ public class YYMethodInvocationExpression extends YYExpression {
         arguments.setImplicitCastTypes(mth.getParameterTypes());
         method = mth;
         expressionType = mth.getReturnType();
+        addMemberUse(declCls, expressionType);
 
-        if (!isStringLength()) {
+        if (!isStringLength() && !isBufferAccessor()) {
             classidx = registerClass(declCls, false);
             mthidx = registerMethod(classidx, this.method);
         }
@@ -284,6 +285,24 @@ public class YYMethodInvocationExpression extends YYExpression {
                method.getName().equals("length");
     }
 
+    /**
+     * Getters of java.nio.Buffer which are final, and therefore may be
+     * implemented by reading the buffer fields directly.
+     */
+    public static final String[] BUFFER_ACCESSORS =
+        { "position", "limit", "capacity", "remaining" };
+
+    public boolean isBufferAccessor() {
+        if (method.getDeclaringClass() != classMgr.Buffer ||
+                argtypes.length != 0) {
+            return false;
+        }
+        for (int i=0; i<BUFFER_ACCESSORS.length; i++) {
+            if (BUFFER_ACCESSORS[i].equals(method.getName())) return true;
+        }
+        return false;
+    }
+
     class DumpIterator implements Iterator<YYNode> {
         boolean targetReturned;
         boolean argsreturned;
@@ -7,17 +7,39 @@ package pl.edu.agh.icsr.janet.yytree;
 import java.lang.reflect.Modifier;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Vector;
 
+import pl.edu.agh.icsr.janet.CompilationManager;
 import pl.edu.agh.icsr.janet.CompileException;
 import pl.edu.agh.icsr.janet.IJavaContext;
+import pl.edu.agh.icsr.janet.NativeWriter;
+import pl.edu.agh.icsr.janet.ParseException;
 import pl.edu.agh.icsr.janet.Writer;
+import pl.edu.agh.icsr.janet.natives.YYNativeCode;
+import pl.edu.agh.icsr.janet.reflect.ClassManager;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
 import pl.edu.agh.icsr.janet.reflect.INativeMethodInfo;
+import pl.edu.agh.icsr.janet.tree.Node;
 
 public class YYNativeMethod extends YYMethod implements INativeMethodInfo {
 
+    /**
+     * Arguments passed to the native function of a method called through
+     * java.lang.foreign, for a parameter used as: a primitive value; the
+     * pointer to elements of a primitive type array; the length of an array;
+     * a string in UTF-8.
+     */
+    public static final int FOREIGN_VALUE  = 1;
+    public static final int FOREIGN_ARRAY  = 2;
+    public static final int FOREIGN_LENGTH = 4;
+    public static final int FOREIGN_STRING = 8;
+
     String language;
     YYNativeMethodImplementation implementation;
     //YYVariableDeclaratorList unresolvedParameters;
+    transient YYVariableDeclarator[] lengthParameters;
+    transient Boolean foreign;
+    int foreignIdx;
 
     public YYNativeMethod(IJavaContext cxt, String name)
             throws CompileException {
@@ -51,7 +73,201 @@ public class YYNativeMethod extends YYMethod implements INativeMethodInfo {
         return implementation;
     }
 
+    public String getNativeName() {
+        try {
+            return getLengthParameters().length > 0 || isAsync() ||
+                    isBlocking()
+                ? "janet$" + name : name;
+        } catch (CompileException e) {
+            throw new RuntimeException();
+        }
+    }
+
+    /**
+     * With -arglengths, these are the array parameters used in the native
+     * code as targets of element accesses or of the length field, and never
+     * assigned to. The method is then written as a Java wrapper, passing the
+     * lengths (or -1 for null) to the private native method janet$name.
+     */
+    public YYVariableDeclarator[] getLengthParameters()
+            throws CompileException {
+        if (lengthParameters != null) return lengthParameters;
+        Vector<YYVariableDeclarator> v = new Vector<YYVariableDeclarator>();
+        if (cls.getClassManager().getSettings().argLengths() && !isForeign()) {
+            YYVariableDeclarator[] params = getParameters();
+            try {
+                for (int i=0; i<params.length; i++) {
+                    YYVariableDeclarator var = params[i];
+                    if (var.getType().isArray() && var.lengthUsed &&
+                            !var.assigned) {
+                        var.lengthArgument = true;
+                        v.add(var);
+                    }
+                }
+            } catch (ParseException e) {
+                throw new RuntimeException();
+            }
+        }
+        return lengthParameters = v.toArray(new YYVariableDeclarator[v.size()]);
+    }
+
+    /**
+     * Tells whether the method is asynchronous, as requested by the
+     * "/async" suffix of the native language. The method is then written
+     * as a Java wrapper returning a CompletableFuture of the declared result
+     * type, which submits the call of the private native method janet$name
+     * to a bounded pool of worker threads, kept in the class janet$async.
+     */
+    public boolean isAsync() {
+        return CompilationManager.hasLanguageOption(language, "async");
+    }
+
+    /**
+     * Tells whether the method blocks, as declared by the "/blocking"
+     * suffix of the native language. The method is then written as a Java
+     * wrapper calling the private native method janet$name directly, unless
+     * called from a virtual thread; such calls are run by the platform
+     * threads of the class janet$blocking, so that the native code does not
+     * pin the carrier thread while the virtual thread waits for it.
+     */
+    public boolean isBlocking() {
+        return CompilationManager.hasLanguageOption(language, "blocking") &&
+            !isAsync();
+    }
+
+    /**
+     * Tells whether the method is called through a java.lang.foreign
+     * downcall handle instead of JNI. It is, if requested by the "/FFM"
+     * suffix of the native language or by -ffm, and if the native code uses
+     * no embedded Java other than literals, primitive parameters, and '&',
+     * 'const &' and '.length' of primitive type array parameters, or '#&'
+     * of string parameters. The native code then needs no JNIEnv, and is
+     * written as a plain C function, taking these values as arguments.
+     */
+    public boolean isForeign() {
+        if (foreign != null) return foreign.booleanValue();
+        boolean b = false;
+        if (implementation != null && !isAsync() && !isBlocking() &&
+                (CompilationManager.hasLanguageOption(language, "ffm") ||
+                 cls.getClassManager().getSettings().foreign())) {
+            try {
+                YYVariableDeclarator[] params = getParameters();
+                IClassInfo rettype = getReturnType();
+                b = (rettype.isPrimitive() || rettype == cls.getClassManager().VOID) &&
+                    isForeignCapable(implementation.getStatements(), params);
+                if (!b) {
+                    for (int i=0; i<params.length; i++) {
+                        params[i].foreignUses = 0;
+                    }
+                } else {
+                    foreignIdx = cls.addForeignMethod(this);
+                }
+            } catch (ParseException e) {
+                throw new RuntimeException();
+            }
+        }
+        foreign = Boolean.valueOf(b);
+        return b;
+    }
+
+    private static boolean isForeignCapable(YYNode n,
+            YYVariableDeclarator[] params) throws ParseException {
+        if (n instanceof YYEnclosedNativeExpression) {
+            return isForeignCapable(
+                ((YYEnclosedNativeExpression)n).getNativeCode(), params);
+        } else if (n instanceof YYEnclosedNativeStatements) {
+            return isForeignCapable(
+                ((YYEnclosedNativeStatements)n).getNativeCode(), params);
+        } else if (n instanceof YYReturnStatement) {
+            YYExpression e = ((YYReturnStatement)n).getReturnedExpression();
+            return e == null || isForeignCapable(e, params);
+        } else if (n instanceof YYIntegerLiteral ||
+                   n instanceof YYLongLiteral ||
+                   n instanceof YYCharacterLiteral ||
+                   n instanceof YYFloatLiteral ||
+                   n instanceof YYDoubleLiteral ||
+                   n instanceof YYBooleanLiteral) {
+            return true;
+        } else if (n instanceof YYLocalVariableAccessExpression) {
+            return addForeignUse((YYExpression)n, params, FOREIGN_VALUE);
+        } else if (n instanceof YYPtrFetchExpression) {
+            YYPtrFetchExpression e = (YYPtrFetchExpression)n;
+            if (e.isRegion() || e.isBuffer()) {
+                return false;
+            } else if (e.getBase().getExpressionType().isArray()) {
+                return addForeignUse(e.getBase(), params, FOREIGN_ARRAY);
+            } else {
+                return e.convertToNative() &&
+                    addForeignUse(e.getBase(), params, FOREIGN_STRING);
+            }
+        } else if (n instanceof YYFieldAccessExpression) {
+            YYFieldAccessExpression e = (YYFieldAccessExpression)n;
+            return e.isArrayLength() &&
+                addForeignUse(e.getTarget(), params, FOREIGN_LENGTH);
+        } else if (!(n instanceof YYNativeCode) &&
+                   n.getClass() != YYStatement.class) {
+            return false;
+        }
+        for (Node node : n) {
+            if (!isForeignCapable((YYNode)node, params)) return false;
+        }
+        return true;
+    }
+
+    private static boolean addForeignUse(YYExpression e,
+            YYVariableDeclarator[] params, int use) throws ParseException {
+        if (!(e instanceof YYLocalVariableAccessExpression)) return false;
+        YYVariableDeclarator var = ((YYLocalVariableAccessExpression)e).variable;
+        if (use == FOREIGN_VALUE && !var.getType().isPrimitive()) return false;
+        // there is no heap segment of a boolean[] (MemorySegment.ofArray)
+        if (use == FOREIGN_ARRAY && "[Z".equals(var.getType().getSignature())) {
+            return false;
+        }
+        for (int i=0; i<params.length; i++) {
+            if (params[i] == var) {
+                var.foreignUses |= use;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of the plain C function implementing the method
+     * called through java.lang.foreign.
+     */
+    public String getForeignFunctionName() {
+        String s = "Janet_ffm_" + ClassManager.mangle(cls.getFullName()) +
+            "_" + ClassManager.mangle(name);
+        if (NativeWriter.isNativeMethodOverloaded(this)) {
+            s += "__";
+            try {
+                YYVariableDeclarator[] params = getParameters();
+                for (int i=0; i<params.length; i++) {
+                    s += ClassManager.mangle(params[i].getType().getSignature());
+                }
+            } catch (ParseException e) {
+                throw new RuntimeException();
+            }
+        }
+        return s;
+    }
+
     public void write(Writer w) throws java.io.IOException {
+        if (isForeign()) {
+            writeForeign(w);
+            return;
+        }
+        YYVariableDeclarator[] lenparams;
+        try {
+            lenparams = getLengthParameters();
+        } catch (CompileException e) {
+            throw new RuntimeException();
+        }
+        if (lenparams.length > 0 || isAsync() || isBlocking()) {
+            writeWrapper(w, lenparams);
+            return;
+        }
         w.write(Modifier.toString(this.modifiers) + " ");
         unresolvedReturnType.write(w);
         for (int i=0; i<rettypedims; i++) w.write("[]");
@@ -75,6 +291,242 @@ public class YYNativeMethod extends YYMethod implements INativeMethodInfo {
         w.getNativeWriter().writeNativeMethod(this);
     }
 
+    private void writeWrapper(Writer w, YYVariableDeclarator[] lenparams)
+            throws java.io.IOException {
+        YYVariableDeclarator[] params;
+        IClassInfo rettype;
+        boolean isVoid;
+        boolean async = isAsync();
+        boolean blocking = isBlocking();
+        try {
+            params = getParameters();
+            rettype = getReturnType();
+            isVoid = (rettype == cls.getClassManager().VOID);
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+
+        // the wrapper; an asynchronous or blocking one synchronizes in the
+        // native method, so that a virtual thread does not wait for the
+        // worker holding a monitor (which pins its carrier); an asynchronous
+        // one, as it does not throw, declares no exceptions
+        int mods = this.modifiers & ~Modifier.NATIVE;
+        if (async || blocking) mods &= ~Modifier.SYNCHRONIZED;
+        if (mods != 0) w.write(Modifier.toString(mods) + " ");
+        if (async) {
+            w.write("java.util.concurrent.CompletableFuture<");
+            if (rettype.isPrimitive() || isVoid) {
+                w.write(getWrapperClassName(rettype));
+            } else {
+                unresolvedReturnType.write(w);
+                for (int i=0; i<rettypedims; i++) w.write("[]");
+            }
+            w.write(">");
+        } else {
+            unresolvedReturnType.write(w);
+            for (int i=0; i<rettypedims; i++) w.write("[]");
+        }
+        w.write(" " + name + "(");
+        if (unresolvedParameters != null) {
+            unresolvedParameters.write(w);
+        }
+        w.write(")");
+        if (unresolvedThrows != null && !async) {
+            w.write(" ");
+            unresolvedThrows.write(w);
+        }
+        w.write(" {\n%INDENT%    ", true);
+        String call = getNativeName() + "(";
+        for (int i=0; i<params.length; i++) {
+            if (i>0) call += ", ";
+            call += params[i].getName();
+        }
+        for (int i=0; i<lenparams.length; i++) {
+            String p = lenparams[i].getName();
+            call += ", " + p + " != null ? " + p + ".length : -1";
+        }
+        call += ")";
+        if (async) {
+            w.write("return janet$async.submit(() -> " +
+                (isVoid ? "{ " + call + "; return null; })" : call + ")"));
+            cls.addAsyncMethod();
+        } else if (blocking) {
+            // a caller already holding the monitor is pinned anyway, and
+            // the worker would wait for it forever
+            String monitor = Modifier.isStatic(modifiers)
+                ? cls.getSimpleName() + ".class" : "this";
+            w.write("if (!Thread.currentThread().isVirtual()" +
+                (Modifier.isSynchronized(modifiers)
+                    ? " || Thread.holdsLock(" + monitor + ")" : "") +
+                ") {\n" +
+                "%INDENT%        " + (isVoid ? call + ";\n%INDENT%        return"
+                                           : "return " + call) + ";\n" +
+                "%INDENT%    }\n%INDENT%    ", true);
+            w.write((isVoid ? "" : "return ") + "janet$blocking.call(() -> " +
+                (isVoid ? "{ " + call + "; return null; })" : call + ")"));
+            cls.addBlockingMethod();
+        } else {
+            w.write((isVoid ? "" : "return ") + call);
+        }
+        w.write(";\n%INDENT%}\n", true);
+
+        // the native method
+        w.write("%INDENT%" + Modifier.toString(Modifier.PRIVATE |
+            (this.modifiers & (Modifier.STATIC | Modifier.SYNCHRONIZED)) |
+            Modifier.NATIVE) + " ", true);
+        unresolvedReturnType.write(w);
+        for (int i=0; i<rettypedims; i++) w.write("[]");
+        w.write(" " + getNativeName() + "(");
+        if (unresolvedParameters != null) {
+            unresolvedParameters.write(w);
+        }
+        for (int i=0; i<lenparams.length; i++) {
+            if (i>0 || params.length > 0) w.write(", ");
+            w.write("int " + getLengthParameterName(lenparams[i]));
+        }
+        w.write(")");
+        if (unresolvedThrows != null) {
+            w.write(" ");
+            unresolvedThrows.write(w);
+        }
+        w.write(";");
+        w.getNativeWriter().writeNativeMethod(this);
+    }
+
+    private static String getWrapperClassName(IClassInfo type) {
+        String s = type.getFullName();
+        if (s.equals("int")) return "Integer";
+        if (s.equals("char")) return "Character";
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+
+    private void writeForeign(Writer w) throws java.io.IOException {
+        YYVariableDeclarator[] params;
+        IClassInfo rettype;
+        boolean usesStrings = false;
+        try {
+            params = getParameters();
+            rettype = getReturnType();
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+        for (int i=0; i<params.length; i++) {
+            if ((params[i].foreignUses & FOREIGN_STRING) != 0) {
+                usesStrings = true;
+            }
+        }
+
+        String mods = Modifier.toString(this.modifiers & ~Modifier.NATIVE);
+        if (mods.length() > 0) w.write(mods + " ");
+        unresolvedReturnType.write(w);
+        w.write(" " + name + "(");
+        if (unresolvedParameters != null) {
+            unresolvedParameters.write(w);
+        }
+        w.write(")");
+        if (unresolvedThrows != null) {
+            w.write(" ");
+            unresolvedThrows.write(w);
+        }
+        w.write(" {\n%INDENT%    try", true);
+        if (usesStrings) {
+            w.write(" (java.lang.foreign.Arena janet$arena =\n" +
+                "%INDENT%            java.lang.foreign.Arena.ofConfined())", true);
+        }
+        w.write(" {\n%INDENT%        ", true);
+        if (rettype != cls.getClassManager().VOID) {
+            w.write("return (" + rettype.getFullName() + ")");
+        }
+        w.write("janet$ffm.mth$" + foreignIdx + ".invokeExact(");
+        boolean first = true;
+        for (int i=0; i<params.length; i++) {
+            String p = params[i].getName();
+            int uses = params[i].foreignUses;
+            if ((uses & FOREIGN_VALUE) != 0) {
+                w.write((first ? "" : ", ") + p);
+                first = false;
+            }
+            if ((uses & FOREIGN_ARRAY) != 0) {
+                w.write((first ? "" : ", ") +
+                    "java.lang.foreign.MemorySegment.ofArray(" + p + ")");
+                first = false;
+            }
+            if ((uses & FOREIGN_LENGTH) != 0) {
+                w.write((first ? "" : ", ") + p + ".length");
+                first = false;
+            }
+            if ((uses & FOREIGN_STRING) != 0) {
+                w.write((first ? "" : ", ") + "janet$arena.allocateFrom(" + p + ")");
+                first = false;
+            }
+        }
+        w.write(");\n" +
+            "%INDENT%    } catch (RuntimeException | Error janet$e) {\n" +
+            "%INDENT%        throw janet$e;\n" +
+            "%INDENT%    } catch (Throwable janet$e) {\n" +
+            "%INDENT%        throw new AssertionError(janet$e);\n" +
+            "%INDENT%    }\n" +
+            "%INDENT%}", true);
+        w.getNativeWriter().writeForeignMethod(this);
+    }
+
+    /**
+     * Writes the downcall handle of the method called through
+     * java.lang.foreign, as a field of the class janet$ffm. Heap segments
+     * of arrays may only be passed to critical functions, which, as with
+     * GetPrimitiveArrayCritical, should not run for long.
+     */
+    public void writeForeignHandle(Writer w) throws java.io.IOException {
+        IClassInfo rettype;
+        boolean usesArrays = false;
+        String layouts = "";
+        try {
+            YYVariableDeclarator[] params = getParameters();
+            rettype = getReturnType();
+            for (int i=0; i<params.length; i++) {
+                int uses = params[i].foreignUses;
+                if ((uses & FOREIGN_VALUE) != 0) {
+                    layouts += ",\n%INDENT%            " +
+                        getForeignLayout(params[i].getType());
+                }
+                if ((uses & FOREIGN_ARRAY) != 0) {
+                    layouts += ",\n%INDENT%            " + getForeignLayout(null);
+                    usesArrays = true;
+                }
+                if ((uses & FOREIGN_LENGTH) != 0) {
+                    layouts += ",\n%INDENT%            " +
+                        getForeignLayout(cls.getClassManager().INT);
+                }
+                if ((uses & FOREIGN_STRING) != 0) {
+                    layouts += ",\n%INDENT%            " + getForeignLayout(null);
+                }
+            }
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+        if (rettype == cls.getClassManager().VOID) {
+            layouts = "ofVoid(" + (layouts.length() > 0 ? layouts.substring(1) : "");
+        } else {
+            layouts = "of(\n%INDENT%            " + getForeignLayout(rettype) +
+                layouts;
+        }
+        w.write("%INDENT%    static final java.lang.invoke.MethodHandle mth$" +
+            foreignIdx + " = link(\n" +
+            "%INDENT%        \"" + getForeignFunctionName() + "\",\n" +
+            "%INDENT%        java.lang.foreign.FunctionDescriptor." + layouts +
+            "),\n" +
+            "%INDENT%        " + usesArrays + ");\n", true);
+    }
+
+    private static String getForeignLayout(IClassInfo type) {
+        return "java.lang.foreign.ValueLayout." + (type == null
+            ? "ADDRESS" : "JAVA_" + type.getFullName().toUpperCase());
+    }
+
+    private static String getLengthParameterName(YYVariableDeclarator var) {
+        return "janet$" + var.getName() + "$length";
+    }
+
     public Collection<Integer> getUsedClassIdxs() {
         if (implementation.clsidxs == null) {
             throw new IllegalStateException();
@@ -252,6 +252,15 @@ public class YYNativeStatement extends YYStatement implements INativeMethodInfo
         return "janetmth$" + mthIdx;
     }
 
+    public String getNativeName() {
+        return getName();
+    }
+
+    public YYVariableDeclarator[] getLengthParameters() {
+        // external variables may be reassigned by the enclosing method
+        return new YYVariableDeclarator[0];
+    }
+
     class DumpIterator implements Iterator<YYNode> {
         boolean bodyreturned;
         DumpIterator() {
@@ -62,6 +62,14 @@ public class YYNode extends Node implements ILocationContext {
         return (YYNode)insertSon(n);
     }
 */
+    /**
+     * Puts the given node in place of this node in the tree.
+     */
+    protected final void replaceWith(YYNode n) {
+        Node parent = parent();
+        n.attach(parent, detach());
+    }
+
     protected YYNode absorb(YYNode n) {
         YYNode s = (YYNode)n.firstSon();
         for (; s != null; s = (YYNode)s.nextBrother()) {
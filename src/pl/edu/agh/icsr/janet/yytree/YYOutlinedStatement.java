@@ -0,0 +1,459 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package pl.edu.agh.icsr.janet.yytree;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+import pl.edu.agh.icsr.janet.ParseException;
+import pl.edu.agh.icsr.janet.Writer;
+import pl.edu.agh.icsr.janet.natives.IWriter;
+import pl.edu.agh.icsr.janet.natives.YYNativeCode;
+import pl.edu.agh.icsr.janet.reflect.ClassManager;
+import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.reflect.IMethodInfo;
+import pl.edu.agh.icsr.janet.tree.Node;
+
+/**
+ * Embedded Java statements moved out of native code into a private method of
+ * the declaring class (the mirror image of YYNativeStatement). The native
+ * code then invokes that method once, instead of making a JNI call for each
+ * method invocation and field access in the statements.
+ *
+ * Statements may be outlined if they do not declare local variables used
+ * after them, do not assign to local variables declared before them, do not
+ * return, and contain no native code other than native expressions of
+ * primitive types (which are evaluated before the call). Local variables
+ * declared before the statements, and native expressions, are passed as
+ * arguments.
+ */
+public class YYOutlinedStatement extends YYStatement implements IMethodInfo {
+
+    /**
+     * Statements making fewer JNI calls than that are not worth outlining.
+     */
+    public static final int MIN_OUTLINED_CALLS = 2;
+
+    ClassManager classMgr;
+    YYStatement body;
+    YYClass declaringClass;
+    boolean isStatic;
+    int outIdx;
+    int clsidx;
+    int mthidx;
+
+    // arguments: accesses to the local variables, then native expressions
+    Vector<YYExpression> arguments;
+    Vector<YYVariableDeclarator> variables;
+    Vector<IClassInfo> nativeTypes;
+    // checked exceptions declared by the invoked methods and constructors
+    Map<String, IClassInfo> invokedExceptions;
+
+    transient String argsignature;
+    transient Map<String, IClassInfo> exceptionTypes;
+    transient IClassInfo[] paramtypes;
+
+    private int calls;
+
+    private YYOutlinedStatement(YYStatement body) {
+        super(body);
+        this.body = body;
+        this.declaringClass = body.getCurrentClass();
+        this.classMgr = declaringClass.getClassManager();
+        this.isStatic = ((getCurrentMember().getScopeType() &
+                          IScope.INSTANCE_CONTEXT) == 0);
+        this.arguments = new Vector<YYExpression>();
+        this.variables = new Vector<YYVariableDeclarator>();
+        this.nativeTypes = new Vector<IClassInfo>();
+        this.invokedExceptions = new HashMap<String, IClassInfo>();
+    }
+
+    /**
+     * Resolves the embedded Java statements. If they may be outlined, puts
+     * the outlined statement in their place, and returns it; otherwise,
+     * returns the original statements.
+     */
+    public static YYStatement resolve(YYStatement s) throws ParseException {
+        YYNativeMethodImplementation impl = s.findImpl();
+        if (s.getClass() != YYStatement.class || impl == null) {
+            // not a list of statements
+            s.resolve();
+            return s;
+        }
+        Set<Integer> clsidxs = new HashSet<Integer>(impl.clsidxs);
+        Set<Integer> fldidxs = new HashSet<Integer>(impl.fldidxs);
+        Set<Integer> mthidxs = new HashSet<Integer>(impl.mthidxs);
+        Set<Integer> stridxs = new HashSet<Integer>(impl.stridxs);
+
+        s.resolve();
+
+        YYOutlinedStatement outlined = new YYOutlinedStatement(s);
+        if (!outlined.scanStatement(s, true) ||
+                outlined.calls < MIN_OUTLINED_CALLS) {
+            return s;
+        }
+
+        // the statements will not be written to native code, so their
+        // references to classes and members need not be linked there
+        impl.clsidxs.retainAll(clsidxs);
+        impl.fldidxs.retainAll(fldidxs);
+        impl.mthidxs.retainAll(mthidxs);
+        impl.stridxs.retainAll(stridxs);
+
+        s.replaceWith(outlined);
+        outlined.addSon(s);
+        outlined.resolveOutlined();
+        return outlined;
+    }
+
+    private void resolveOutlined() throws ParseException {
+        addExceptions(body.getExceptionsThrown());
+        outIdx = declaringClass.addOutlinedMethod(this);
+        clsidx = registerClass(declaringClass, false);
+        mthidx = registerMethod(clsidx, this);
+    }
+
+    /**
+     * Checks whether the statement may be outlined, collecting arguments
+     * on the way. Top-level statements may not declare local variables, as
+     * these would be visible in the following native code.
+     */
+    private boolean scanStatement(YYStatement s, boolean topLevel)
+            throws ParseException {
+        Class<?> cls = s.getClass();
+        if (cls == YYStatement.class) {
+            boolean block = (s.getScopeType() == IScope.BLOCK);
+            for (Node n : s) {
+                if (!scanStatement((YYStatement)n, topLevel && !block)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (s instanceof YYExpressionStatement) {
+            return scanExpression(((YYExpressionStatement)s).expr);
+        } else if (s instanceof YYVariableDeclaratorList) {
+            if (topLevel) return false;
+            for (Node n : s) {
+                YYVariableDeclarator var = (YYVariableDeclarator)n;
+                if (var.initializer != null &&
+                        !scanOperand(var.initializer, var.getType())) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (s instanceof YYTryStatement) {
+            YYTryStatement t = (YYTryStatement)s;
+            if (!scanStatement(t.body, false)) return false;
+            if (t.catches != null) {
+                for (Node n : t.catches) {
+                    if (!scanStatement(((YYCatchClause)n).body, false)) {
+                        return false;
+                    }
+                }
+            }
+            return t.finly == null || scanStatement(t.finly.body, false);
+        } else if (s instanceof YYSynchronizedStatement) {
+            YYSynchronizedStatement t = (YYSynchronizedStatement)s;
+            return scanExpression(t.expression) &&
+                   scanStatement(t.statement, false);
+        } else if (s instanceof YYThrowStatement) {
+            return scanExpression(((YYThrowStatement)s).exception);
+        } else {
+            // returns, native statements, and whatever else
+            return false;
+        }
+    }
+
+    private boolean scanExpression(YYExpression e) throws ParseException {
+        if (e == null) return true;
+        if (e instanceof YYMethodInvocationExpression) {
+            YYMethodInvocationExpression m = (YYMethodInvocationExpression)e;
+            calls++;
+            addDeclaredExceptions(m.method);
+            return scanExpression(m.target) &&
+                scanArguments(m.arguments, m.method.getParameterTypes());
+        } else if (e instanceof YYClassInstanceCreationExpression) {
+            YYClassInstanceCreationExpression c =
+                (YYClassInstanceCreationExpression)e;
+            calls++;
+            addDeclaredExceptions(c.method);
+            return scanArguments(c.arguments, c.method.getParameterTypes());
+        } else if (e instanceof YYFieldAccessExpression) {
+            calls++;
+            return scanExpression(((YYFieldAccessExpression)e).target);
+        } else if (e instanceof YYArrayAccessExpression) {
+            YYArrayAccessExpression a = (YYArrayAccessExpression)e;
+            calls++;
+            return scanExpression(a.target) &&
+                   scanOperand(a.dimexpr, classMgr.INT);
+        } else if (e instanceof YYArrayCreationExpression) {
+            calls++;
+            for (Node n : ((YYArrayCreationExpression)e).dimexprs) {
+                if (!scanOperand((YYExpression)n, classMgr.INT)) return false;
+            }
+            return true;
+        } else if (e instanceof YYAssignmentExpression) {
+            YYAssignmentExpression a = (YYAssignmentExpression)e;
+            if (a.leftHandSide instanceof YYLocalVariableAccessExpression &&
+                    !isDeclaredInside(((YYLocalVariableAccessExpression)
+                                       a.leftHandSide).variable)) {
+                return false;
+            }
+            return scanExpression(a.leftHandSide) &&
+                scanOperand(a.assignment, a.leftHandSide.getExpressionType());
+        } else if (e instanceof YYLocalVariableAccessExpression) {
+            YYLocalVariableAccessExpression v =
+                (YYLocalVariableAccessExpression)e;
+            if (!isDeclaredInside(v.variable) &&
+                    !variables.contains(v.variable)) {
+                variables.add(v.variable);
+                arguments.insertElementAt(v, variables.size() - 1);
+            }
+            return true;
+        } else if (e instanceof YYCastExpression) {
+            YYCastExpression c = (YYCastExpression)e;
+            return scanOperand(c.target, c.getExpressionType());
+        } else if (e instanceof YYInstanceOfExpression) {
+            return scanExpression(((YYInstanceOfExpression)e).target);
+        } else if (e instanceof YYBinaryExpression) {
+            YYBinaryExpression b = (YYBinaryExpression)e;
+            return scanOperand(b.left, b.right.getExpressionType()) &&
+                   scanOperand(b.right, b.left.getExpressionType());
+        } else if (e instanceof YYRelationalExpression) {
+            YYRelationalExpression r = (YYRelationalExpression)e;
+            return scanOperand(r.e1, r.e2.getExpressionType()) &&
+                   scanOperand(r.e2, r.e1.getExpressionType());
+        } else if (e instanceof YYConditionalExpression) {
+            YYConditionalExpression c = (YYConditionalExpression)e;
+            return scanExpression(c.e1) && scanExpression(c.e2);
+        } else if (e instanceof YYThis ||
+                   e instanceof YYStringLiteral ||
+                   e instanceof YYIntegerLiteral ||
+                   e instanceof YYLongLiteral ||
+                   e instanceof YYFloatLiteral ||
+                   e instanceof YYDoubleLiteral ||
+                   e instanceof YYCharacterLiteral ||
+                   e instanceof YYBooleanLiteral ||
+                   e instanceof YYNullLiteral) {
+            return true;
+        } else {
+            // native expressions of unknown type, native strings, pointers
+            return false;
+        }
+    }
+
+    /**
+     * Checked exceptions are not tracked in the statements, but they must be
+     * declared by the outlined method. They are kept apart from the
+     * exceptions thrown by the statement, so that they do not have to be
+     * declared by the enclosing native method.
+     */
+    private void addDeclaredExceptions(IMethodInfo mth) throws ParseException {
+        invokedExceptions.putAll(mth.getExceptionTypes());
+    }
+
+    private boolean scanArguments(YYExpressionList args, IClassInfo[] types)
+            throws ParseException {
+        if (args == null) return true;
+        int i = 0;
+        for (Node n : args) {
+            if (!scanOperand((YYExpression)n, types[i++])) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Scans an expression whose expected type is known; if it is a native
+     * expression, the type determines the type of the argument. (In binary
+     * and relational expressions, the type of a native operand is that of
+     * the other operand, as in the native code.)
+     */
+    private boolean scanOperand(YYExpression e, IClassInfo type)
+            throws ParseException {
+        if (!(e instanceof YYEnclosedNativeExpression)) {
+            return scanExpression(e);
+        }
+        if (!type.isPrimitive() || type == classMgr.VOID ||
+                type == classMgr.NATIVETYPE) {
+            return false;
+        }
+        // the native expression may not embed Java code in turn
+        for (Node n : ((YYEnclosedNativeExpression)e).ncode) {
+            if (!(n instanceof YYNativeCode)) return false;
+        }
+        arguments.add(e);
+        nativeTypes.add(type);
+        return true;
+    }
+
+    private boolean isDeclaredInside(YYVariableDeclarator var) {
+        return var.ibuf() == body.ibuf() &&
+               var.beg_charno0 >= body.beg_charno0 &&
+               var.end_charno0 <= body.end_charno0;
+    }
+
+    public YYStatement getBody() { return body; }
+
+    /**
+     * Returns the arguments of the invocation.
+     */
+    public Vector<YYExpression> getArguments() { return arguments; }
+
+    public int getClassIdx() { return clsidx; }
+    public int getMethodIdx() { return mthidx; }
+    public boolean isStatic() { return isStatic; }
+
+    public int getModifiers() {
+        return Modifier.PRIVATE | (isStatic ? Modifier.STATIC : 0);
+    }
+
+    public String getName() {
+        return "janetjava$" + outIdx;
+    }
+
+    public IClassInfo getReturnType() {
+        return classMgr.VOID;
+    }
+
+    public boolean isConstructor() {
+        return false;
+    }
+
+    public IClassInfo getDeclaringClass() {
+        return declaringClass;
+    }
+
+    public String getArgumentSignature() throws ParseException {
+        if (argsignature != null) return argsignature;
+        String s = "";
+        IClassInfo[] types = getParameterTypes();
+        for (int i=0; i<types.length; i++) {
+            s += types[i].getSignature();
+        }
+        return argsignature = s;
+    }
+
+    public String getJLSSignature() throws ParseException {
+        return "(" + getArgumentSignature() + ")";
+    }
+
+    public String getJNISignature() throws ParseException {
+        return getJLSSignature() + "V";
+    }
+
+    public Map<String, IClassInfo> getExceptionTypes() {
+        if (exceptionTypes != null) return exceptionTypes;
+        exceptionTypes = new HashMap<String, IClassInfo>();
+        for (IClassInfo cls : getExceptionsThrown().keySet()) {
+            exceptionTypes.put(cls.getFullName(), cls);
+        }
+        exceptionTypes.putAll(invokedExceptions);
+        return exceptionTypes;
+    }
+
+    public IClassInfo[] getParameterTypes() throws ParseException {
+        if (paramtypes != null) return paramtypes;
+        paramtypes = new IClassInfo[arguments.size()];
+        int i = 0;
+        for (YYVariableDeclarator var : variables) {
+            paramtypes[i++] = var.getType();
+        }
+        for (IClassInfo type : nativeTypes) {
+            paramtypes[i++] = type;
+        }
+        return paramtypes;
+    }
+
+    /**
+     * Writes the method to the Java output. Native expressions in the
+     * statements are replaced by the names of corresponding parameters.
+     */
+    public void writeMethod(Writer w) throws IOException {
+        w.write("%INDENT%", true);
+        w.write(Modifier.toString(this.getModifiers()) + " void ");
+        w.write(getName() + "(");
+
+        try {
+            IClassInfo[] types = getParameterTypes();
+            for (int i=0; i<types.length; i++) {
+                if (i>0) w.write (",");
+                w.write("\n%INDENT%            ", true);
+                w.write(types[i].getFullName() + " ");
+                w.write(i < variables.size() ? variables.get(i).getName()
+                                             : getNativeParameterName(i));
+            }
+            w.write(")");
+
+            //write throws
+            boolean first = true;
+            for (IClassInfo exc : getExceptionTypes().values()) {
+                if (classMgr.isUncheckedException(exc)) continue;
+                if (first) {
+                    first = false;
+                    w.write("\n%INDENT%        throws ", true);
+                } else {
+                    w.write(",\n%INDENT%               ", true);
+                }
+                w.write(exc.getFullName());
+            }
+        } catch (ParseException e) {
+            throw new RuntimeException();
+        }
+        w.write(" {\n");
+
+        // write the body, substituting native expressions in the order
+        // of their appearance
+        Vector<Integer> natives = new Vector<Integer>();
+        for (int i=variables.size(); i<arguments.size(); i++) {
+            int j = natives.size();
+            while (j > 0 && arguments.get(natives.get(j-1)).beg_charno0 >
+                                arguments.get(i).beg_charno0) {
+                j--;
+            }
+            natives.insertElementAt(i, j);
+        }
+        StringBuffer buf = body.ibuf().getbuf();
+        int pos = body.beg_charno0;
+        int end = body.end_charno0;
+        // strip the backquotes
+        if (buf.charAt(pos) == '`') pos++;
+        if (buf.charAt(end-1) == '`') end--;
+        w.write("%INDENT%    ", true);
+        for (int i : natives) {
+            YYNode n = arguments.get(i);
+            w.write(buf.substring(pos, n.beg_charno0));
+            w.write(getNativeParameterName(i));
+            pos = n.end_charno0;
+        }
+        w.write(buf.substring(pos, end));
+        w.write("\n%INDENT%}\n", true);
+    }
+
+    private String getNativeParameterName(int i) {
+        return "janet$arg" + (i - variables.size());
+    }
+
+    public int write(IWriter w, int param) throws IOException {
+        return w.write(this, param);
+    }
+
+    class DumpIterator implements Iterator<YYNode> {
+        boolean bodyreturned;
+        public boolean hasNext() { return !bodyreturned; }
+        public YYNode next() {
+            if (!bodyreturned) { bodyreturned = true; return body; }
+            return null;
+        }
+        public void remove() { throw new UnsupportedOperationException(); }
+    }
+
+    public Iterator<YYNode> getDumpIterator() { return new DumpIterator(); }
+}
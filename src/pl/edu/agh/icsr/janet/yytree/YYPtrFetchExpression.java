@@ -11,17 +11,62 @@ import pl.edu.agh.icsr.janet.IJavaContext;
 import pl.edu.agh.icsr.janet.ParseException;
 import pl.edu.agh.icsr.janet.natives.IWriter;
 import pl.edu.agh.icsr.janet.reflect.IClassInfo;
+import pl.edu.agh.icsr.janet.reflect.IFieldInfo;
 
 public class YYPtrFetchExpression extends YYExpression {
 
+    /**
+     * Package of the region classes (such as IntRegion), which may be used
+     * to pass pointers into the middle of arrays.
+     */
+    public static final String REGION_PACKAGE = "pl.edu.agh.icsr.janet.util";
+
+    /**
+     * Fields of the region classes describing the region.
+     */
+    public static final String[] REGION_FIELDS =
+        { "baseArray", "offset", "length" };
+
+    /**
+     * Typed NIO buffers, and their element types.
+     */
+    static final Class<?>[] BUFFER_CLASSES = {
+        java.nio.ByteBuffer.class, java.nio.CharBuffer.class,
+        java.nio.ShortBuffer.class, java.nio.IntBuffer.class,
+        java.nio.LongBuffer.class, java.nio.FloatBuffer.class,
+        java.nio.DoubleBuffer.class
+    };
+    static final Class<?>[] BUFFER_ELEMENT_TYPES = {
+        byte.class, char.class, short.class, int.class, long.class,
+        float.class, double.class
+    };
+
     YYExpression base;
     boolean toNative;
+    boolean readOnly;
+
+    // for regions: the type of the base array, and indexes of region fields
+    IClassInfo regionArrayType;
+    int[] regionFieldIdxs;
+
+    // for direct buffers: the type of elements
+    IClassInfo bufferElementType;
+
+    // for '#&' on strings in the standard UTF-8 mode: indexes of String,
+    // String.getBytes(String) and "UTF-8"
+    int[] utf8Idxs;
 
     public YYPtrFetchExpression(IJavaContext cxt, YYExpression base,
             boolean toNative) throws CompileException {
+        this(cxt, base, toNative, false);
+    }
+
+    public YYPtrFetchExpression(IJavaContext cxt, YYExpression base,
+            boolean toNative, boolean readOnly) throws CompileException {
         super(cxt);
         this.base = base;
         this.toNative = toNative;
+        this.readOnly = readOnly;
     }
 
     public void resolve(boolean isSubexpression) throws ParseException {
@@ -35,11 +80,14 @@ public class YYPtrFetchExpression extends YYExpression {
         IClassInfo basetype = base.getExpressionType();
         if (!((basetype == classMgr.String) ||
               (basetype.isArray() &&
-                  basetype.getComponentType().isPrimitive()))) {
+                  basetype.getComponentType().isPrimitive()) ||
+              resolveRegion(basetype) ||
+              resolveBuffer(basetype))) {
             reportError("The address fetch operator " +
                 (toNative ? "'#&'" : "'&'") +
-                " may be used for strings and arrays of primitive types," +
-                " but not for " + basetype.getFullName());
+                " may be used for strings, arrays of primitive types," +
+                " regions and NIO buffers, but not for " +
+                basetype.getFullName());
         }
 /*
         if (!
@@ -51,12 +99,124 @@ public class YYPtrFetchExpression extends YYExpression {
         addExceptions(base.getExceptionsThrown());
         addException(classMgr.NullPointerException);
 
-        findImpl().addReferencedPrimitiveTypeArray();
+        if (isBuffer()) {
+            // thrown for non-direct buffers
+            addException(classMgr.forClass(IllegalArgumentException.class));
+        } else {
+            findImpl().addReferencedPrimitiveTypeArray();
+        }
+
+        if (basetype == classMgr.String && toNative &&
+                classMgr.getSettings().utf8Strings()) {
+            utf8Idxs = registerUTF8Coding("getBytes", "(Ljava/lang/String;)");
+        }
+    }
+
+    /**
+     * Checks if the type is one of the region classes from
+     * pl.edu.agh.icsr.janet.util, and if so, registers the fields
+     * describing the region.
+     */
+    private boolean resolveRegion(IClassInfo type) throws ParseException {
+        if (type.isArray() || type.isPrimitive() ||
+                !REGION_PACKAGE.equals(type.getPackageName()) ||
+                !type.getFullName().endsWith("Region")) {
+            return false;
+        }
+        IFieldInfo[] flds = new IFieldInfo[REGION_FIELDS.length];
+        for (int i=0; i<flds.length; i++) {
+            Iterator<? extends IFieldInfo> j =
+                type.getFields(REGION_FIELDS[i]).values().iterator();
+            if (!j.hasNext()) return false;
+            flds[i] = j.next();
+        }
+        IClassInfo arrtype = flds[0].getType();
+        if (!arrtype.isArray() || !arrtype.getComponentType().isPrimitive() ||
+                flds[1].getType() != classMgr.INT ||
+                flds[2].getType() != classMgr.INT) {
+            return false;
+        }
+        int clsidx = registerClass(type, false);
+        regionFieldIdxs = new int[flds.length];
+        for (int i=0; i<flds.length; i++) {
+            regionFieldIdxs[i] = registerField(clsidx, flds[i]);
+        }
+        regionArrayType = arrtype;
+        return true;
+    }
+
+    /**
+     * Checks if the type is a typed java.nio buffer (such as IntBuffer).
+     */
+    private boolean resolveBuffer(IClassInfo type) throws ParseException {
+        if (type.isArray() || type.isPrimitive() ||
+                !type.isSubclassOf(classMgr.Buffer)) {
+            return false;
+        }
+        for (int i=0; i<BUFFER_CLASSES.length; i++) {
+            if (type.isSubclassOf(classMgr.forClass(BUFFER_CLASSES[i]))) {
+                bufferElementType = classMgr.forClass(BUFFER_ELEMENT_TYPES[i]);
+                break;
+            }
+        }
+        if (bufferElementType == null) {
+            reportError("The address fetch operator may only be used for " +
+                "typed buffers (such as ByteBuffer), but not for " +
+                type.getFullName());
+        }
+        if (toNative) {
+            reportError("The address fetch operator '#&' may not be used " +
+                "for buffers; use '&' instead");
+        }
+        return true;
     }
 
     public YYExpression getBase() { return base; }
     public boolean convertToNative() { return toNative; }
 
+    /**
+     * Returns true for the "const" form of the operator, whose pointer
+     * is never written through, so that the array need not be copied back.
+     */
+    public boolean isReadOnly() { return readOnly; }
+
+    /**
+     * Returns true if the base is a region rather than an array or string.
+     */
+    public boolean isRegion() { return regionArrayType != null; }
+
+    /**
+     * Returns the type of the base array of the region.
+     */
+    public IClassInfo getRegionArrayType() { return regionArrayType; }
+
+    /**
+     * Returns indexes of fields REGION_FIELDS of the region class.
+     */
+    public int[] getRegionFieldIdxs() { return regionFieldIdxs; }
+
+    /**
+     * Returns true if the base is a direct java.nio buffer.
+     */
+    public boolean isBuffer() { return bufferElementType != null; }
+
+    /**
+     * Returns the type of elements of the buffer.
+     */
+    public IClassInfo getBufferElementType() { return bufferElementType; }
+
+    /**
+     * Returns true if the string is to be encoded in standard UTF-8 by
+     * String.getBytes rather than in JNI's modified UTF-8.
+     */
+    public boolean isUTF8() { return utf8Idxs != null; }
+
+    /**
+     * Returns indexes of String, String.getBytes(String) and of the "UTF-8"
+     * string literal, if isUTF8().
+     */
+    public int[] getUTF8Idxs() { return utf8Idxs; }
+
     public int write(IWriter w, int param) throws java.io.IOException {
         return w.write(this, param);
     }
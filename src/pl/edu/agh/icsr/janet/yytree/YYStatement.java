@@ -44,6 +44,17 @@ public class YYStatement extends YYNode implements IScope {
         if (isBlock) this.dclUnitType = IScope.BLOCK;
     }
 
+    /**
+     * Creates a statement taking the place of the given one in the tree.
+     */
+    YYStatement(YYStatement s) {
+        super(s);
+        this.pure = s.pure;
+        this.enclosing = s.enclosing;
+        this.compUnit = s.compUnit;
+        this.dclUnitType = s.dclUnitType;
+    }
+
     public boolean isPure() { return pure; }
     public boolean isJava() {return true; }
 
@@ -162,6 +173,17 @@ public class YYStatement extends YYNode implements IScope {
         return (YYNativeMethodImplementation)scope;
     }
 
+    /**
+     * Records the class a member has been looked up in, and the type of the
+     * member, as used by the compilation unit (for -incremental): the
+     * generated code depends on them even if their names do not appear in
+     * the source.
+     */
+    final void addMemberUse(IClassInfo cls, IClassInfo type) {
+        compUnit.addUsedClass(cls);
+        compUnit.addUsedClass(type);
+    }
+
     public final int registerClass(IClassInfo cls) {
         return registerClass(cls, true);
     }
@@ -214,6 +236,22 @@ public class YYStatement extends YYNode implements IScope {
         }
     }
 
+    /**
+     * Registers java.lang.String, its method (or constructor, if name is
+     * null) of the given JLS signature, and the "UTF-8" charset name, for
+     * transcoding strings in the standard UTF-8 mode. Returns their indexes.
+     */
+    final int[] registerUTF8Coding(String name, String jlssign)
+            throws ParseException {
+        IClassInfo cls = getCurrentClass().getClassManager().String;
+        IMethodInfo mth = (name == null)
+            ? cls.getConstructors().get(jlssign)
+            : cls.getMethods(name, jlssign).values().iterator().next();
+        int clsidx = registerClass(cls, false);
+        return new int[] { clsidx, registerMethod(clsidx, mth),
+                           registerStringLiteral("UTF-8") };
+    }
+
     /* Interaction with native writer */
 
     public Object tag;
@@ -33,6 +33,16 @@ public class YYVariableDeclarator extends YYStatement implements IFieldInfo {
     YYExpression initializer;
     int declarationType;
 
+    // used to find parameters whose array lengths may be passed to native
+    // code (see YYNativeMethod.getLengthParameters())
+    boolean assigned;
+    boolean lengthUsed;
+    boolean lengthArgument;
+
+    // how a parameter is used by the native code of a method called through
+    // java.lang.foreign (see YYNativeMethod.isForeign())
+    int foreignUses;
+
     public YYVariableDeclarator(IJavaContext cxt, String name) {
         this(cxt, name, true);
     }
@@ -114,6 +124,35 @@ public class YYVariableDeclarator extends YYStatement implements IFieldInfo {
         return name;
     }
 
+    /**
+     * Tells whether the variable is a native method parameter whose array
+     * length is passed to native code as an additional argument.
+     */
+    public boolean hasLengthArgument() {
+        return lengthArgument;
+    }
+
+    /**
+     * For parameters of methods called through java.lang.foreign, returns
+     * the combination of YYNativeMethod.FOREIGN_* flags telling which
+     * arguments are passed to the native function for this parameter.
+     */
+    public int getForeignUses() {
+        return foreignUses;
+    }
+
+    static void markAssigned(YYExpression e) {
+        if (e instanceof YYLocalVariableAccessExpression) {
+            ((YYLocalVariableAccessExpression)e).variable.assigned = true;
+        }
+    }
+
+    static void markLengthUsed(YYExpression e) {
+        if (e instanceof YYLocalVariableAccessExpression) {
+            ((YYLocalVariableAccessExpression)e).variable.lengthUsed = true;
+        }
+    }
+
     public int write(IWriter w, int param) throws java.io.IOException {
         return w.write(this, param);
     }
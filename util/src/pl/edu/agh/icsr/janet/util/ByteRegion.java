@@ -100,7 +100,7 @@ public final class ByteRegion implements Region {
         if (offset < 0 || length < 0) {
             throw new IllegalArgumentException();
         }
-        if (offset + length < array.length) {
+        if (length > array.length - offset) {
             throw new ArrayIndexOutOfBoundsException(offset + length);
         }
         this.baseArray = array;